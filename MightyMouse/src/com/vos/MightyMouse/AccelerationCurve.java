@@ -0,0 +1,121 @@
+package com.vos.MightyMouse;
+
+/**
+ * Pointer acceleration: how many counts to send per pixel the finger moves,
+ * by how fast it's moving. Slow motion gets {@link getMinGain}, for
+ * precision, and fast motion up to {@link getMaxGain}, so that a flick
+ * crosses a big monitor without picking the finger up and putting it down
+ * again. In between the gain eases from one to the other.
+ * <p>
+ * The gain is worked out for every speed up front, into a table, so that
+ * {@link gain} is a lookup and a blend with no pow, sqrt or allocation,
+ * cheap enough to do on every send. A curve never changes; to change the
+ * settings make a new one and hand it to the MouseSender.
+ */
+public class AccelerationCurve {
+
+  // Motion goes out as it came in.
+  public static final AccelerationCurve LINEAR =
+      new AccelerationCurve(1f, 1f, 0f, 1f);
+
+  // What the TrackPad uses unless told otherwise. Up to 0.2 px/ms is
+  // careful pointing; by 1.5 px/ms the finger is throwing the pointer
+  // somewhere.
+  public static final AccelerationCurve DEFAULT =
+      new AccelerationCurve(1f, 4f, 0.2f, 1.5f);
+
+  // Speeds from 0 to this, in px/ms, are in the table. Faster than this
+  // gets the last entry.
+  private static final float MAX_SPEED = 4f;
+  private static final int TABLE_SIZE = 257;
+  private static final float ENTRIES_PER_SPEED = (TABLE_SIZE - 1) / MAX_SPEED;
+
+  // An alpha max plus beta min speed is within 4% of the real one, which is
+  // much closer than anyone can feel in a gain.
+  private static final float ALPHA = 0.96043387f;
+  private static final float BETA = 0.39782473f;
+
+  private final float mMinGain;
+  private final float mMaxGain;
+  private final float mLowSpeed;
+  private final float mHighSpeed;
+  private final float[] mTable = new float[TABLE_SIZE];
+
+  /**
+   * @param minGain counts per pixel at lowSpeed and below
+   * @param maxGain counts per pixel at highSpeed and above
+   * @param lowSpeed in px/ms
+   * @param highSpeed in px/ms, more than lowSpeed
+   */
+  public AccelerationCurve(float minGain, float maxGain, float lowSpeed,
+      float highSpeed) {
+    if (minGain <= 0 || maxGain < minGain) {
+      throw new IllegalArgumentException("bad gains: " + minGain + ", "
+          + maxGain);
+    }
+    if (lowSpeed < 0 || highSpeed <= lowSpeed) {
+      throw new IllegalArgumentException("bad speeds: " + lowSpeed + ", "
+          + highSpeed);
+    }
+    this.mMinGain = minGain;
+    this.mMaxGain = maxGain;
+    this.mLowSpeed = lowSpeed;
+    this.mHighSpeed = highSpeed;
+    for (int i = 0; i < TABLE_SIZE; i++) {
+      mTable[i] = gainAtSpeed(i / ENTRIES_PER_SPEED);
+    }
+  }
+
+  /**
+   * The gain at a speed, worked out the long way. Only for filling the
+   * table.
+   */
+  private float gainAtSpeed(float speed) {
+    if (speed <= mLowSpeed) {
+      return mMinGain;
+    } else if (speed >= mHighSpeed) {
+      return mMaxGain;
+    }
+    // Smoothstep, so that the gain doesn't change suddenly at either end.
+    float t = (speed - mLowSpeed) / (mHighSpeed - mLowSpeed);
+    return mMinGain + (mMaxGain - mMinGain) * t * t * (3 - 2 * t);
+  }
+
+  /**
+   * @param velocityX in px/ms
+   * @param velocityY in px/ms
+   * @return counts per pixel at that velocity
+   */
+  public float gain(float velocityX, float velocityY) {
+    float x = Math.abs(velocityX);
+    float y = Math.abs(velocityY);
+    float speed = (x > y) ? ALPHA * x + BETA * y : ALPHA * y + BETA * x;
+    float position = speed * ENTRIES_PER_SPEED;
+    if (position != position) {
+      // NaN, from a bad velocity. Don't fling the pointer for it.
+      return mMinGain;
+    } else if (position >= TABLE_SIZE - 1) {
+      return mTable[TABLE_SIZE - 1];
+    }
+    int index = (int) position;
+    float fraction = position - index;
+    return mTable[index] + (mTable[index + 1] - mTable[index]) * fraction;
+  }
+
+  public float getMinGain() {
+    return mMinGain;
+  }
+
+  public float getMaxGain() {
+    return mMaxGain;
+  }
+
+  public float getLowSpeed() {
+    return mLowSpeed;
+  }
+
+  public float getHighSpeed() {
+    return mHighSpeed;
+  }
+
+}
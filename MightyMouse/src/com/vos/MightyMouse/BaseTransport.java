@@ -0,0 +1,82 @@
+package com.vos.MightyMouse;
+
+import java.io.IOException;
+
+/**
+ * The part of a Transport that is the same whatever is underneath: its
+ * state, and telling the listener when that changes. Subclasses only have to
+ * {@link connect}, {@link disconnect}, read and write.
+ */
+public abstract class BaseTransport implements Transport {
+
+  private volatile int mState = STATE_NONE;
+  private volatile Listener mListener;
+
+  /**
+   * Make the connection.
+   * @throws IOException
+   */
+  protected abstract void connect() throws IOException;
+
+  /**
+   * Tear down the connection. Should make blocked reads and writes fail.
+   * @throws IOException
+   */
+  protected abstract void disconnect() throws IOException;
+
+  @Override
+  public void setListener(Listener listener) {
+    this.mListener = listener;
+  }
+
+  @Override
+  public void open() throws IOException {
+    setState(STATE_CONNECTING);
+    try {
+      connect();
+    } catch (IOException e) {
+      close();
+      throw e;
+    }
+    setState(STATE_CONNECTED);
+  }
+
+  @Override
+  public void close() {
+    synchronized (this) {
+      if (mState == STATE_CLOSED) {
+        return;
+      }
+      mState = STATE_CLOSED;
+    }
+    try {
+      disconnect();
+    } catch (IOException e) {
+      // We're done with it either way
+    }
+    notifyListener(STATE_CLOSED);
+  }
+
+  @Override
+  public int getState() {
+    return mState;
+  }
+
+  private void setState(int state) {
+    synchronized (this) {
+      if (mState == STATE_CLOSED) {
+        return;
+      }
+      mState = state;
+    }
+    notifyListener(state);
+  }
+
+  private void notifyListener(int state) {
+    Listener listener = mListener;
+    if (listener != null) {
+      listener.onStateChanged(this, state);
+    }
+  }
+
+}
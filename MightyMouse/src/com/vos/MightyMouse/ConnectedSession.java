@@ -0,0 +1,94 @@
+package com.vos.MightyMouse;
+
+/**
+ * A handle on one connection to a dongle. WorkerClass hands out a new one
+ * every time it connects, and closes it as soon as that connection goes
+ * away, so senders can hang on to it and write through it without taking
+ * any locks. Once closed it stays closed: ask WorkerClass for the current
+ * one instead.
+ */
+public class ConnectedSession {
+
+  private final FrameWriter mWriter;
+  private final String mDeviceAddress;
+  private final String mDeviceName;
+  private volatile boolean mOpen = true;
+  private volatile boolean mHelloAnswered;
+
+  /**
+   * @param writer the writer for the connection
+   * @param deviceAddress
+   * @param deviceName
+   */
+  public ConnectedSession(FrameWriter writer, String deviceAddress,
+      String deviceName) {
+    this.mWriter = writer;
+    this.mDeviceAddress = deviceAddress;
+    this.mDeviceName = deviceName;
+  }
+
+  /**
+   * @return false once the connection this belongs to has gone away
+   */
+  public boolean isOpen() {
+    return mOpen;
+  }
+
+  /**
+   * Mark the session as over. Anything written after this is dropped.
+   */
+  void close() {
+    mOpen = false;
+  }
+
+  /**
+   * @return true once the dongle has answered our hello. Dongles too old
+   * to know the hello are likely too old to know text frames as well.
+   */
+  public boolean isHelloAnswered() {
+    return mHelloAnswered;
+  }
+
+  void setHelloAnswered() {
+    mHelloAnswered = true;
+  }
+
+  /**
+   * The writer for the connection. Check {@link isOpen} first: a closed
+   * session's writer has been stopped.
+   */
+  public FrameWriter getWriter() {
+    return mWriter;
+  }
+
+  /**
+   * @return the version of the protocol frames are being sent in. Starts
+   * out at version 1 and goes up if the dongle says it can.
+   */
+  public int getProtocolVersion() {
+    return mWriter.getProtocolVersion();
+  }
+
+  public String getDeviceAddress() {
+    return mDeviceAddress;
+  }
+
+  public String getDeviceName() {
+    return mDeviceName;
+  }
+
+  /**
+   * Queue bytes that are already encoded in the interactive lane.
+   * @param buffer
+   * @param offset
+   * @param length at most {@link FrameRing#SLOT_BYTES}
+   * @return false if the session is closed or the queue was full
+   */
+  public boolean write(byte[] buffer, int offset, int length) {
+    if (!mOpen) {
+      return false;
+    }
+    return mWriter.offer(FrameWriter.LANE_INTERACTIVE, buffer, offset, length);
+  }
+
+}
@@ -1,18 +1,26 @@
 package com.vos.MightyMouse;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 
 import android.app.AlertDialog;
 import android.content.Context;
 import android.os.AsyncTask;
+import android.text.format.Formatter;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.widget.Button;
+import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.Toast;
 
@@ -30,6 +38,9 @@ public class DispatcherSingleton {
   
   // We need this guy to interact with the worker threads.
   private WorkerClass mChatService;
+  // The last session we got from mChatService. Kept so that sending doesn't
+  // have to ask it every time, and only refreshed once it closes.
+  private volatile ConnectedSession mSession;
   // This is the context that last fetched the singleton. It is very important
   // that classes are good about acquiring the singleton before using any of 
   // its methods, in case they're holding the same reference but the mContext
@@ -54,10 +65,8 @@ public class DispatcherSingleton {
    * and no scroll, you would set the mouse bytes to [10][20][0] and then
    * call sendMouse().
    */
-  private static final byte DELIMITER[] = {(byte)255};
-  private static final byte KEYBOARD[] = {(byte)'K'};
-  private static final byte MOUSE[] = {(byte)'M'};
-  private static final byte CLICK[] = {(byte)'C'};
+  private static final byte KEYBOARD = (byte)'K';
+  private static final byte CLICK = (byte)'C';
   
   /*
    * Here are a number of pre-determined actions. These are the bytes for 
@@ -67,6 +76,8 @@ public class DispatcherSingleton {
    */
   private static final byte[] CLICK_LEFT = {(byte) 'L'};
   private static final byte[] CLICK_RIGHT = {(byte) 'R'};
+  private static final byte[] CLICK_PRESS = {(byte) 'D'};
+  private static final byte[] CLICK_RELEASE = {(byte) 'U'};
   private static final byte[] KEYCODE_DEL = {(byte) 178};
   private static final byte[] KEYCODE_ENTER = {(byte) 176};
   
@@ -76,7 +87,6 @@ public class DispatcherSingleton {
   public static final int numKeyBytes = 1;
   public static final int numMouseBytes = 3;
   public static final int numClickBytes = 1;
-  public static final int numSendBufferBytes = 1;
   /*
    * These are the arrays to hold info that will be passed. The general
    * concept of message passing is as follows: {255}{CHAR}{[ByteArray]}.
@@ -90,8 +100,6 @@ public class DispatcherSingleton {
   private final byte[] mouseBytes = new byte[numMouseBytes];
   private final byte[] clickBytes = new byte[numClickBytes];
   
-  private final byte[] sendBuffer = new byte[numSendBufferBytes];
-  
   private DispatcherSingleton(Context context, WorkerClass chatService) {
     this.mChatService = chatService;
     this.mContext = context;
@@ -125,16 +133,102 @@ public class DispatcherSingleton {
   }
   
   /**
-   * Sends the message char by char.
+   * Sends the message to be typed. It goes out as text frames of up to
+   * {@link FrameEncoder#MAX_TEXT_CHARS} chars each, in the bulk lane.
    * @param message
    */
   public void sendString(String message) {
-    if (message.length() > 0) {
-      for (int i = 0; i < message.length(); i++) {
-        keyBytes[0] = (byte)message.charAt(i);
-        sendKeyboard();
+    sendText(message, 0, message.length());
+  }
+  
+  /**
+   * Send the chars of text from start up to but not including end to be 
+   * typed. See {@link sendString}. This never waits, so it's safe on the UI
+   * thread: if the bulk lane fills up, eg because the link has stalled, the
+   * rest of the text is dropped and the user is told. It does spend send
+   * credits so that a file being sent at the same time will hold off.
+   * @param text
+   * @param start
+   * @param end
+   */
+  public void sendText(CharSequence text, int start, int end) {
+    if (end <= start) {
+      return;
+    }
+    mChatService.getSendCredits().consume(end - start);
+    int dropped = (end - start) - writeText(text, start, end, false);
+    if (dropped > 0 && getSession() != null) {
+      Toast.makeText(mContext, 
+          mContext.getString(R.string.text_dropped, dropped),
+          Toast.LENGTH_LONG).show();
+    }
+  }
+  
+  /**
+   * Write text frames for the chars of text from start up to end, without
+   * touching the send credits. A dongle that might not know text frames
+   * gets a key frame per char instead.
+   * @param wait true to wait for room when the bulk lane is full. Only a
+   * background thread may wait, as a stalled link can keep the lane full for
+   * as long as it likes. Otherwise the text stops at the first frame that
+   * doesn't fit, so that what does go out isn't missing chars in the middle.
+   * @return the number of chars queued
+   */
+  private int writeText(CharSequence text, int start, int end, 
+      boolean wait) {
+    FrameWriter writer = getWriter();
+    if (writer == null) {
+      return 0;
+    }
+    if (!dongleTakesText()) {
+      return writeKeys(writer, text, start, end, wait);
+    }
+    int written = start;
+    while (written < end) {
+      int count = Math.min(end - written, FrameEncoder.MAX_TEXT_CHARS);
+      boolean queued = wait ? writer.putText(text, written, count)
+          : writer.offerText(text, written, count);
+      if (!queued) {
+        Log.e(TAG, "couldn't queue text, dropped " + (end - written) 
+            + " chars");
+        break;
+      }
+      written += count;
+    }
+    return written - start;
+  }
+  
+  /**
+   * Write the chars of text from start up to end as key frames in the bulk
+   * lane, the way everything was typed before there were text frames. See
+   * {@link writeText}.
+   * @return the number of chars queued
+   */
+  private int writeKeys(FrameWriter writer, CharSequence text, int start,
+      int end, boolean wait) {
+    // Not keyBytes, as the UI thread and a SendFileTask can both get here
+    byte[] key = new byte[numKeyBytes];
+    for (int i = start; i < end; i++) {
+      key[0] = (byte) text.charAt(i);
+      boolean queued = wait ? writer.putBulk(KEYBOARD, key, numKeyBytes)
+          : writer.offer(FrameWriter.LANE_BULK, KEYBOARD, key, numKeyBytes);
+      if (!queued) {
+        Log.e(TAG, "couldn't queue keys, dropped " + (end - i) + " chars");
+        return i - start;
       }
     }
+    return end - start;
+  }
+  
+  /**
+   * @return true if the dongle can type text frames, as far as we can tell.
+   * One that has neither answered our hello nor granted any credits may be
+   * from before there were text frames.
+   */
+  private boolean dongleTakesText() {
+    ConnectedSession session = getSession();
+    return (session != null && session.isHelloAnswered())
+        || mChatService.getSendCredits().hasGranted();
   }
   
   /**
@@ -152,21 +246,42 @@ public class DispatcherSingleton {
    * @param character
    */
   public void sendKeyboard() {
-    sendDelimiter();
-    sendByte(KEYBOARD);
-    sendByte(keyBytes);
+    FrameWriter writer = getWriter();
+    if (writer == null) {
+      return;
+    }
+    // Keys jump ahead of text being typed unless that would put them out of
+    // order with it.
+    int lane = writer.hasBulkPending() 
+        ? FrameWriter.LANE_BULK : FrameWriter.LANE_INTERACTIVE;
+    sendFrame(writer, lane, KEYBOARD, keyBytes, numKeyBytes);
   }
   
+  /**
+   * Send the motion in the mouse bytes. See {@link sendMouse(int, int, int)}.
+   */
   public void sendMouse() {
-    sendDelimiter();
-    sendByte(MOUSE);
-    sendByte(mouseBytes);
+    sendMouse(mouseBytes[0], mouseBytes[1], mouseBytes[2]);
+  }
+  
+  /**
+   * Send mouse motion. Motion doesn't queue up behind older motion: if the 
+   * link is behind, it is added to whatever hasn't gone out yet. Deltas of
+   * more than 127 are split across as many frames as they need.
+   * @param dx
+   * @param dy
+   * @param wheel
+   */
+  public void sendMouse(int dx, int dy, int wheel) {
+    FrameWriter writer = getWriter();
+    if (writer == null) {
+      return;
+    }
+    writer.postMouse(dx, dy, wheel);
   }
   
   public void sendClick() {
-    sendDelimiter();
-    sendByte(CLICK);
-    sendByte(clickBytes);
+    sendFrame(FrameWriter.LANE_INTERACTIVE, CLICK, clickBytes, numClickBytes);
   }
   
   /**
@@ -220,26 +335,103 @@ public class DispatcherSingleton {
   }
   
   /**
-   * Write the delimiter to the pipe.
+   * Send a click of any type. Unlike {@link sendClick()} this doesn't use
+   * the shared click bytes, so it's safe from the TrackPad's sender thread.
+   * @param type 'L' or 'R' to click a button, or 'D' and 'U' to press and
+   * release the left one, eg to drag. See GestureEngine.
    */
-  private void sendDelimiter() {
-    sendByte(DELIMITER);
+  public void sendClick(int type) {
+    byte[] click;
+    switch (type) {
+    case GestureEngine.CLICK_LEFT:
+      click = CLICK_LEFT;
+      break;
+    case GestureEngine.CLICK_RIGHT:
+      click = CLICK_RIGHT;
+      break;
+    case GestureEngine.PRESS_LEFT:
+      click = CLICK_PRESS;
+      break;
+    case GestureEngine.RELEASE_LEFT:
+      click = CLICK_RELEASE;
+      break;
+    default:
+      Log.e(TAG, "unknown click type: " + type);
+      return;
+    }
+    sendFrame(FrameWriter.LANE_INTERACTIVE, CLICK, click, numClickBytes);
   }
   
   /**
-   * Sends a byte across the wire. Based on the original sendMessage().
-   * @param toSend
+   * Queues a whole frame to go across the wire. Based on the original 
+   * sendMessage(). This never waits on the socket, so it is safe to call
+   * from the UI thread.
+   * @param lane see {@link FrameWriter#offer}
+   * @param type
+   * @param payload
+   * @param payloadLength
    */
-  private void sendByte(byte[] toSend) {
-    // Check that we're actually connected before trying anything
-    if (mChatService.getState() != WorkerClass.STATE_CONNECTED) {
-      Log.e(TAG, "i'm so broke (and can't sendByte())");
+  private void sendFrame(int lane, byte type, byte[] payload, 
+      int payloadLength) {
+    FrameWriter writer = getWriter();
+    if (writer == null) {
+      return;
+    }
+    sendFrame(writer, lane, type, payload, payloadLength);
+  }
+  
+  private void sendFrame(FrameWriter writer, int lane, byte type, 
+      byte[] payload, int payloadLength) {
+    if (!writer.offer(lane, type, payload, payloadLength)) {
+      logDrop(writer);
+      return;
+    }
+    // Clicks and keys are what the user is waiting on, so don't let the
+    // writer hold them back to coalesce.
+    writer.requestFlush();
+  }
+  
+  /**
+   * Check that we're actually connected before trying anything.
+   * @return the writer for the connection, or null if we aren't connected
+   */
+  private FrameWriter getWriter() {
+    ConnectedSession session = getSession();
+    if (session == null) {
+      Log.e(TAG, "i'm so broke (and can't sendFrame())");
       Log.e(TAG, "WorkerClass state: " + mChatService.getState());
 //        Toast.makeText(mContext, R.string.not_connected, 
 //          Toast.LENGTH_SHORT).show();
-        return;
+      return null;
     }
-    mChatService.write(toSend);
+    return session.getWriter();
+  }
+  
+  /**
+   * The writer for the current connection, to see how busy it is. Unlike
+   * sending, finding we aren't connected here isn't worth a log line.
+   * @return the writer, or null if we aren't connected
+   */
+  public FrameWriter getFrameWriter() {
+    ConnectedSession session = getSession();
+    return (session == null) ? null : session.getWriter();
+  }
+  
+  /**
+   * @return the current session, or null if we aren't connected
+   */
+  private ConnectedSession getSession() {
+    ConnectedSession session = mSession;
+    if (session == null || !session.isOpen()) {
+      session = mChatService.getSession();
+      mSession = session;
+    }
+    return session;
+  }
+  
+  private void logDrop(FrameWriter writer) {
+    Log.e(TAG, "outbound queue full, dropped a frame. queued: " 
+        + writer.getQueueDepth() + " total drops: " + writer.getDrops());
   }
   
   /**
@@ -278,8 +470,10 @@ public class DispatcherSingleton {
     View dialogView = LayoutInflater.from(mContext).inflate(
       R.layout.sending_file_dialog,
       null);
-    TextView cancelMessage = 
-        (TextView) dialogView.findViewById(R.id.sending_file_dialog_text);
+    mActiveSendFileTask.progressBar = 
+        (ProgressBar) dialogView.findViewById(R.id.sending_file_progress);
+    mActiveSendFileTask.progressText = 
+        (TextView) dialogView.findViewById(R.id.sending_file_progress_text);
     Button cancelButton = 
         (Button) dialogView.findViewById(R.id.cancel_file_send_button);
     cancelButton.setOnClickListener(new OnClickListener() {
@@ -298,11 +492,17 @@ public class DispatcherSingleton {
   
   /**
    * Async task used to send a file.
+   * <p>
+   * The file is read through a FileChannel in large blocks and decoded a 
+   * block of chars at a time, rather than a char at a time through a 
+   * FileReader. Progress is published at most every 
+   * {@link TransferProgress#MIN_SAMPLE_MILLIS} as 
+   * [bytes sent, total bytes, chars per second, seconds left].
    * 
    * @author sudars
    * 
    */
-  public class SendFileTask extends AsyncTask<Object, Integer, Integer> {
+  public class SendFileTask extends AsyncTask<Object, Long, Integer> {
     
     private final String TAG = SendFileTask.class.getName();
 
@@ -314,36 +514,87 @@ public class DispatcherSingleton {
     final Integer EXCEPTION_CAUGHT = 2;
     final Integer USER_CANCELED = 3;
     
-    // This is just a local buffer we'll be changing in place to avoid having
-    // to malloc an array each time we send a character. In the case of 
-    // something like Hamlet, this would be a whole heap of bytes.
-    private byte[] keyBytesBuffer; 
+    // The size of the blocks we read from the file.
+    private static final int READ_BUFFER_BYTES = 64 * 1024;
+    // The size of the blocks we decode into chars. Progress within a block
+    // is interpolated, so this just needs to be big enough to make the 
+    // decoder calls cheap.
+    private static final int DECODE_BUFFER_CHARS = 4 * 1024;
+    
+    // How long to give the dongle to type each char before sending more, if
+    // it can't tell us itself.
+    private static final long MILLIS_PER_CHAR = 25;
+    // How long to wait for the dongle to grant more credits. If it hasn't 
+    // granted any by then it is an old dongle without flow control. If it 
+    // has, it has surely typed everything we sent and a grant got lost.
+    private static final long CREDIT_TIMEOUT_MILLIS = 1000;
+    
+    // The views in the dialog to show our progress in. Set before execute().
+    ProgressBar progressBar;
+    TextView progressText;
+    
+    private SendCredits mCredits;
+    private boolean mPaceOurselves;
+    private TransferProgress mProgress;
+    private long mCharsSent;
     
     //private SendFileTaskCallbacks mCaller;
 
     String filename = null;
 
     /**
-     * params expected to be [Integer].
+     * params expected to be [String], the name of the file.
      */
     @Override
     protected Integer doInBackground(Object... params) {
-      keyBytesBuffer = new byte[DispatcherSingleton.numKeyBytes];
       filename = (String) params[0];
       File toSend = new File(filename);
+      mCredits = mChatService.getSendCredits();
+      // A dongle that doesn't know text frames won't grant credits either,
+      // so don't wait for them. The chars go out as key frames.
+      mPaceOurselves = !dongleTakesText();
+      if (mPaceOurselves) {
+        Log.e(TAG, "old dongle, typing keys at " + MILLIS_PER_CHAR 
+            + "ms per char");
+      }
+      mCharsSent = 0;
+      FileInputStream in = null;
       try {
-        FileReader fr = new FileReader(toSend);
-        byte charToSend;
-        do {
-          charToSend = (byte) fr.read();
-          // NB: if numKeyBytes is ever > 1, we'll have to be sure to wipe out
-          // the old state before sending.
-          keyBytesBuffer[0] = charToSend;
-          setKeyBytes(keyBytesBuffer);
-          sendKeyboard();
-          Thread.sleep(25);
-        } while (!canceled && charToSend != (int) -1);
-        fr.close();
+        in = new FileInputStream(toSend);
+        FileChannel channel = in.getChannel();
+        mProgress = new TransferProgress(channel.size(), 
+            System.currentTimeMillis());
+        ByteBuffer bytes = ByteBuffer.allocate(READ_BUFFER_BYTES);
+        CharBuffer chars = CharBuffer.allocate(DECODE_BUFFER_CHARS);
+        // FileReader used the default charset, so we do too.
+        CharsetDecoder decoder = Charset.defaultCharset().newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        long bytesDecoded = 0;
+        boolean endOfInput = false;
+        while (!canceled) {
+          if (!endOfInput) {
+            endOfInput = channel.read(bytes) == -1;
+          }
+          bytes.flip();
+          int available = bytes.remaining();
+          decoder.decode(bytes, chars, endOfInput);
+          int blockBytes = available - bytes.remaining();
+          bytes.compact();
+          boolean done = endOfInput && bytes.position() == 0;
+          if (done) {
+            decoder.flush(chars);
+          }
+          chars.flip();
+          sendBlock(chars, bytesDecoded, blockBytes);
+          bytesDecoded += blockBytes;
+          chars.clear();
+          if (done) {
+            break;
+          }
+        }
+        publishProgress(mProgress.getBytesDone(), mProgress.getTotalBytes(),
+            mProgress.getCharsPerSecond(), mProgress.getEtaSeconds());
         if (canceled) {
           return USER_CANCELED;
         }
@@ -360,12 +611,100 @@ public class DispatcherSingleton {
         // TODO Auto-generated catch block
         e.printStackTrace();
         return EXCEPTION_CAUGHT;
+      } finally {
+        if (in != null) {
+          try {
+            in.close();
+          } catch (IOException e) {
+            Log.e(TAG, "couldn't close file: " + filename);
+          }
+        }
+      }
+    }
+    
+    /**
+     * Send all the chars remaining in block as text frames, as fast as the
+     * dongle lets us.
+     * @param block
+     * @param bytesBefore the bytes of the file decoded before this block
+     * @param blockBytes the bytes of the file this block was decoded from
+     * @throws InterruptedException
+     */
+    private void sendBlock(CharBuffer block, long bytesBefore, int blockBytes) 
+        throws InterruptedException {
+      int blockChars = block.remaining();
+      while (!canceled && block.hasRemaining()) {
+        int count = takeCredits(
+            Math.min(block.remaining(), FrameEncoder.MAX_TEXT_CHARS));
+        if (count == 0) {
+          continue;
+        }
+        // NB: a CharBuffer's chars are indexed from its position.
+        writeText(block, 0, count, true);
+        block.position(block.position() + count);
+        if (mPaceOurselves) {
+          Thread.sleep(MILLIS_PER_CHAR * count);
+        }
+        mCharsSent += count;
+        long sentOfBlock = blockChars - block.remaining();
+        long bytesDone = bytesBefore + blockBytes * sentOfBlock / blockChars;
+        if (mProgress.update(bytesDone, mCharsSent, 
+            System.currentTimeMillis())) {
+          publishProgress(bytesDone, mProgress.getTotalBytes(),
+              mProgress.getCharsPerSecond(), mProgress.getEtaSeconds());
+        }
+      }
+    }
+    
+    /**
+     * Wait for the dongle to let us send up to wanted chars.
+     * @param wanted
+     * @return the number of chars we may send, or 0 if we should try again
+     * @throws InterruptedException
+     */
+    private int takeCredits(int wanted) throws InterruptedException {
+      if (mPaceOurselves) {
+        return wanted;
+      }
+      int count = mCredits.acquire(wanted, CREDIT_TIMEOUT_MILLIS);
+      if (count == 0) {
+        if (mCredits.hasGranted()) {
+          Log.e(TAG, "timed out waiting for credits, refilling");
+          mCredits.refill();
+        } else {
+          // It answered the hello, so it does know text frames
+          Log.e(TAG, "dongle isn't granting credits, pacing at " 
+              + MILLIS_PER_CHAR + "ms per char");
+          mPaceOurselves = true;
+        }
       }
+      return count;
     }
 
     @Override
-    protected void onProgressUpdate(Integer... progress) {
-
+    protected void onProgressUpdate(Long... progress) {
+      long bytesDone = progress[0];
+      long totalBytes = progress[1];
+      long charsPerSecond = progress[2];
+      long etaSeconds = progress[3];
+      if (progressBar != null && totalBytes > 0) {
+        progressBar.setProgress((int) (bytesDone * progressBar.getMax() 
+            / totalBytes));
+      }
+      if (progressText != null) {
+        String done = Formatter.formatFileSize(mContext, bytesDone);
+        String total = Formatter.formatFileSize(mContext, totalBytes);
+        if (charsPerSecond < 0 || etaSeconds < 0) {
+          progressText.setText(mContext.getString(
+              R.string.sending_file_progress_estimating, done, total));
+        } else {
+          String eta = String.format("%d:%02d", etaSeconds / 60, 
+              etaSeconds % 60);
+          progressText.setText(mContext.getString(
+              R.string.sending_file_progress, done, total, charsPerSecond,
+              eta));
+        }
+      }
     }
 
     @Override
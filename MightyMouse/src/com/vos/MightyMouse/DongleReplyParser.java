@@ -0,0 +1,113 @@
+package com.vos.MightyMouse;
+
+/**
+ * Parses the replies that come back from the dongle over Serial1. Every reply
+ * is a single letter followed by comma separated ints in angle brackets, eg
+ * "E<1,5,77>" for an error printed by printError() in SerialProtocol.ino, or
+ * "G<32>" when the dongle grants more send credits. Anything else, like the
+ * line endings, is skipped.
+ * <p>
+ * Bytes can be fed in whatever chunks they are read in. Nothing is allocated
+ * while parsing, so the listener must copy out anything it wants to keep
+ * from the args array.
+ */
+public class DongleReplyParser {
+
+  /**
+   * Called for every complete reply.
+   */
+  public interface Listener {
+    /**
+     * @param type the letter the reply started with
+     * @param args the values in the brackets. Only valid during the call.
+     * @param argCount the number of valid entries in args
+     */
+    void onReply(char type, int[] args, int argCount);
+  }
+
+  // No reply from the dongle has more than this many values.
+  private static final int MAX_ARGS = 4;
+
+  // Parser states
+  private static final int WAIT_FOR_TYPE = 0;
+  private static final int WAIT_FOR_OPEN = 1;
+  private static final int IN_ARGS = 2;
+
+  private final Listener mListener;
+  private final int[] mArgs = new int[MAX_ARGS];
+  private int mArgCount;
+  private char mType;
+  private int mState;
+  // The value currently being read.
+  private int mValue;
+  private boolean mNegative;
+
+  public DongleReplyParser(Listener listener) {
+    this.mListener = listener;
+    this.mState = WAIT_FOR_TYPE;
+  }
+
+  /**
+   * Feed count bytes of buffer, starting at offset, to the parser.
+   * @param buffer
+   * @param offset
+   * @param count
+   */
+  public void feed(byte[] buffer, int offset, int count) {
+    for (int i = offset; i < offset + count; i++) {
+      feed(buffer[i]);
+    }
+  }
+
+  public void feed(byte b) {
+    char c = (char) (b & 0xff);
+    switch (mState) {
+      case WAIT_FOR_TYPE:
+        if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z')) {
+          mType = c;
+          mState = WAIT_FOR_OPEN;
+        }
+        break;
+      case WAIT_FOR_OPEN:
+        if (c == '<') {
+          mArgCount = 0;
+          startValue();
+          mState = IN_ARGS;
+        } else {
+          mState = WAIT_FOR_TYPE;
+          // This might be the start of the next reply.
+          feed(b);
+        }
+        break;
+      case IN_ARGS:
+        if (c >= '0' && c <= '9') {
+          mValue = mValue * 10 + (c - '0');
+        } else if (c == '-') {
+          mNegative = true;
+        } else if (c == ',') {
+          endValue();
+        } else if (c == '>') {
+          endValue();
+          mState = WAIT_FOR_TYPE;
+          mListener.onReply(mType, mArgs, mArgCount);
+        } else {
+          // Garbled, so drop it.
+          mState = WAIT_FOR_TYPE;
+        }
+        break;
+    }
+  }
+
+  private void startValue() {
+    mValue = 0;
+    mNegative = false;
+  }
+
+  private void endValue() {
+    if (mArgCount < MAX_ARGS) {
+      mArgs[mArgCount++] = mNegative ? -mValue : mValue;
+    }
+    startValue();
+  }
+
+}
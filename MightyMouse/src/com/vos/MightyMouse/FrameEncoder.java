@@ -0,0 +1,197 @@
+package com.vos.MightyMouse;
+
+/**
+ * Encodes outgoing frames into a caller's buffer, so that a whole frame goes
+ * out in one write. The FrameWriter gathers several encoded frames into a
+ * single write on top of that.
+ * <p>
+ * There are two versions of the protocol. In version 1 a frame looks like
+ * {255}{TYPE}{payload...}. The trouble is that 255 is also a perfectly good
+ * payload byte (a mouse move of -1), and when one turns up the dongle takes
+ * it as the start of a new frame and throws away the one it was reading.
+ * <p>
+ * In version 2 the frame {TYPE}{payload...}{CRC-8} is COBS encoded, which
+ * gets rid of every 0 in it, and then ends with a single 0. A 0 can only
+ * ever mean the end of a frame, and the CRC catches anything the radio
+ * mangles. Frames are far shorter than 254 bytes, so COBS always adds
+ * exactly one byte, and that byte is never 255, which is how the dongle
+ * tells a version 2 frame from a version 1 one. The app starts out in
+ * version 1 and says {@link HELLO} to find out if the dongle knows better.
+ */
+public class FrameEncoder {
+
+  // The 255 is a value we will never pass in a type byte, so we use it as a
+  // delimiter.
+  public static final byte DELIMITER = (byte) 255;
+
+  // The delimiter plus the type byte.
+  public static final int HEADER_BYTES = 2;
+
+  public static final int PROTOCOL_V1 = 1;
+  public static final int PROTOCOL_V2 = 2;
+  // The newest version we can speak.
+  public static final int PROTOCOL_LATEST = PROTOCOL_V2;
+
+  // On top of the version 1 header: the COBS code byte, the CRC and the
+  // terminating 0. The delimiter isn't sent.
+  private static final int V2_EXTRA_BYTES = 2;
+  private static final byte V2_TERMINATOR = 0;
+
+  // Asks the dongle which protocol it speaks: {255}{'V'}{our latest}. A
+  // dongle that knows replies "V<version>". Older ones just complain about
+  // the type, and we stay on version 1.
+  public static final byte HELLO = (byte) 'V';
+
+  // A mouse move: {255}{'M'}{x}{y}{wheel}.
+  public static final byte MOUSE = (byte) 'M';
+  public static final int MOUSE_PAYLOAD_BYTES = 3;
+
+  // A run of text to be typed: {255}{'T'}{length}{chars...}. This is much
+  // cheaper than a {255}{'K'}{char} frame per character. The dongle buffers
+  // the whole run before typing it, so keep this in sync with MAX_TEXT_CHARS
+  // in SerialProtocol.ino.
+  public static final byte TEXT = (byte) 'T';
+  public static final int MAX_TEXT_CHARS = 32;
+  // Typed in place of anything the dongle's Keyboard can't print.
+  private static final byte UNPRINTABLE = (byte) '?';
+
+  private static final int[] CRC_TABLE = new int[256];
+  static {
+    // CRC-8 with polynomial x^8 + x^2 + x + 1 (0x07), no reflection, starting
+    // from 0. SerialProtocol.ino does the same thing a bit at a time.
+    for (int i = 0; i < 256; i++) {
+      int crc = i;
+      for (int bit = 0; bit < 8; bit++) {
+        crc = ((crc & 0x80) != 0) ? (crc << 1) ^ 0x07 : crc << 1;
+      }
+      CRC_TABLE[i] = crc & 0xff;
+    }
+  }
+
+  /**
+   * The number of bytes a frame will take on the wire.
+   * @param version {@link PROTOCOL_V1} or {@link PROTOCOL_V2}
+   * @param payloadLength
+   * @return
+   */
+  public static int frameLength(int version, int payloadLength) {
+    int length = HEADER_BYTES + payloadLength;
+    return (version == PROTOCOL_V1) ? length : length + V2_EXTRA_BYTES;
+  }
+
+  /**
+   * Encode a single frame into dst, starting at offset. No check on the room
+   * left in dst is performed.
+   * @param version {@link PROTOCOL_V1} or {@link PROTOCOL_V2}
+   * @param dst
+   * @param offset
+   * @param type one of the frame type bytes, eg 'M'
+   * @param payload
+   * @param payloadOffset
+   * @param payloadLength
+   * @return the number of bytes written
+   */
+  public static int encode(int version, byte[] dst, int offset, byte type,
+      byte[] payload, int payloadOffset, int payloadLength) {
+    dst[offset + 1] = type;
+    System.arraycopy(payload, payloadOffset, dst, offset + HEADER_BYTES,
+        payloadLength);
+    return finish(version, dst, offset, 1 + payloadLength);
+  }
+
+  /**
+   * The number of bytes a text frame carrying count chars will take on the
+   * wire.
+   * @param version
+   * @param count
+   * @return
+   */
+  public static int textFrameLength(int version, int count) {
+    return frameLength(version, 1 + count);
+  }
+
+  /**
+   * Encode a text frame into dst, starting at offset. No check on the room
+   * left in dst is performed. Only ASCII can be typed by the dongle, so 
+   * anything else is sent as a '?'. That also means a version 1 text frame
+   * can never contain the delimiter.
+   * @param version {@link PROTOCOL_V1} or {@link PROTOCOL_V2}
+   * @param dst
+   * @param offset
+   * @param text
+   * @param start index of the first char of text to send
+   * @param count the number of chars to send, at most {@link MAX_TEXT_CHARS}
+   * @return the number of bytes written
+   */
+  public static int encodeText(int version, byte[] dst, int offset,
+      CharSequence text, int start, int count) {
+    dst[offset + 1] = TEXT;
+    dst[offset + 2] = (byte) count;
+    int out = offset + 3;
+    for (int i = start; i < start + count; i++) {
+      char c = text.charAt(i);
+      dst[out++] = (c < 128) ? (byte) c : UNPRINTABLE;
+    }
+    return finish(version, dst, offset, 2 + count);
+  }
+
+  /**
+   * Turn the type and payload sitting at offset + 1 into a whole frame.
+   * @param version
+   * @param dst
+   * @param offset
+   * @param bodyLength the length of the type and payload
+   * @return the length of the frame
+   */
+  private static int finish(int version, byte[] dst, int offset,
+      int bodyLength) {
+    if (version == PROTOCOL_V1) {
+      dst[offset] = DELIMITER;
+      return 1 + bodyLength;
+    }
+    int crcAt = offset + 1 + bodyLength;
+    dst[crcAt] = crc8(dst, offset + 1, bodyLength);
+    int length = cobs(dst, offset, bodyLength + 1);
+    dst[offset + length] = V2_TERMINATOR;
+    return length + 1;
+  }
+
+  /**
+   * CRC-8 of some bytes. See {@link CRC_TABLE}.
+   * @param buffer
+   * @param offset
+   * @param length
+   * @return
+   */
+  public static byte crc8(byte[] buffer, int offset, int length) {
+    int crc = 0;
+    for (int i = offset; i < offset + length; i++) {
+      crc = CRC_TABLE[(crc ^ buffer[i]) & 0xff];
+    }
+    return (byte) crc;
+  }
+
+  /**
+   * COBS encode, in place, the length bytes starting at offset + 1. The 
+   * code bytes are written where each run of non-zero bytes began, so the
+   * output is one byte longer and starts at offset. Only works for fewer
+   * than 254 bytes, which is all a frame ever is.
+   * @param buffer
+   * @param offset
+   * @param length
+   * @return the number of bytes written, ie length + 1
+   */
+  private static int cobs(byte[] buffer, int offset, int length) {
+    int code = offset;
+    int end = offset + 1 + length;
+    for (int i = offset + 1; i < end; i++) {
+      if (buffer[i] == 0) {
+        buffer[code] = (byte) (i - code);
+        code = i;
+      }
+    }
+    buffer[code] = (byte) (end - code);
+    return length + 1;
+  }
+
+}
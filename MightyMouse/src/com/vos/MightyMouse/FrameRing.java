@@ -0,0 +1,188 @@
+package com.vos.MightyMouse;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded queue of outgoing frames that any number of threads can add to
+ * without locking, and that a single thread (the FrameWriter) drains.
+ * <p>
+ * Each frame lives in a fixed size slot of one big preallocated array, so
+ * nothing is allocated per frame. A producer {@link claim}s a slot, encodes
+ * its frame straight into {@link getBuffer} at {@link slotOffset}, and then
+ * {@link publish}es it. Every slot has a sequence number that says whose turn
+ * it is to touch it, which is what makes this safe without locks (this is
+ * the usual bounded MPMC queue design, with a single consumer).
+ * <p>
+ * When the ring is full, frames are dropped rather than blocking the caller.
+ * Drops are counted.
+ */
+public class FrameRing {
+
+  // The biggest frame a slot can hold.
+  public static final int SLOT_BYTES = 64;
+
+  private final int mMask;
+  private final byte[] mBuffer;
+  private final int[] mLengths;
+  // The position each slot is waiting for. A slot at position p is free for
+  // a producer when its sequence is p, and ready for the consumer when it is
+  // p + 1.
+  private final AtomicLongArray mSequences;
+  // The next position a producer will claim.
+  private final AtomicLong mTail = new AtomicLong();
+  // The next position the consumer will take. Only the consumer writes it.
+  private volatile long mHead;
+  private final AtomicLong mDrops = new AtomicLong();
+
+  /**
+   * @param capacity the number of frames the ring can hold. Must be a power
+   * of two.
+   */
+  public FrameRing(int capacity) {
+    if (Integer.bitCount(capacity) != 1) {
+      throw new IllegalArgumentException("capacity must be a power of two: "
+          + capacity);
+    }
+    this.mMask = capacity - 1;
+    this.mBuffer = new byte[capacity * SLOT_BYTES];
+    this.mLengths = new int[capacity];
+    this.mSequences = new AtomicLongArray(capacity);
+    for (int i = 0; i < capacity; i++) {
+      mSequences.set(i, i);
+    }
+  }
+
+  /**
+   * Claim a slot to encode a frame into. The caller must {@link publish} it,
+   * and it should do so promptly as the consumer can't get past it until it
+   * does.
+   * @return the slot, or -1 if the ring is full, in which case the frame is
+   * counted as dropped.
+   */
+  public int claim() {
+    while (true) {
+      long position = mTail.get();
+      int slot = (int) (position & mMask);
+      long difference = mSequences.get(slot) - position;
+      if (difference == 0) {
+        if (mTail.compareAndSet(position, position + 1)) {
+          return slot;
+        }
+      } else if (difference < 0) {
+        // The consumer hasn't freed this slot from the last time around.
+        mDrops.incrementAndGet();
+        return -1;
+      }
+      // Otherwise another producer beat us to it, so try the next one.
+    }
+  }
+
+  /**
+   * The array all the slots live in. See {@link slotOffset}.
+   */
+  public byte[] getBuffer() {
+    return mBuffer;
+  }
+
+  /**
+   * The index in {@link getBuffer} where a slot starts. The slot is
+   * {@link SLOT_BYTES} long.
+   * @param slot
+   * @return
+   */
+  public int slotOffset(int slot) {
+    return slot * SLOT_BYTES;
+  }
+
+  /**
+   * Hand a claimed slot over to the consumer.
+   * @param slot
+   * @param length the number of bytes of the frame in the slot
+   */
+  public void publish(int slot, int length) {
+    mLengths[slot] = length;
+    // While we hold it the slot's sequence is still its position. Setting
+    // the sequence also makes the frame bytes visible to the consumer.
+    mSequences.set(slot, mSequences.get(slot) + 1);
+  }
+
+  /**
+   * Copy a frame that is already encoded into the ring.
+   * @param src
+   * @param offset
+   * @param length at most {@link SLOT_BYTES}
+   * @return false if the ring was full and the frame was dropped
+   */
+  public boolean offer(byte[] src, int offset, int length) {
+    if (length > SLOT_BYTES) {
+      throw new IllegalArgumentException("frame too big: " + length);
+    }
+    int slot = claim();
+    if (slot < 0) {
+      return false;
+    }
+    System.arraycopy(src, offset, mBuffer, slotOffset(slot), length);
+    publish(slot, length);
+    return true;
+  }
+
+  /**
+   * Consumer only.
+   * @return the length of the next frame, or -1 if there isn't one ready
+   */
+  public int peekLength() {
+    long head = mHead;
+    int slot = (int) (head & mMask);
+    if (mSequences.get(slot) != head + 1) {
+      return -1;
+    }
+    return mLengths[slot];
+  }
+
+  /**
+   * Consumer only. Copy the next frame into dst and free its slot.
+   * @param dst
+   * @param offset
+   * @return the length of the frame, or -1 if there wasn't one ready
+   */
+  public int poll(byte[] dst, int offset) {
+    long head = mHead;
+    int slot = (int) (head & mMask);
+    if (mSequences.get(slot) != head + 1) {
+      return -1;
+    }
+    int length = mLengths[slot];
+    System.arraycopy(mBuffer, slotOffset(slot), dst, offset, length);
+    // Free it up for the producer that gets this position next time around.
+    mSequences.set(slot, head + mMask + 1);
+    mHead = head + 1;
+    return length;
+  }
+
+  public boolean isEmpty() {
+    return peekLength() < 0;
+  }
+
+  /**
+   * @return true if a {@link claim} right now would find no free slot
+   */
+  public boolean isFull() {
+    return mTail.get() - mHead > mMask;
+  }
+
+  /**
+   * @return the number of frames claimed but not yet taken by the consumer
+   */
+  public int getDepth() {
+    return (int) Math.max(0, mTail.get() - mHead);
+  }
+
+  /**
+   * @return the number of frames dropped because the ring was full
+   */
+  public long getDrops() {
+    return mDrops.get();
+  }
+
+}
@@ -0,0 +1,509 @@
+package com.vos.MightyMouse;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Owns the only thread that writes to the connection's Transport.
+ * <p>
+ * Anyone who wants to send something (the UI thread, the TrackPad's sender,
+ * the SendFileTask) encodes a frame into a FrameRing and returns right
+ * away, so a stalled socket can never freeze them. The writer thread drains
+ * as many ready frames as fit into its buffer and writes them out in one go,
+ * then parks until there is more to do.
+ * <p>
+ * There are two lanes. The interactive lane (clicks, single keys) is always
+ * drained first. Bulk frames (typing a string or a file) are only taken one
+ * at a time when the interactive lane is empty, so the mouse keeps working
+ * while a long file is being typed.
+ * <p>
+ * Mouse motion doesn't queue at all. It is added to a MouseMailbox, and
+ * whatever is pending there goes out at the end of the next write. If the
+ * link falls behind, motion is merged rather than played back late. Motion
+ * never crosses an interactive frame, though: queueing a click or a key
+ * first moves whatever motion is pending into the interactive lane in front
+ * of it, so that a drag's press, moves and release go out in that order.
+ * <p>
+ * Optionally the writer can coalesce: once it has something to send, it
+ * waits up to {@link setCoalescing a deadline} for more frames so that a
+ * burst goes out as one radio packet instead of many tiny ones. Frames that
+ * can't wait ask for a {@link requestFlush flush}.
+ */
+public class FrameWriter implements Runnable {
+
+  /**
+   * Told about what the writer does. Called on the writer thread.
+   */
+  public interface Listener {
+    /**
+     * @param buffer holds the bytes that were written. Reused for the next
+     * write, so copy anything you want to keep.
+     * @param offset the index of the first byte written
+     * @param length the number of bytes written
+     */
+    void onWrite(byte[] buffer, int offset, int length);
+    void onWriteFailed(IOException e);
+  }
+
+  // The lanes a frame can be sent in.
+  public static final int LANE_INTERACTIVE = 0;
+  public static final int LANE_BULK = 1;
+
+  // Must be powers of two.
+  private static final int INTERACTIVE_RING_FRAMES = 64;
+  private static final int BULK_RING_FRAMES = 256;
+  // The most we'll gather into a single write.
+  private static final int WRITE_BUFFER_BYTES = 8 * FrameRing.SLOT_BYTES;
+  // Room at the end of the write buffer for mouse frames, which are only
+  // taken from the mailbox right before the write.
+  private static final int MOUSE_RESERVE_FRAMES = 8;
+  private static final int MOUSE_RESERVE_BYTES = MOUSE_RESERVE_FRAMES
+      * FrameEncoder.frameLength(FrameEncoder.PROTOCOL_LATEST,
+          FrameEncoder.MOUSE_PAYLOAD_BYTES);
+  // The most bulk bytes we'll put in a single write. A write can block 
+  // while the radio drains it, and interactive frames that turn up in the
+  // meantime have to wait for the next one, so keep bulk writes short.
+  private static final int MAX_BULK_BYTES_PER_WRITE = 2 * FrameRing.SLOT_BYTES;
+  // How often to look for room again while waiting to queue bulk text.
+  private static final long BULK_WAIT_NANOS = 1000000L;
+
+  private final Transport mTransport;
+  private final Listener mListener;
+  private final FrameRing mInteractive = 
+      new FrameRing(INTERACTIVE_RING_FRAMES);
+  private final FrameRing mBulk = new FrameRing(BULK_RING_FRAMES);
+  private final MouseMailbox mMouse = new MouseMailbox();
+  private final byte[] mWriteBuffer = new byte[WRITE_BUFFER_BYTES];
+  // Only touched by the writer thread.
+  private final byte[] mMouseBytes = 
+      new byte[FrameEncoder.MOUSE_PAYLOAD_BYTES];
+  private int mBulkBytesGathered;
+  // Set when a frame was left behind because it didn't fit this write.
+  private boolean mGatherFull;
+
+  // How long to wait for more frames before writing. 0 writes right away.
+  private volatile long mCoalesceNanos;
+  // Write as soon as this much has been gathered, deadline or not.
+  private volatile int mFlushThresholdBytes = 
+      WRITE_BUFFER_BYTES - MOUSE_RESERVE_BYTES;
+  private volatile boolean mFlushRequested;
+
+  // The protocol frames are encoded in. Frames already queued keep the
+  // version they were encoded in, which is fine as the dongle takes both.
+  private volatile int mProtocolVersion = FrameEncoder.PROTOCOL_V1;
+
+  private volatile boolean mKeepRunning;
+  // True while the writer is parked, or about to be.
+  private volatile boolean mWaiting;
+  private volatile Thread mThread;
+
+  private final AtomicLong mFramesWritten = new AtomicLong();
+  private final AtomicLong mBytesWritten = new AtomicLong();
+  private final AtomicLong mWrites = new AtomicLong();
+  private final AtomicLong mWriteNanos = new AtomicLong();
+
+  public FrameWriter(Transport transport, Listener listener) {
+    this.mTransport = transport;
+    this.mListener = listener;
+  }
+
+  /**
+   * Start the writer thread.
+   */
+  public void start() {
+    mKeepRunning = true;
+    Thread thread = new Thread(this, "FrameWriter");
+    mThread = thread;
+    thread.start();
+  }
+
+  /**
+   * Stop the writer thread. Anything still queued is thrown away.
+   */
+  public void stop() {
+    mKeepRunning = false;
+    Thread thread = mThread;
+    if (thread != null) {
+      LockSupport.unpark(thread);
+    }
+  }
+
+  /**
+   * Set up coalescing. Can be changed while the writer is running.
+   * @param deadlineNanos the longest to hold a write back waiting for more
+   * frames, or 0 to write as soon as there is anything to write
+   * @param thresholdBytes write as soon as this many bytes are gathered
+   */
+  public void setCoalescing(long deadlineNanos, int thresholdBytes) {
+    mCoalesceNanos = Math.max(0, deadlineNanos);
+    mFlushThresholdBytes = 
+        Math.min(thresholdBytes, WRITE_BUFFER_BYTES - MOUSE_RESERVE_BYTES);
+  }
+
+  /**
+   * Encode frames queued from now on in another version of the protocol.
+   * Only switch once the dongle has said it understands it.
+   * @param version see {@link FrameEncoder#PROTOCOL_V1}
+   */
+  public void setProtocolVersion(int version) {
+    mProtocolVersion = version;
+  }
+
+  public int getProtocolVersion() {
+    return mProtocolVersion;
+  }
+
+  /**
+   * Ask for whatever is gathered to be written without waiting out the
+   * coalescing deadline. Call it after offering a frame that shouldn't
+   * wait, like a click.
+   */
+  public void requestFlush() {
+    mFlushRequested = true;
+    wake();
+  }
+
+  /**
+   * Queue a frame. See {@link FrameEncoder#encode}.
+   * @param lane {@link LANE_INTERACTIVE} or {@link LANE_BULK}
+   * @return false if the queue was full and the frame was dropped
+   */
+  public boolean offer(int lane, byte type, byte[] payload, 
+      int payloadLength) {
+    if (lane == LANE_INTERACTIVE) {
+      fenceMouse();
+    }
+    FrameRing ring = ring(lane);
+    int slot = ring.claim();
+    if (slot < 0) {
+      return false;
+    }
+    int length = FrameEncoder.encode(mProtocolVersion, ring.getBuffer(),
+        ring.slotOffset(slot), type, payload, 0, payloadLength);
+    ring.publish(slot, length);
+    wake();
+    return true;
+  }
+
+  /**
+   * Add mouse motion to what is waiting to be sent. This is merged with any
+   * motion that hasn't gone out yet, and split into as many frames as it
+   * needs when it does.
+   * @param dx
+   * @param dy
+   * @param wheel
+   */
+  public void postMouse(int dx, int dy, int wheel) {
+    mMouse.post(dx, dy, wheel);
+    wake();
+  }
+
+  /**
+   * Queue a text frame in the bulk lane. See {@link FrameEncoder#encodeText}.
+   * @return false if the queue was full and the frame was dropped
+   */
+  public boolean offerText(CharSequence text, int start, int count) {
+    int slot = mBulk.claim();
+    if (slot < 0) {
+      return false;
+    }
+    int length = FrameEncoder.encodeText(mProtocolVersion, 
+        mBulk.getBuffer(), mBulk.slotOffset(slot), text, start, count);
+    mBulk.publish(slot, length);
+    wake();
+    return true;
+  }
+
+  /**
+   * Queue a text frame in the bulk lane like {@link offerText}, but if the
+   * lane is full wait for the writer to make room rather than dropping it,
+   * the way writing straight to the socket used to block. The lane holds
+   * a lot of text, so this only waits when far more has been queued than
+   * the dongle can type, or the link has stalled, in which case it waits
+   * for as long as the link does. So never call it on the UI thread.
+   * @return false if the writer was stopped, or the calling thread
+   * interrupted, before there was room
+   */
+  public boolean putText(CharSequence text, int start, int count) {
+    while (mBulk.isFull() || !offerText(text, start, count)) {
+      if (!waitForBulkRoom()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Queue a frame in the bulk lane, waiting for room like {@link putText}.
+   * See {@link FrameEncoder#encode}.
+   * @return false if the writer was stopped, or the calling thread
+   * interrupted, before there was room
+   */
+  public boolean putBulk(byte type, byte[] payload, int payloadLength) {
+    while (mBulk.isFull() || !offer(LANE_BULK, type, payload, payloadLength)) {
+      if (!waitForBulkRoom()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Give the writer a moment to make room in the bulk lane.
+   * @return false if it's no use waiting
+   */
+  private boolean waitForBulkRoom() {
+    if (!mKeepRunning || Thread.currentThread().isInterrupted()) {
+      return false;
+    }
+    LockSupport.parkNanos(BULK_WAIT_NANOS);
+    return true;
+  }
+
+  /**
+   * Queue bytes that are already encoded.
+   * @param lane {@link LANE_INTERACTIVE} or {@link LANE_BULK}
+   * @return false if the queue was full and the bytes were dropped
+   */
+  public boolean offer(int lane, byte[] buffer, int offset, int length) {
+    if (lane == LANE_INTERACTIVE) {
+      fenceMouse();
+    }
+    if (!ring(lane).offer(buffer, offset, length)) {
+      return false;
+    }
+    wake();
+    return true;
+  }
+
+  /**
+   * @return true if there are bulk frames still waiting to be written. Keys
+   * typed while this is true should go in the bulk lane too, so they don't
+   * jump ahead of text typed before them.
+   */
+  public boolean hasBulkPending() {
+    return !mBulk.isEmpty();
+  }
+
+  /**
+   * Move the pending mouse motion into the interactive lane, so that it
+   * goes out before the frame about to be queued there, and motion posted
+   * after that frame can't get ahead of it in the next write. Bulk frames
+   * don't need this: they wait behind the interactive lane anyway.
+   */
+  private void fenceMouse() {
+    if (mMouse.isEmpty()) {
+      return;
+    }
+    // Any thread can get here. Motion is only pending this way when a click
+    // or key follows a move, which isn't often enough to be worth keeping
+    // a buffer per thread for.
+    byte[] bytes = new byte[FrameEncoder.MOUSE_PAYLOAD_BYTES];
+    while (mMouse.take(bytes)) {
+      int slot = mInteractive.claim();
+      if (slot < 0) {
+        // The frame after it will be dropped too. Leave the motion for the
+        // next write.
+        mMouse.post(bytes[0], bytes[1], bytes[2]);
+        return;
+      }
+      int length = FrameEncoder.encode(mProtocolVersion,
+          mInteractive.getBuffer(), mInteractive.slotOffset(slot),
+          FrameEncoder.MOUSE, bytes, 0, FrameEncoder.MOUSE_PAYLOAD_BYTES);
+      mInteractive.publish(slot, length);
+    }
+  }
+
+  private FrameRing ring(int lane) {
+    return (lane == LANE_BULK) ? mBulk : mInteractive;
+  }
+
+  private void wake() {
+    if (mWaiting) {
+      Thread thread = mThread;
+      if (thread != null) {
+        LockSupport.unpark(thread);
+      }
+    }
+  }
+
+  @Override
+  public void run() {
+    while (mKeepRunning) {
+      int length = gather(0);
+      if (length == 0 && mMouse.isEmpty()) {
+        // Nothing to do. Say we're waiting before the last look, so that a
+        // producer who publishes after it is sure to unpark us.
+        mWaiting = true;
+        if (isIdle() && mKeepRunning) {
+          LockSupport.park(this);
+        }
+        mWaiting = false;
+        continue;
+      }
+      long coalesceNanos = mCoalesceNanos;
+      if (coalesceNanos > 0) {
+        length = coalesce(length, System.nanoTime() + coalesceNanos);
+      }
+      mFlushRequested = false;
+      writeOut(length);
+    }
+  }
+
+  /**
+   * Keep gathering frames until the deadline passes, the buffer is full 
+   * enough, or someone asks for a flush.
+   * @param length the bytes gathered so far
+   * @param deadline in terms of System.nanoTime()
+   * @return the bytes gathered
+   */
+  private int coalesce(int length, long deadline) {
+    while (mKeepRunning && !mFlushRequested && !mGatherFull
+        && length < mFlushThresholdBytes) {
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0) {
+        break;
+      }
+      mWaiting = true;
+      if (mInteractive.isEmpty() && mBulk.isEmpty() && !mFlushRequested) {
+        // Mouse motion may wake us too, but it just merges while we wait.
+        LockSupport.parkNanos(this, remaining);
+      }
+      mWaiting = false;
+      length = gather(length);
+    }
+    return length;
+  }
+
+  private boolean isIdle() {
+    return mMouse.isEmpty() && mInteractive.isEmpty() && mBulk.isEmpty();
+  }
+
+  /**
+   * Take as many whole frames as fit into the write buffer after the bytes
+   * already gathered: interactive frames first, then bulk frames one at a
+   * time, looking for new interactive frames in between. Mouse motion is
+   * left in the mailbox until {@link writeOut}, so that it keeps merging.
+   * @param length the bytes gathered so far, from the start of the buffer
+   * @return the bytes gathered
+   */
+  private int gather(int length) {
+    int capacity = mWriteBuffer.length - MOUSE_RESERVE_BYTES;
+    int frames = 0;
+    while (true) {
+      int next = mInteractive.peekLength();
+      if (next >= 0) {
+        if (length + next > capacity) {
+          mGatherFull = true;
+          break;
+        }
+        length += mInteractive.poll(mWriteBuffer, length);
+        frames++;
+        continue;
+      }
+      next = mBulk.peekLength();
+      if (next < 0) {
+        break;
+      }
+      if (length + next > capacity
+          || mBulkBytesGathered + next > MAX_BULK_BYTES_PER_WRITE) {
+        mGatherFull = true;
+        break;
+      }
+      int taken = mBulk.poll(mWriteBuffer, length);
+      length += taken;
+      mBulkBytesGathered += taken;
+      frames++;
+    }
+    mFramesWritten.addAndGet(frames);
+    return length;
+  }
+
+  /**
+   * Put the pending mouse motion after the gathered frames, and write the
+   * lot. Motion still in the mailbox was posted after every interactive
+   * frame queued so far, or {@link fenceMouse} would have moved it into the
+   * lane in front of one.
+   * @param length the bytes gathered
+   */
+  private void writeOut(int length) {
+    int version = mProtocolVersion;
+    int mouseFrames = 0;
+    while (mouseFrames < MOUSE_RESERVE_FRAMES && mMouse.take(mMouseBytes)) {
+      length += FrameEncoder.encode(version, mWriteBuffer, length,
+          FrameEncoder.MOUSE, mMouseBytes, 0, 
+          FrameEncoder.MOUSE_PAYLOAD_BYTES);
+      mouseFrames++;
+    }
+    mFramesWritten.addAndGet(mouseFrames);
+    mBulkBytesGathered = 0;
+    mGatherFull = false;
+    if (length == 0) {
+      return;
+    }
+    try {
+      long writeStart = System.nanoTime();
+      mTransport.write(mWriteBuffer, 0, length);
+      mWriteNanos.addAndGet(System.nanoTime() - writeStart);
+      mWrites.incrementAndGet();
+      mBytesWritten.addAndGet(length);
+      mListener.onWrite(mWriteBuffer, 0, length);
+    } catch (IOException e) {
+      mListener.onWriteFailed(e);
+    }
+  }
+
+  /**
+   * @return the number of frames waiting to be written, in both lanes
+   */
+  public int getQueueDepth() {
+    return mInteractive.getDepth() + mBulk.getDepth();
+  }
+
+  /**
+   * @return true if there is mouse motion that hasn't been written yet
+   */
+  public boolean isMousePending() {
+    return !mMouse.isEmpty();
+  }
+
+  /**
+   * @return the number of bulk frames waiting to be written
+   */
+  public int getBulkQueueDepth() {
+    return mBulk.getDepth();
+  }
+
+  /**
+   * @return the number of frames dropped because a lane was full
+   */
+  public long getDrops() {
+    return mInteractive.getDrops() + mBulk.getDrops();
+  }
+
+  public long getFramesWritten() {
+    return mFramesWritten.get();
+  }
+
+  public long getBytesWritten() {
+    return mBytesWritten.get();
+  }
+
+  /**
+   * @return the number of writes to the Transport
+   */
+  public long getWrites() {
+    return mWrites.get();
+  }
+
+  /**
+   * @return the total time spent in writes to the Transport, in
+   * nanoseconds. A write only takes long once the link's buffers are full,
+   * so this grows quickly when we're sending more than the link can carry.
+   */
+  public long getWriteNanos() {
+    return mWriteNanos.get();
+  }
+
+}
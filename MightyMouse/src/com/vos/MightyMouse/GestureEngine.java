@@ -0,0 +1,244 @@
+package com.vos.MightyMouse;
+
+/**
+ * Turns taps on the TrackPad into clicks, so that the click buttons aren't
+ * the only way to click:
+ * <ul>
+ * <li>A tap is a left click.
+ * <li>A tap with two fingers is a right click.
+ * <li>Two taps are two clicks, which the computer makes a double click.
+ * <li>A tap and then a finger held down straight after it presses the left
+ * button, and lifting the finger releases it, so that things can be
+ * dragged.
+ * </ul>
+ * A tap is a touch that is over within {@link setTapMillis} and never gets
+ * further than {@link setTouchSlop} from where it went down. Nobody can tell
+ * whether a tap is going to be a drag until {@link setDragMillis} after it,
+ * so that's how long its click waits. 0 clicks as soon as the finger goes
+ * up, and leaves out dragging.
+ * <p>
+ * It works on the same samples as the MouseSender, on the sender's thread,
+ * from the flags the TouchAggregator puts on them. Times are event times,
+ * in milliseconds. {@link advance} sends clicks that have waited long
+ * enough, and {@link getDeadline} says when the next one will have.
+ * Nothing is allocated.
+ */
+public class GestureEngine implements SampleRing.Visitor {
+
+  /**
+   * Where the clicks go.
+   */
+  public interface Output {
+    /**
+     * @param type one of the click types, eg {@link CLICK_LEFT}
+     */
+    void sendClick(int type);
+  }
+
+  // The click types, as the dongle knows them.
+  public static final int CLICK_LEFT = 'L';
+  public static final int CLICK_RIGHT = 'R';
+  public static final int PRESS_LEFT = 'D';
+  public static final int RELEASE_LEFT = 'U';
+
+  public static final long DEFAULT_TAP_MILLIS = 180;
+  public static final long DEFAULT_DRAG_MILLIS = 200;
+  public static final float DEFAULT_TOUCH_SLOP = 8f;
+
+  // What getDeadline() says when nothing is waiting.
+  public static final long NO_DEADLINE = Long.MAX_VALUE;
+
+  // No finger down, and nothing waiting.
+  private static final int IDLE = 0;
+  // A finger is down, and it could still be a tap.
+  private static final int TOUCHING = 1;
+  // A finger is down, and it's just moving the pointer, or scrolling.
+  private static final int POINTING = 2;
+  // A tap, waiting to see if a drag follows it.
+  private static final int TAPPED = 3;
+  // A finger went down straight after a tap, and the button is down.
+  private static final int PRESSED = 4;
+
+  private final Output mOutput;
+
+  private volatile long mTapMillis = DEFAULT_TAP_MILLIS;
+  private volatile long mDragMillis = DEFAULT_DRAG_MILLIS;
+  private volatile float mTouchSlop = DEFAULT_TOUCH_SLOP;
+
+  private int mState = IDLE;
+  private long mDownTime;
+  private long mUpTime;
+  // How far the finger is from where it went down.
+  private float mX;
+  private float mY;
+  // True while the touch could still be a tap.
+  private boolean mStill;
+  private boolean mTwoFingers;
+
+  public GestureEngine(Output output) {
+    this.mOutput = output;
+  }
+
+  /**
+   * @param millis the longest a finger can be down for a tap
+   */
+  public void setTapMillis(long millis) {
+    this.mTapMillis = millis;
+  }
+
+  /**
+   * @param millis how long after a tap a finger can go down to drag, and so
+   * how long a tap's click waits. 0 for no dragging.
+   */
+  public void setDragMillis(long millis) {
+    this.mDragMillis = millis;
+  }
+
+  public long getDragMillis() {
+    return mDragMillis;
+  }
+
+  /**
+   * @param pixels how far a finger can wander in x or y and still tap
+   */
+  public void setTouchSlop(float pixels) {
+    this.mTouchSlop = pixels;
+  }
+
+  @Override
+  public void onSample(float dx, float dy, float wheel, int flags,
+      long time) {
+    // Motion on a sample happened before whatever its flags say.
+    if (mState == TOUCHING || mState == PRESSED) {
+      mX += dx;
+      mY += dy;
+      float slop = mTouchSlop;
+      if (wheel != 0 || Math.abs(mX) > slop || Math.abs(mY) > slop) {
+        moved();
+      }
+    }
+    if ((flags & TouchAggregator.FLAG_SCROLL) != 0) {
+      mTwoFingers = true;
+    }
+    boolean ending = (flags
+        & (TouchAggregator.FLAG_UP | TouchAggregator.FLAG_CANCEL)) != 0;
+    boolean down = (flags & TouchAggregator.FLAG_DOWN) != 0;
+    if (ending && down && (mState == IDLE || mState == TAPPED)) {
+      // Both in one sample only if the ring was full, which loses their
+      // order. There was no finger, so it must have gone down first.
+      down(time);
+      down = false;
+    }
+    if (ending) {
+      up(time, (flags & TouchAggregator.FLAG_CANCEL) != 0);
+    }
+    if (down) {
+      down(time);
+    }
+  }
+
+  /**
+   * Send the tap's click if it has waited long enough for a drag.
+   * @param now
+   */
+  public void advance(long now) {
+    if (mState == TAPPED && now >= mUpTime + mDragMillis) {
+      mState = IDLE;
+      mOutput.sendClick(CLICK_LEFT);
+    }
+  }
+
+  /**
+   * @return when {@link advance} will next have something to do, or
+   * {@link NO_DEADLINE}
+   */
+  public long getDeadline() {
+    return (mState == TAPPED) ? mUpTime + mDragMillis : NO_DEADLINE;
+  }
+
+  /**
+   * Forget the touch going on, eg because the sender is stopping. Lets go
+   * of the button if it's down.
+   */
+  public void reset() {
+    if (mState == PRESSED) {
+      mOutput.sendClick(RELEASE_LEFT);
+    }
+    mState = IDLE;
+  }
+
+  private void down(long time) {
+    switch (mState) {
+    case TAPPED:
+      if (time - mUpTime <= mDragMillis) {
+        mOutput.sendClick(PRESS_LEFT);
+        mState = PRESSED;
+        startTouch(time);
+        return;
+      }
+      // Nobody called advance() in time. The tap's click is late, but it
+      // still goes before anything this touch does.
+      mOutput.sendClick(CLICK_LEFT);
+      mState = TOUCHING;
+      startTouch(time);
+      return;
+    case IDLE:
+      mState = TOUCHING;
+      startTouch(time);
+      return;
+    default:
+      // The finger left after the others went up. It's the same touch.
+      return;
+    }
+  }
+
+  private void up(long time, boolean cancelled) {
+    boolean tap = !cancelled && mStill && time - mDownTime <= mTapMillis;
+    switch (mState) {
+    case TOUCHING:
+      if (!tap) {
+        mState = IDLE;
+      } else if (mTwoFingers) {
+        mState = IDLE;
+        mOutput.sendClick(CLICK_RIGHT);
+      } else if (mDragMillis <= 0) {
+        mState = IDLE;
+        mOutput.sendClick(CLICK_LEFT);
+      } else {
+        mState = TAPPED;
+        mUpTime = time;
+      }
+      return;
+    case PRESSED:
+      mState = IDLE;
+      mOutput.sendClick(RELEASE_LEFT);
+      if (tap) {
+        // It was a second tap, not a drag. The press and release were its
+        // click, and this is the first one's.
+        mOutput.sendClick(CLICK_LEFT);
+      }
+      return;
+    case POINTING:
+      mState = IDLE;
+      return;
+    default:
+      return;
+    }
+  }
+
+  private void startTouch(long time) {
+    mDownTime = time;
+    mX = 0;
+    mY = 0;
+    mStill = true;
+    mTwoFingers = false;
+  }
+
+  private void moved() {
+    mStill = false;
+    if (mState == TOUCHING) {
+      mState = POINTING;
+    }
+  }
+
+}
@@ -0,0 +1,283 @@
+package com.vos.MightyMouse;
+
+import java.io.IOException;
+
+/**
+ * Works out how to talk to a dongle once we're connected: which version of
+ * the protocol it speaks, and how fast its Serial1 can go.
+ * <p>
+ * Out of the box the dongle talks to its radio at 9600 baud, which is only
+ * about 960 bytes a second once the radio is done with it. Raising the rate
+ * goes like this:
+ * <ol>
+ * <li>We send {@link BAUD} with the index of a rate in {@link BAUD_RATES}.
+ * <li>The dongle replies "B<index>" at the old rate, then switches.
+ * <li>We send {@link PROBE} with a value of our choosing. If it gets through
+ * at the new rate, the dongle keeps the rate and echoes "P<value>".
+ * <li>If the probe doesn't turn up in time the dongle goes back to the old
+ * rate on its own, and we try the next rate down.
+ * </ol>
+ * The last rate that worked is remembered for each device, so next time we
+ * go straight to it.
+ * <p>
+ * Over the radio, only the dongle's end changes rate, and its radio has to
+ * change with it, which the sketch only knows how to do once someone has
+ * filled in configureRadio() for their radio. Until then a failed rate just
+ * garbles the link for a couple of seconds, so we only try if the dongle's
+ * hello says {@link FEATURE_RADIO_RATE}. Over a wire our end has to change
+ * as well, which is what a {@link RateFollower} is for, and there's no radio
+ * to worry about.
+ * <p>
+ * This runs on its own thread, as it spends most of its time waiting for
+ * replies. The connection's reply parser hands it replies through
+ * {@link onReply}.
+ */
+public class LinkNegotiator implements Runnable {
+
+  /**
+   * Remembers the last rate that worked for each device.
+   */
+  public interface RateStore {
+    /**
+     * @param address
+     * @return the last rate that worked, or 0 if we've never tried
+     */
+    int getLastGoodRate(String address);
+    void setLastGoodRate(String address, int rate);
+  }
+
+  /**
+   * Our end of a link that has to run at the same rate as the dongle's
+   * Serial1, eg a serial port wired to it.
+   */
+  public interface RateFollower {
+    /**
+     * Switch to a new rate, once the dongle has.
+     * @param baudRate
+     * @throws IOException if we can't
+     */
+    void followRate(int baudRate) throws IOException;
+  }
+
+  // Frame types, in the same family as FrameEncoder's.
+  public static final byte BAUD = (byte) 'B';
+  public static final byte PROBE = (byte) 'P';
+
+  // The rates the dongle knows, by index. Keep in sync with baudRates in
+  // SerialProtocol.ino. The first is what it starts out at.
+  public static final int[] BAUD_RATES = { 9600, 19200, 38400, 57600, 115200 };
+  public static final int BASE_RATE = BAUD_RATES[0];
+
+  // Bits in the second value of the hello reply, "V<version,features>".
+  // Dongles from before there were any only send the version. Keep in sync
+  // with SerialProtocol.ino.
+  public static final int FEATURE_RADIO_RATE = 1;
+
+  // How long to wait for the dongle to answer.
+  private static final long REPLY_TIMEOUT_MILLIS = 1000;
+  // How long the dongle waits for a probe before going back to the old
+  // rate. Keep in sync with BAUD_VERIFY_MILLIS in SerialProtocol.ino.
+  private static final long VERIFY_WINDOW_MILLIS = 2000;
+  // Give the dongle and its radio this long to switch before probing.
+  private static final long SETTLE_MILLIS = 100;
+  private static final int PROBES_PER_RATE = 3;
+  // Each failed rate garbles the link for a couple of seconds, so don't
+  // try too many.
+  private static final int MAX_FAILED_RATES = 2;
+
+  private final FrameWriter mWriter;
+  private final String mAddress;
+  private final RateStore mStore;
+  private final byte[] mPayload = new byte[1];
+  private volatile RateFollower mFollower;
+
+  // The reply we're waiting for, and what it said.
+  private char mExpected;
+  private int mReplyValue;
+  private int mReplyFeatures;
+  private boolean mHaveReply;
+  private volatile boolean mCancelled;
+  private volatile int mBaudRate = BASE_RATE;
+
+  /**
+   * @param writer the connection's writer
+   * @param address the address of the device we're connected to
+   * @param store
+   */
+  public LinkNegotiator(FrameWriter writer, String address, RateStore store) {
+    this.mWriter = writer;
+    this.mAddress = address;
+    this.mStore = store;
+  }
+
+  /**
+   * Have our end of the link change rate along with the dongle's. Call
+   * before {@link run}.
+   * @param follower
+   */
+  public void setRateFollower(RateFollower follower) {
+    this.mFollower = follower;
+  }
+
+  /**
+   * Stop negotiating, eg because the connection went away.
+   */
+  public synchronized void cancel() {
+    mCancelled = true;
+    notifyAll();
+  }
+
+  /**
+   * @return the rate the dongle's Serial1 is running at, as far as we know
+   */
+  public int getBaudRate() {
+    return mBaudRate;
+  }
+
+  /**
+   * Look at a reply from the dongle.
+   * @return true if it was meant for us, so nobody else needs to see it
+   */
+  public synchronized boolean onReply(char type, int[] args, int argCount) {
+    if (type != FrameEncoder.HELLO && type != BAUD && type != PROBE) {
+      return false;
+    }
+    if (type == mExpected && argCount > 0 && !mHaveReply) {
+      mReplyValue = args[0];
+      mReplyFeatures = (argCount > 1) ? args[1] : 0;
+      mHaveReply = true;
+      notifyAll();
+    }
+    return true;
+  }
+
+  @Override
+  public void run() {
+    try {
+      int version = hello();
+      if (version < 0) {
+        // An old dongle. It doesn't know how to change rate either.
+        return;
+      }
+      mWriter.setProtocolVersion(version);
+      if (mFollower == null && (mReplyFeatures & FEATURE_RADIO_RATE) == 0) {
+        // Its radio can't follow it to another rate
+        return;
+      }
+      negotiateRate();
+    } catch (InterruptedException e) {
+      // We were told to stop, so we're done
+    }
+  }
+
+  /**
+   * Ask the dongle which protocol it speaks.
+   * @return the version to use, or -1 if it didn't answer
+   * @throws InterruptedException
+   */
+  private int hello() throws InterruptedException {
+    mPayload[0] = (byte) FrameEncoder.PROTOCOL_LATEST;
+    int version = request(FrameEncoder.HELLO, REPLY_TIMEOUT_MILLIS);
+    if (version < FrameEncoder.PROTOCOL_V1) {
+      return -1;
+    }
+    return Math.min(version, FrameEncoder.PROTOCOL_LATEST);
+  }
+
+  private void negotiateRate() throws InterruptedException {
+    int remembered = mStore.getLastGoodRate(mAddress);
+    if (remembered == BASE_RATE) {
+      // Either that's all this dongle can do, or we gave up on it before
+      return;
+    }
+    int failed = 0;
+    for (int i = BAUD_RATES.length - 1; i > 0 && failed < MAX_FAILED_RATES;
+        i--) {
+      if (remembered > 0 && BAUD_RATES[i] > remembered) {
+        // Only try what worked last time and below
+        continue;
+      }
+      if (tryRate(i)) {
+        mBaudRate = BAUD_RATES[i];
+        mStore.setLastGoodRate(mAddress, mBaudRate);
+        return;
+      }
+      failed++;
+    }
+    mStore.setLastGoodRate(mAddress, BASE_RATE);
+  }
+
+  /**
+   * Ask the dongle to switch to a rate, and check that it works.
+   * @param index into {@link BAUD_RATES}
+   * @return true if the dongle is now running at that rate
+   * @throws InterruptedException
+   */
+  private boolean tryRate(int index) throws InterruptedException {
+    mPayload[0] = (byte) index;
+    if (request(BAUD, REPLY_TIMEOUT_MILLIS) != index) {
+      return false;
+    }
+    long switchedAt = System.currentTimeMillis();
+    RateFollower follower = mFollower;
+    boolean followed =
+        (follower == null) || follow(follower, BAUD_RATES[index]);
+    Thread.sleep(SETTLE_MILLIS);
+    long probeTimeout =
+        (VERIFY_WINDOW_MILLIS - SETTLE_MILLIS) / PROBES_PER_RATE;
+    for (int i = 1; followed && i <= PROBES_PER_RATE; i++) {
+      mPayload[0] = (byte) (index * 16 + i);
+      if (request(PROBE, probeTimeout) == mPayload[0]) {
+        return true;
+      }
+    }
+    // Let the dongle give up on the rate before we try another
+    long left = switchedAt + VERIFY_WINDOW_MILLIS - System.currentTimeMillis();
+    if (left > 0) {
+      Thread.sleep(left);
+    }
+    if (follower != null) {
+      follow(follower, mBaudRate);
+    }
+    return false;
+  }
+
+  private boolean follow(RateFollower follower, int baudRate) {
+    try {
+      follower.followRate(baudRate);
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Send a frame with mPayload and wait for the dongle to answer it.
+   * @param type
+   * @param timeoutMillis
+   * @return the value in the reply, or -1 if there wasn't one in time
+   * @throws InterruptedException
+   */
+  private synchronized int request(byte type, long timeoutMillis)
+      throws InterruptedException {
+    mExpected = (char) type;
+    mHaveReply = false;
+    if (!mWriter.offer(FrameWriter.LANE_INTERACTIVE, type, mPayload, 1)) {
+      return -1;
+    }
+    mWriter.requestFlush();
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    while (!mHaveReply) {
+      long remaining = deadline - System.currentTimeMillis();
+      if (mCancelled) {
+        throw new InterruptedException();
+      }
+      if (remaining <= 0) {
+        return -1;
+      }
+      wait(remaining);
+    }
+    return mReplyValue;
+  }
+
+}
@@ -0,0 +1,199 @@
+package com.vos.MightyMouse;
+
+/**
+ * Leads the pointer ahead of the finger, to make up for the time a move
+ * takes to get from the finger to the screen it moves the pointer on. An
+ * alpha-beta-gamma filter follows the pointer's path, and the pointer is
+ * sent to where the filter says it will be {@link setLeadMillis} from now,
+ * instead of where it is. The difference is the lead, and each update says
+ * how much the lead changed, to add to the motion sent.
+ * <p>
+ * Whatever lead was added is always taken away again: as the finger slows
+ * the lead shrinks with it, and when the finger stops or goes up the rest
+ * is taken back all at once with {@link settle}. So over a whole stroke the
+ * pointer moves exactly as far as it would have without prediction.
+ * <p>
+ * It follows the motion that is sent, ie after acceleration, so that lead
+ * added at one gain isn't taken away at another. Times are event times in
+ * milliseconds. Only the sending thread may use it, except for the
+ * settings.
+ */
+public class MotionPredictor {
+
+  // How far ahead a typical link needs leading: a touch frame, a mouse
+  // frame over RFCOMM and the dongle's serial, and the host's next frame.
+  public static final long DEFAULT_LEAD_MILLIS = 30;
+  // The most the pointer is ever led, in counts. A flick can't overshoot
+  // by more than this.
+  public static final float DEFAULT_MAX_LEAD = 40f;
+  // No samples for this long means the finger has stopped, even if it's
+  // still down.
+  public static final long STOP_MILLIS = 40;
+
+  // What getDeadline() says when there's no lead to take back.
+  public static final long NO_DEADLINE = Long.MAX_VALUE;
+
+  // How much to believe each new sample over the filter's prediction, for
+  // position, velocity and acceleration.
+  private static final float ALPHA = 0.7f;
+  private static final float BETA = 0.3f;
+  private static final float GAMMA = 0.02f;
+  // Samples closer together than this in time are merged, so that dt can
+  // be divided by.
+  private static final long MIN_DT_MILLIS = 1;
+
+  private volatile long mLeadMillis;
+  private volatile float mMaxLead = DEFAULT_MAX_LEAD;
+
+  // Where the pointer has been sent, not counting the lead.
+  private float mPositionX;
+  private float mPositionY;
+  private long mLastTime;
+  private boolean mTracking;
+
+  // The filter's estimate of the pointer's position, velocity (counts per
+  // ms) and acceleration (counts per ms^2).
+  private float mX;
+  private float mY;
+  private float mVX;
+  private float mVY;
+  private float mAX;
+  private float mAY;
+
+  // The lead sent so far.
+  private float mLeadX;
+  private float mLeadY;
+
+  // How much the lead changed in the last update or settle, to add to the
+  // motion sent.
+  private float mShiftX;
+  private float mShiftY;
+
+  /**
+   * @param millis how far ahead to lead the pointer. 0, the default, turns
+   * prediction off.
+   */
+  public void setLeadMillis(long millis) {
+    this.mLeadMillis = millis;
+  }
+
+  public long getLeadMillis() {
+    return mLeadMillis;
+  }
+
+  /**
+   * @param counts the most to lead the pointer by, in x or y
+   */
+  public void setMaxLead(float counts) {
+    this.mMaxLead = counts;
+  }
+
+  /**
+   * The pointer moved. Afterwards {@link getShiftX} and {@link getShiftY}
+   * are how much further to move it, for the change in the lead.
+   * @param dx counts, as they'll be sent
+   * @param dy
+   * @param time the event time of the newest sample in the motion
+   */
+  public void update(float dx, float dy, long time) {
+    mPositionX += dx;
+    mPositionY += dy;
+    long lead = mLeadMillis;
+    if (!mTracking || lead <= 0) {
+      // Start following from here. Only differences in position matter,
+      // so start from 0 to keep the floats precise.
+      mPositionX = 0;
+      mPositionY = 0;
+      mX = 0;
+      mY = 0;
+      mVX = 0;
+      mVY = 0;
+      mAX = 0;
+      mAY = 0;
+      mLastTime = time;
+      mTracking = lead > 0;
+      shiftTo(0, 0);
+      return;
+    }
+    float dt = Math.max(time - mLastTime, MIN_DT_MILLIS);
+    mLastTime = Math.max(time, mLastTime);
+    // Predict where the pointer is now, then correct by how far off that
+    // was
+    float predictedX = mX + (mVX + 0.5f * mAX * dt) * dt;
+    float predictedY = mY + (mVY + 0.5f * mAY * dt) * dt;
+    float residualX = mPositionX - predictedX;
+    float residualY = mPositionY - predictedY;
+    mX = predictedX + ALPHA * residualX;
+    mY = predictedY + ALPHA * residualY;
+    mVX += mAX * dt + BETA * residualX / dt;
+    mVY += mAY * dt + BETA * residualY / dt;
+    mAX += 2 * GAMMA * residualX / (dt * dt);
+    mAY += 2 * GAMMA * residualY / (dt * dt);
+    // Where it'll be lead from now, relative to where it is
+    float ahead = lead;
+    float leadX = mX - mPositionX + (mVX + 0.5f * mAX * ahead) * ahead;
+    float leadY = mY - mPositionY + (mVY + 0.5f * mAY * ahead) * ahead;
+    shiftTo(clamp(leadX), clamp(leadY));
+  }
+
+  /**
+   * The finger stopped or went up, so take back all of the lead.
+   * Afterwards {@link getShiftX} and {@link getShiftY} are how far to move
+   * the pointer to do it.
+   * @return true if there was any lead to take back
+   */
+  public boolean settle() {
+    mTracking = false;
+    shiftTo(0, 0);
+    return mShiftX != 0 || mShiftY != 0;
+  }
+
+  /**
+   * Settle if the finger seems to have stopped.
+   * @param now
+   * @return true if it settled, as for {@link settle}
+   */
+  public boolean advance(long now) {
+    if (now >= getDeadline()) {
+      return settle();
+    }
+    return false;
+  }
+
+  /**
+   * @return when the finger will be taken to have stopped, if there's lead
+   * to take back, or {@link NO_DEADLINE}
+   */
+  public long getDeadline() {
+    if (mLeadX == 0 && mLeadY == 0) {
+      return NO_DEADLINE;
+    }
+    return mLastTime + STOP_MILLIS;
+  }
+
+  public float getShiftX() {
+    return mShiftX;
+  }
+
+  public float getShiftY() {
+    return mShiftY;
+  }
+
+  private void shiftTo(float leadX, float leadY) {
+    mShiftX = leadX - mLeadX;
+    mShiftY = leadY - mLeadY;
+    mLeadX = leadX;
+    mLeadY = leadY;
+  }
+
+  private float clamp(float lead) {
+    float max = mMaxLead;
+    if (lead > max) {
+      return max;
+    } else if (lead < -max) {
+      return -max;
+    }
+    return lead;
+  }
+
+}
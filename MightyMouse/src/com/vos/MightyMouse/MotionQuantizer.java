@@ -0,0 +1,77 @@
+package com.vos.MightyMouse;
+
+/**
+ * Turns the finger's motion, in fractions of a pixel, into the whole counts
+ * a mouse report carries, without losing any of it:
+ * <ul>
+ * <li>What rounding leaves over is carried to the next time, so slow motion
+ * adds up to whole counts instead of being rounded away, or rounded up into
+ * counts the finger never moved.
+ * <li>More than {@link MAX_DELTA} is split over as many reports as it needs,
+ * one after the other, instead of being cut off.
+ * </ul>
+ * Only the thread that sends may use it.
+ */
+public class MotionQuantizer {
+
+  // A mouse report can't move further than this in one go.
+  public static final int MAX_DELTA = 127;
+
+  // What was left over last time, always within half a count.
+  private float mRemainderX;
+  private float mRemainderY;
+  private float mRemainderWheel;
+
+  /**
+   * Quantize motion and send it.
+   * @param dx
+   * @param dy
+   * @param wheel in wheel counts, which go in the same reports
+   * @param output gets each report
+   * @return the number of reports sent, 0 if it all went into the remainder
+   */
+  public int send(float dx, float dy, float wheel,
+      MouseSender.Output output) {
+    float x = mRemainderX + dx;
+    float y = mRemainderY + dy;
+    float w = mRemainderWheel + wheel;
+    int countsX = Math.round(x);
+    int countsY = Math.round(y);
+    int countsWheel = Math.round(w);
+    mRemainderX = x - countsX;
+    mRemainderY = y - countsY;
+    mRemainderWheel = w - countsWheel;
+    int reports = 0;
+    while (countsX != 0 || countsY != 0 || countsWheel != 0) {
+      int reportX = clamp(countsX);
+      int reportY = clamp(countsY);
+      int reportWheel = clamp(countsWheel);
+      output.sendMouse(reportX, reportY, reportWheel);
+      countsX -= reportX;
+      countsY -= reportY;
+      countsWheel -= reportWheel;
+      reports++;
+    }
+    return reports;
+  }
+
+  /**
+   * Forget what was left over, eg because the pointer was moved some other
+   * way.
+   */
+  public void reset() {
+    mRemainderX = 0;
+    mRemainderY = 0;
+    mRemainderWheel = 0;
+  }
+
+  private static int clamp(int counts) {
+    if (counts > MAX_DELTA) {
+      return MAX_DELTA;
+    } else if (counts < -MAX_DELTA) {
+      return -MAX_DELTA;
+    }
+    return counts;
+  }
+
+}
@@ -18,6 +18,11 @@
 
 package com.vos.MightyMouse;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
 import android.app.ActionBar;
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
@@ -299,6 +304,9 @@ public class MouseAndKeyboardActivity extends Activity {
     // We need to be sure to stop the thread sending the mouse.
     mTrackPadView.stopSendingThread();
     mTrackPadView.waitUntilStop();
+    if (mTrackPadView.isRecording()) {
+      stopTouchRecording();
+    }
     if (D) Log.e(TAG, "-- ON STOP --");
   }
 
@@ -313,6 +321,37 @@ public class MouseAndKeyboardActivity extends Activity {
     if (D) Log.e(TAG, "--- ON DESTROY ---");
   }
 
+  /**
+   * Start or stop recording the trackpad's touches to a trace file, which
+   * can be replayed off the phone with the benchmarks' TouchReplay.
+   * @return true if we're now recording
+   */
+  private boolean toggleTouchRecording() {
+    if (mTrackPadView.isRecording()) {
+      stopTouchRecording();
+      return false;
+    }
+    File dir = getExternalFilesDir(null);
+    if (dir == null) {
+      // No external storage, so keep it to ourselves
+      dir = getFilesDir();
+    }
+    File file = new File(dir, "touches-" + System.currentTimeMillis()
+        + ".trace");
+    try {
+      mTrackPadView.startRecording(
+          new BufferedOutputStream(new FileOutputStream(file)));
+    } catch (IOException e) {
+      Log.e(TAG, "couldn't record touches to " + file, e);
+      Toast.makeText(this, R.string.cant_record_touches,
+          Toast.LENGTH_SHORT).show();
+      return false;
+    }
+    Toast.makeText(this, getString(R.string.recording_touches,
+        file.getPath()), Toast.LENGTH_LONG).show();
+    return true;
+  }
+
   private void ensureDiscoverable() {
     if (D) Log.d(TAG, "ensure discoverable");
     if (mBluetoothAdapter.getScanMode() != 
@@ -382,8 +421,8 @@ public class MouseAndKeyboardActivity extends Activity {
           break;
         case MESSAGE_WRITE:
           byte[] writeBuf = (byte[]) msg.obj;
-          // construct a string from the buffer
-          String writeMessage = new String(writeBuf);
+          // construct a string from the valid bytes in the buffer
+          String writeMessage = new String(writeBuf, msg.arg2, msg.arg1);
           break;
         case MESSAGE_READ:
           byte[] readBuf = (byte[]) msg.obj;
@@ -441,6 +480,15 @@ public class MouseAndKeyboardActivity extends Activity {
     }
   }
 
+  /**
+   * Finish the trace being recorded, and say how much went into it.
+   */
+  private void stopTouchRecording() {
+    long events = mTrackPadView.stopRecording();
+    Toast.makeText(this, getString(R.string.recorded_touches, events),
+        Toast.LENGTH_SHORT).show();
+  }
+
   private void connectDevice(Intent data, boolean secure) {
     // Get the device MAC address
     String address = 
@@ -458,6 +506,19 @@ public class MouseAndKeyboardActivity extends Activity {
     return true;
   }
 
+  @Override
+  public boolean onPrepareOptionsMenu(Menu menu) {
+    // Recording also stops when we go into the background, so don't go by
+    // what the item was left at
+    menu.findItem(R.id.check_box_record_touches)
+        .setChecked(mTrackPadView.isRecording());
+    if (mChatService != null) {
+      menu.findItem(R.id.check_box_coalesce_writes)
+          .setChecked(mChatService.getCoalesceMicros() > 0);
+    }
+    return super.onPrepareOptionsMenu(menu);
+  }
+
   @Override
   public boolean onOptionsItemSelected(MenuItem item) {
     Intent serverIntent = null;
@@ -482,6 +543,32 @@ public class MouseAndKeyboardActivity extends Activity {
         item.setChecked(mAutoSend);
         if (D) Log.d(TAG, "mAutoSend state changed to: " + mAutoSend);
         return true;
+      case R.id.check_box_pointer_acceleration:
+        boolean accelerate = !item.isChecked();
+        mTrackPadView.setAcceleration(accelerate
+            ? AccelerationCurve.DEFAULT : AccelerationCurve.LINEAR);
+        item.setChecked(accelerate);
+        return true;
+      case R.id.check_box_predict_motion:
+        boolean predict = !item.isChecked();
+        mTrackPadView.setPredictionMillis(predict
+            ? MotionPredictor.DEFAULT_LEAD_MILLIS : 0);
+        item.setChecked(predict);
+        return true;
+      case R.id.check_box_coalesce_writes:
+        // Fewer, bigger radio packets, for moves at least, at the cost of
+        // holding them back a little
+        boolean coalesce = !item.isChecked();
+        if (mChatService != null) {
+          mChatService.setCoalescing(
+              coalesce ? WorkerClass.COALESCE_MICROS : 0,
+              WorkerClass.COALESCE_THRESHOLD_BYTES);
+        }
+        item.setChecked(coalesce);
+        return true;
+      case R.id.check_box_record_touches:
+        item.setChecked(toggleTouchRecording());
+        return true;
       case R.id.launch_ten_key:
         Intent tenKeyIntent = new Intent(this, TenKeyActivity.class);
         startActivity(tenKeyIntent);
@@ -0,0 +1,105 @@
+package com.vos.MightyMouse;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the mouse motion that hasn't been sent yet. Rather than queueing a
+ * frame per move, which would play back stale motion when the link falls
+ * behind, new motion is added to whatever is still pending. The writer takes
+ * it out a frame at a time right before it writes, so the newest motion is
+ * never stuck behind older motion.
+ * <p>
+ * The pending x, y and wheel are packed into a single long so that posting
+ * and taking are lock-free.
+ */
+public class MouseMailbox {
+
+  // Each value gets this many bits of the long.
+  private static final int BITS = 21;
+  private static final long MASK = (1L << BITS) - 1;
+  // Pending motion is clamped to this so it can't overflow its bits.
+  private static final int LIMIT = (1 << (BITS - 1)) - 1;
+  // The most a single mouse frame can carry on each axis.
+  public static final int MAX_FRAME_DELTA = 127;
+
+  private final AtomicLong mPending = new AtomicLong();
+
+  /**
+   * Add motion to what is pending.
+   * @param dx
+   * @param dy
+   * @param wheel
+   */
+  public void post(int dx, int dy, int wheel) {
+    while (true) {
+      long current = mPending.get();
+      long updated = pack(
+          clamp(x(current) + dx, LIMIT),
+          clamp(y(current) + dy, LIMIT),
+          clamp(wheel(current) + wheel, LIMIT));
+      if (mPending.compareAndSet(current, updated)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Take out as much of the pending motion as fits in one mouse frame.
+   * Whatever is left over stays pending for the next frame.
+   * @param out filled with the x, y and wheel bytes of the frame
+   * @return false if nothing was pending
+   */
+  public boolean take(byte[] out) {
+    while (true) {
+      long current = mPending.get();
+      if (current == 0) {
+        return false;
+      }
+      int x = x(current);
+      int y = y(current);
+      int wheel = wheel(current);
+      int frameX = clamp(x, MAX_FRAME_DELTA);
+      int frameY = clamp(y, MAX_FRAME_DELTA);
+      int frameWheel = clamp(wheel, MAX_FRAME_DELTA);
+      long updated = pack(x - frameX, y - frameY, wheel - frameWheel);
+      if (mPending.compareAndSet(current, updated)) {
+        out[0] = (byte) frameX;
+        out[1] = (byte) frameY;
+        out[2] = (byte) frameWheel;
+        return true;
+      }
+    }
+  }
+
+  public boolean isEmpty() {
+    return mPending.get() == 0;
+  }
+
+  private static int clamp(int value, int limit) {
+    if (value > limit) {
+      return limit;
+    } else if (value < -limit) {
+      return -limit;
+    }
+    return value;
+  }
+
+  private static long pack(int x, int y, int wheel) {
+    return (x & MASK) | ((y & MASK) << BITS) | ((wheel & MASK) << (2 * BITS));
+  }
+
+  // These shift the value to the top of the long and back down again, which
+  // brings its sign along.
+  private static int x(long packed) {
+    return (int) ((packed << (64 - BITS)) >> (64 - BITS));
+  }
+
+  private static int y(long packed) {
+    return (int) ((packed << (64 - 2 * BITS)) >> (64 - BITS));
+  }
+
+  private static int wheel(long packed) {
+    return (int) ((packed << (64 - 3 * BITS)) >> (64 - BITS));
+  }
+
+}
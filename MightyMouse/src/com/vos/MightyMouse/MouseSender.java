@@ -0,0 +1,353 @@
+package com.vos.MightyMouse;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Takes whatever motion the TouchAggregator has added up and sends it on as
+ * one mouse move. The TrackPad aggregates, and this communicates with whoever
+ * does the sending.
+ * <p>
+ * {@link run} is the loop the TrackPad's sender thread runs. It parks while
+ * the finger is still and the aggregator wakes it as soon as there is
+ * motion, so motion goes out as soon as it arrives and an idle trackpad
+ * costs nothing. Since Jelly Bean touch events are delivered once a frame,
+ * which lines sends up with the display. Sends can also be held to no more
+ * than one every {@link setMinIntervalNanos}, eg to stay within what the
+ * link can carry, and spaced further apart by a
+ * {@link setRateController ReportRateController} while the link is busy.
+ * Motion that arrives in between is merged into the next send.
+ * <p>
+ * Taps are turned into clicks by a GestureEngine, on the same thread, and
+ * go out through the same Output, after any motion that came before them.
+ * When a tap's click is waiting to see if a drag follows, the sender wakes
+ * up to send it once it's waited long enough.
+ * <p>
+ * With {@link getPredictor} turned on, the pointer is led ahead of the
+ * finger to hide the link's latency. The lead is taken back when the finger
+ * goes up, or when it stops moving, which the sender also wakes up for.
+ * <p>
+ * Off the phone, eg replaying a TouchTrace, call {@link delayNanos},
+ * {@link wakeDelayNanos} and {@link tick} on a clock of your own instead.
+ * Touch event times are in milliseconds and the sender's clock is in
+ * nanoseconds, but they have to be the same clock. On Android they are:
+ * event times come from SystemClock.uptimeMillis(), which like
+ * System.nanoTime() is CLOCK_MONOTONIC.
+ */
+public class MouseSender implements Runnable, TouchAggregator.Listener {
+
+  private static final long NANOS_PER_MILLI = 1000000;
+  // The pointer's stroke is over: the touch ended, a new one is starting,
+  // or the fingers started scrolling instead.
+  private static final int SETTLE_FLAGS = TouchAggregator.FLAG_DOWN
+      | TouchAggregator.FLAG_UP | TouchAggregator.FLAG_CANCEL
+      | TouchAggregator.FLAG_SCROLL;
+
+  // How far scrolling fingers move for one count of the wheel. A count
+  // scrolls about three lines on most desktops.
+  public static final float DEFAULT_SCROLL_PIXELS_PER_COUNT = 16f;
+
+  /**
+   * Where the moves and clicks go, eg DispatcherSingleton.
+   */
+  public interface Output extends GestureEngine.Output {
+    /**
+     * @param dx -127 to 127
+     * @param dy -127 to 127
+     * @param wheel -127 to 127, positive to scroll up
+     */
+    void sendMouse(int dx, int dy, int wheel);
+  }
+
+  private final TouchAggregator mAggregator;
+  private final Output mOutput;
+  private final TouchAggregator.Motion mMotion = new TouchAggregator.Motion();
+  private final MotionQuantizer mQuantizer = new MotionQuantizer();
+  private final VelocityEstimator mVelocity = new VelocityEstimator();
+  private final GestureEngine mGestures;
+  private final MotionPredictor mPredictor = new MotionPredictor();
+  private volatile boolean mKeepRunning = true;
+  private volatile long mMinIntervalNanos;
+  private volatile ReportRateController mRateController;
+  private volatile AccelerationCurve mAcceleration = AccelerationCurve.LINEAR;
+  private volatile float mScrollPixelsPerCount =
+      DEFAULT_SCROLL_PIXELS_PER_COUNT;
+  private long mLastSendNanos;
+  private boolean mHaveSent;
+
+  // The motion drained but not sent yet. It goes out at the end of the
+  // drain, or before a click if one comes first.
+  private float mPendingX;
+  private float mPendingY;
+  private float mPendingWheel;
+  // The event time of the newest pointer motion pending.
+  private long mPendingTime;
+  // The moves sent this tick.
+  private int mReports;
+
+  // True while the sender is parked waiting for motion, or about to be.
+  private volatile boolean mWaiting;
+  private volatile Thread mThread;
+
+  /**
+   * Also makes this the aggregator's listener.
+   * @param aggregator
+   * @param output
+   */
+  public MouseSender(TouchAggregator aggregator, Output output) {
+    this.mAggregator = aggregator;
+    this.mOutput = output;
+    this.mGestures = new GestureEngine(mClicks);
+    aggregator.setListener(this);
+  }
+
+  /**
+   * @param keepRunning false to have {@link run} return as soon as it can
+   */
+  public void setKeepRunning(boolean keepRunning) {
+    this.mKeepRunning = keepRunning;
+    if (!keepRunning) {
+      Thread thread = mThread;
+      if (thread != null) {
+        LockSupport.unpark(thread);
+      }
+    }
+  }
+
+  /**
+   * @param minIntervalNanos the least time between sends. 0, the default,
+   * sends motion as soon as it arrives.
+   */
+  public void setMinIntervalNanos(long minIntervalNanos) {
+    this.mMinIntervalNanos = minIntervalNanos;
+  }
+
+  /**
+   * @param controller stretches the time between sends while the link is
+   * busy, or null, the default, to keep to the minimum interval. Sends are
+   * never closer than {@link setMinIntervalNanos} either way.
+   */
+  public void setRateController(ReportRateController controller) {
+    this.mRateController = controller;
+  }
+
+  /**
+   * @param acceleration how to scale motion by the finger's speed.
+   * AccelerationCurve.LINEAR, the default, sends it as it is.
+   */
+  public void setAcceleration(AccelerationCurve acceleration) {
+    this.mAcceleration = acceleration;
+  }
+
+  public AccelerationCurve getAcceleration() {
+    return mAcceleration;
+  }
+
+  /**
+   * @param pixels how far scrolling fingers move for one count of the
+   * wheel. Fingers moving down scroll up, the way they'd drag a page on the
+   * phone.
+   */
+  public void setScrollPixelsPerCount(float pixels) {
+    this.mScrollPixelsPerCount = pixels;
+  }
+
+  @Override
+  public void onMotion() {
+    if (mWaiting) {
+      Thread thread = mThread;
+      if (thread != null) {
+        LockSupport.unpark(thread);
+      }
+    }
+  }
+
+  @Override
+  public void run() {
+    mThread = Thread.currentThread();
+    while (mKeepRunning) {
+      if (!mAggregator.hasMotion()) {
+        long wakeDelay = wakeDelayNanos(System.nanoTime());
+        if (wakeDelay == 0) {
+          tick(System.nanoTime());
+          continue;
+        }
+        // Say we're waiting before the last look, so that motion that
+        // arrives after it is sure to unpark us.
+        mWaiting = true;
+        if (!mAggregator.hasMotion() && mKeepRunning) {
+          if (wakeDelay == Long.MAX_VALUE) {
+            LockSupport.park(this);
+          } else {
+            LockSupport.parkNanos(this, wakeDelay);
+          }
+        }
+        mWaiting = false;
+        continue;
+      }
+      long now = System.nanoTime();
+      long delay = delayNanos(now);
+      if (delay > 0) {
+        // Too soon after the last send. Let the motion build up.
+        LockSupport.parkNanos(this, delay);
+        continue;
+      }
+      tick(now);
+    }
+    // Don't leave the button held down
+    mGestures.reset();
+    mThread = null;
+  }
+
+  /**
+   * How fast the finger was going as of the last send. Only the sending
+   * thread should look.
+   */
+  public VelocityEstimator getVelocity() {
+    return mVelocity;
+  }
+
+  /**
+   * The taps. Its settings can be changed from any thread.
+   */
+  public GestureEngine getGestures() {
+    return mGestures;
+  }
+
+  /**
+   * The motion prediction, off unless its lead is set. Its settings can be
+   * changed from any thread.
+   */
+  public MotionPredictor getPredictor() {
+    return mPredictor;
+  }
+
+  /**
+   * @param nowNanos
+   * @return how long until a tick is due even without motion, eg for a
+   * tap's click, 0 if one is, or Long.MAX_VALUE if nothing is waiting
+   */
+  public long wakeDelayNanos(long nowNanos) {
+    long deadline = Math.min(mGestures.getDeadline(),
+        mPredictor.getDeadline());
+    if (deadline == Long.MAX_VALUE) {
+      return Long.MAX_VALUE;
+    }
+    return Math.max(0, deadline * NANOS_PER_MILLI - nowNanos);
+  }
+
+  /**
+   * @param nowNanos
+   * @return how long to wait before the next send is allowed, or 0 if it
+   * can go now
+   */
+  public long delayNanos(long nowNanos) {
+    if (!mHaveSent) {
+      return 0;
+    }
+    long interval = mMinIntervalNanos;
+    ReportRateController controller = mRateController;
+    if (controller != null) {
+      interval = Math.max(interval, controller.getIntervalNanos());
+    }
+    return Math.max(0, mLastSendNanos + interval - nowNanos);
+  }
+
+  /**
+   * Send whatever the finger has done since the last send, scaled by the
+   * acceleration curve at the finger's current speed, and any scrolling
+   * with it. Big motion goes out as several moves in a row. Then send any
+   * clicks that are due, and take back the prediction's lead if the finger
+   * has stopped.
+   * @param nowNanos
+   * @return true if any moves were sent. Motion of under half a pixel is
+   * kept for next time instead.
+   */
+  public boolean tick(long nowNanos) {
+    // Before sending, so it can see if the last send has gone out yet
+    ReportRateController controller = mRateController;
+    if (controller != null) {
+      controller.update(nowNanos);
+    }
+    mReports = 0;
+    mAggregator.drain(mMotion, mVisitor);
+    sendPending();
+    long nowMillis = nowNanos / NANOS_PER_MILLI;
+    mGestures.advance(nowMillis);
+    if (mPredictor.advance(nowMillis)) {
+      sendShift();
+    }
+    if (mReports == 0) {
+      return false;
+    }
+    mLastSendNanos = nowNanos;
+    mHaveSent = true;
+    return true;
+  }
+
+  private void sendPending() {
+    if (mPendingX == 0 && mPendingY == 0 && mPendingWheel == 0) {
+      return;
+    }
+    mVelocity.estimate();
+    float gain = mAcceleration.gain(mVelocity.getVelocityX(),
+        mVelocity.getVelocityY());
+    float x = mPendingX * gain;
+    float y = mPendingY * gain;
+    if (x != 0 || y != 0) {
+      mPredictor.update(x, y, mPendingTime);
+      x += mPredictor.getShiftX();
+      y += mPredictor.getShiftY();
+    }
+    float wheel = mPendingWheel / mScrollPixelsPerCount;
+    mReports += mQuantizer.send(x, y, wheel, mOutput);
+    mPendingX = 0;
+    mPendingY = 0;
+    mPendingWheel = 0;
+  }
+
+  /**
+   * Send what the predictor's lead just changed by.
+   */
+  private void sendShift() {
+    mReports += mQuantizer.send(mPredictor.getShiftX(),
+        mPredictor.getShiftY(), 0, mOutput);
+  }
+
+  /**
+   * Sees each sample as it's drained.
+   */
+  private final SampleRing.Visitor mVisitor = new SampleRing.Visitor() {
+    @Override
+    public void onSample(float dx, float dy, float wheel, int flags,
+        long time) {
+      mPendingX += dx;
+      mPendingY += dy;
+      mPendingWheel += wheel;
+      if (dx != 0 || dy != 0) {
+        mPendingTime = time;
+      }
+      mVelocity.onSample(dx, dy, wheel, flags, time);
+      if ((flags & SETTLE_FLAGS) != 0) {
+        // Put the pointer where the finger really is before anything else,
+        // eg a drag's release
+        sendPending();
+        if (mPredictor.settle()) {
+          sendShift();
+        }
+      }
+      mGestures.onSample(dx, dy, wheel, flags, time);
+    }
+  };
+
+  /**
+   * The gestures' clicks, which go after the motion before them.
+   */
+  private final GestureEngine.Output mClicks = new GestureEngine.Output() {
+    @Override
+    public void sendClick(int type) {
+      sendPending();
+      mOutput.sendClick(type);
+    }
+  };
+
+}
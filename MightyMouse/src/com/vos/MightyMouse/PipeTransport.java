@@ -0,0 +1,153 @@
+package com.vos.MightyMouse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * One end of an in-memory link, for running the send pipeline against a
+ * simulated dongle in the same process. {@link createPair} makes both ends.
+ * Closing either end closes the link for both.
+ * <p>
+ * java.io's piped streams would do, except that they break if the thread
+ * that last wrote goes away, and they poll.
+ */
+public class PipeTransport extends StreamTransport {
+
+  private final String mName;
+  private final Pipe mIncoming;
+  private final Pipe mOutgoing;
+
+  /**
+   * @param nameA the name of the first end
+   * @param nameB the name of the second end
+   * @param capacity how many bytes can be in flight each way before writes
+   * block
+   * @return the two ends. Each still has to be {@link open}ed.
+   */
+  public static PipeTransport[] createPair(String nameA, String nameB,
+      int capacity) {
+    Pipe aToB = new Pipe(capacity);
+    Pipe bToA = new Pipe(capacity);
+    return new PipeTransport[] {
+        new PipeTransport(nameA, bToA, aToB),
+        new PipeTransport(nameB, aToB, bToA) };
+  }
+
+  private PipeTransport(String name, Pipe incoming, Pipe outgoing) {
+    this.mName = name;
+    this.mIncoming = incoming;
+    this.mOutgoing = outgoing;
+  }
+
+  @Override
+  protected void connect() {
+    setStreams(mIncoming.mIn, mOutgoing.mOut);
+  }
+
+  @Override
+  protected void disconnect() {
+    mIncoming.close();
+    mOutgoing.close();
+  }
+
+  @Override
+  public String getAddress() {
+    return mName;
+  }
+
+  @Override
+  public String getName() {
+    return mName;
+  }
+
+  /**
+   * A bounded buffer of bytes going one way.
+   */
+  private static class Pipe {
+    private final byte[] mBuffer;
+    private int mHead;
+    private int mCount;
+    private boolean mClosed;
+
+    final InputStream mIn = new InputStream() {
+      @Override
+      public int read() throws IOException {
+        byte[] one = new byte[1];
+        return (read(one, 0, 1) < 0) ? -1 : one[0] & 0xff;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        return Pipe.this.read(b, off, len);
+      }
+    };
+
+    final OutputStream mOut = new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        Pipe.this.write(b, off, len);
+      }
+    };
+
+    Pipe(int capacity) {
+      this.mBuffer = new byte[capacity];
+    }
+
+    synchronized int read(byte[] b, int off, int len) throws IOException {
+      while (mCount == 0) {
+        if (mClosed) {
+          return -1;
+        }
+        waitForChange();
+      }
+      // Only up to the end of the buffer, the rest can wait for next time
+      int bytes = Math.min(len, Math.min(mCount, mBuffer.length - mHead));
+      System.arraycopy(mBuffer, mHead, b, off, bytes);
+      mHead = (mHead + bytes) % mBuffer.length;
+      mCount -= bytes;
+      notifyAll();
+      return bytes;
+    }
+
+    synchronized void write(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        if (mClosed) {
+          throw new IOException("pipe closed");
+        }
+        if (mCount == mBuffer.length) {
+          waitForChange();
+          continue;
+        }
+        int tail = (mHead + mCount) % mBuffer.length;
+        int bytes = Math.min(len,
+            Math.min(mBuffer.length - mCount, mBuffer.length - tail));
+        System.arraycopy(b, off, mBuffer, tail, bytes);
+        mCount += bytes;
+        off += bytes;
+        len -= bytes;
+        notifyAll();
+      }
+    }
+
+    synchronized void close() {
+      mClosed = true;
+      notifyAll();
+    }
+
+    private void waitForChange() throws InterruptedIOException {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,162 @@
+package com.vos.MightyMouse;
+
+/**
+ * Picks how often the MouseSender sends, from how busy the link is. On a
+ * fast, quiet link moves go out often, in small steps. At 9600 baud, or
+ * while a file is being typed, or when the radio is struggling, they go out
+ * less often and carry more motion each, rather than piling up behind each
+ * other.
+ * <p>
+ * Every tenth of a second or so it looks back at the link. It counts as
+ * busy if the sender often found its last move still waiting to go out
+ * when it came to send the next, or if the writer spent most of the window
+ * blocked in writes, which is what a full radio or serial buffer looks like
+ * from our end. (Counting queued frames doesn't work: credits keep the
+ * bulk lane down to a frame or two, and the writer takes those off the
+ * queue right away and then blocks writing them.) A busy window halves the
+ * send rate and a quiet one adds a little to it, so it backs off quickly
+ * and creeps back up, the same way TCP finds what a path can carry. The
+ * interval always stays within {@link setBounds}.
+ * <p>
+ * Only the sending thread may use it, except for the settings.
+ */
+public class ReportRateController {
+
+  /**
+   * What the controller watches, eg the FrameWriter for the current
+   * connection.
+   */
+  public interface Link {
+    /**
+     * @return true if mouse motion sent earlier is still waiting to be
+     * written
+     */
+    boolean isMousePending();
+
+    /**
+     * @return the total time spent in writes so far, in nanoseconds. Only
+     * the difference between two calls matters, so it can start over on a
+     * new connection.
+     */
+    long getWriteNanos();
+  }
+
+  // Sending less often than this makes the pointer visibly step.
+  public static final long DEFAULT_MAX_INTERVAL_NANOS = 50 * 1000000L;
+
+  // How long to watch the link before changing the rate.
+  private static final long WINDOW_NANOS = 100 * 1000000L;
+  // Finding the last move still waiting on more than this much of the
+  // sends in a window means the link isn't keeping up. On a link that is,
+  // it's never still waiting.
+  private static final float BUSY_PENDING_SHARE = 0.25f;
+  // Blocked in writes for more than this much of a window means the link
+  // is full.
+  private static final float BUSY_WRITE_SHARE = 0.5f;
+  // A quiet window adds this many sends a second. From 20 to 125 a second
+  // takes about a second.
+  private static final float INCREASE_HZ = 10f;
+  // A busy window multiplies the rate by this.
+  private static final float DECREASE = 0.5f;
+  private static final float NANOS_PER_SECOND = 1e9f;
+
+  private final Link mLink;
+
+  private volatile long mMinIntervalNanos;
+  private volatile long mMaxIntervalNanos;
+
+  // Sends a second, and the interval that makes.
+  private float mRate;
+  private long mIntervalNanos;
+
+  private boolean mWatching;
+  private long mWindowStart;
+  private long mWindowWriteNanos;
+  private int mWindowSends;
+  private int mWindowPending;
+  private long mBackOffs;
+
+  /**
+   * @param link
+   * @param minIntervalNanos the least time between sends, which it starts
+   * out at
+   * @param maxIntervalNanos the most
+   */
+  public ReportRateController(Link link, long minIntervalNanos,
+      long maxIntervalNanos) {
+    this.mLink = link;
+    setBounds(minIntervalNanos, maxIntervalNanos);
+    mRate = NANOS_PER_SECOND / minIntervalNanos;
+    mIntervalNanos = minIntervalNanos;
+  }
+
+  /**
+   * Change the range the interval stays in. Can be called from any thread,
+   * and takes effect from the next window.
+   * @param minIntervalNanos more than 0
+   * @param maxIntervalNanos at least minIntervalNanos
+   */
+  public void setBounds(long minIntervalNanos, long maxIntervalNanos) {
+    if (minIntervalNanos <= 0 || maxIntervalNanos < minIntervalNanos) {
+      throw new IllegalArgumentException("bad bounds: " + minIntervalNanos
+          + ", " + maxIntervalNanos);
+    }
+    this.mMinIntervalNanos = minIntervalNanos;
+    this.mMaxIntervalNanos = maxIntervalNanos;
+  }
+
+  /**
+   * Look at the link, and change the rate if a window has gone by. Call it
+   * each time the sender looks for motion to send, before it sends any.
+   * @param nowNanos
+   */
+  public void update(long nowNanos) {
+    mWindowSends++;
+    if (mLink.isMousePending()) {
+      mWindowPending++;
+    }
+    long elapsed = nowNanos - mWindowStart;
+    if (mWatching && elapsed < WINDOW_NANOS) {
+      return;
+    }
+    long writeNanos = mLink.getWriteNanos();
+    if (mWatching && elapsed < 2 * WINDOW_NANOS) {
+      // Less than 0 only if the connection changed.
+      long blocked = writeNanos - mWindowWriteNanos;
+      if (mWindowPending > BUSY_PENDING_SHARE * mWindowSends
+          || blocked > BUSY_WRITE_SHARE * elapsed) {
+        mRate *= DECREASE;
+        mBackOffs++;
+      } else {
+        mRate += INCREASE_HZ;
+      }
+      float fastest = NANOS_PER_SECOND / mMinIntervalNanos;
+      float slowest = NANOS_PER_SECOND / mMaxIntervalNanos;
+      mRate = Math.max(slowest, Math.min(fastest, mRate));
+      mIntervalNanos = (long) (NANOS_PER_SECOND / mRate);
+    }
+    // A window that went on much longer was mostly the finger being still,
+    // which says nothing about the link, so start a new one without judging
+    // it.
+    mWatching = true;
+    mWindowStart = nowNanos;
+    mWindowWriteNanos = writeNanos;
+    mWindowSends = 0;
+    mWindowPending = 0;
+  }
+
+  /**
+   * @return the least time to leave between sends for now
+   */
+  public long getIntervalNanos() {
+    return mIntervalNanos;
+  }
+
+  /**
+   * @return the number of times the rate has been cut
+   */
+  public long getBackOffs() {
+    return mBackOffs;
+  }
+
+}
@@ -0,0 +1,71 @@
+package com.vos.MightyMouse;
+
+import java.io.IOException;
+import java.util.UUID;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+
+/**
+ * A Transport over a Bluetooth RFCOMM socket, which is how we talk to a real
+ * dongle.
+ */
+public class RfcommTransport extends StreamTransport {
+
+  private final BluetoothDevice mDevice;
+  private final UUID mUuid;
+  private volatile BluetoothSocket mSocket;
+
+  /**
+   * For connecting out to a device.
+   * @param device
+   * @param uuid the service to connect to
+   */
+  public RfcommTransport(BluetoothDevice device, UUID uuid) {
+    this.mDevice = device;
+    this.mUuid = uuid;
+  }
+
+  /**
+   * For a socket that is already connected, eg one from an accept().
+   * {@link open} still has to be called.
+   * @param socket
+   */
+  public RfcommTransport(BluetoothSocket socket) {
+    this.mDevice = socket.getRemoteDevice();
+    this.mUuid = null;
+    this.mSocket = socket;
+  }
+
+  @Override
+  protected void connect() throws IOException {
+    BluetoothSocket socket = mSocket;
+    if (socket == null) {
+      socket = mDevice.createRfcommSocketToServiceRecord(mUuid);
+      mSocket = socket;
+      // This is a blocking call and will only return on a successful
+      // connection or an exception
+      socket.connect();
+    }
+    setStreams(socket.getInputStream(), socket.getOutputStream());
+  }
+
+  @Override
+  protected void disconnect() throws IOException {
+    BluetoothSocket socket = mSocket;
+    if (socket != null) {
+      socket.close();
+    }
+  }
+
+  @Override
+  public String getAddress() {
+    return mDevice.getAddress();
+  }
+
+  @Override
+  public String getName() {
+    return mDevice.getName();
+  }
+
+}
@@ -0,0 +1,169 @@
+package com.vos.MightyMouse;
+
+/**
+ * A bounded queue of touch motion samples, (dx, dy, wheel, flags, time),
+ * from exactly one producer thread (the UI thread, in onTouchEvent) to
+ * exactly one consumer (the MouseSender). Samples are kept in preallocated
+ * primitive arrays, so nothing is allocated per sample, and neither side
+ * ever waits for the other.
+ * <p>
+ * Each side only writes its own index, and reads the other's, so a volatile
+ * index each is all it takes. The producer fills a slot before it moves the
+ * tail past it, and the consumer reads the slot before it moves the head
+ * past it.
+ * <p>
+ * Motion must never be lost, so when the ring is full the producer adds the
+ * sample to a carry of its own instead, and the carry goes out with the next
+ * sample there is room for. Flags that are carried are ORed together, so
+ * their order is lost, but none of them are.
+ */
+public class SampleRing {
+
+  /**
+   * Shown each sample as it is drained, oldest first.
+   */
+  public interface Visitor {
+    void onSample(float dx, float dy, float wheel, int flags, long time);
+  }
+
+  private final int mMask;
+  private final float[] mDx;
+  private final float[] mDy;
+  private final float[] mWheel;
+  private final int[] mFlags;
+  private final long[] mTime;
+
+  // The next position the producer will fill. Only the producer writes it.
+  private volatile long mTail;
+  // The next position the consumer will take. Only the consumer writes it.
+  private volatile long mHead;
+
+  // Motion the producer couldn't fit in. Only the producer touches these.
+  private float mCarryX;
+  private float mCarryY;
+  private float mCarryWheel;
+  private int mCarryFlags;
+  private boolean mHaveCarry;
+  private long mCarried;
+
+  /**
+   * @param capacity the number of samples the ring can hold. Must be a power
+   * of two.
+   */
+  public SampleRing(int capacity) {
+    if (Integer.bitCount(capacity) != 1) {
+      throw new IllegalArgumentException("capacity must be a power of two: "
+          + capacity);
+    }
+    this.mMask = capacity - 1;
+    this.mDx = new float[capacity];
+    this.mDy = new float[capacity];
+    this.mWheel = new float[capacity];
+    this.mFlags = new int[capacity];
+    this.mTime = new long[capacity];
+  }
+
+  /**
+   * Add a sample. Producer only.
+   * @param dx
+   * @param dy
+   * @param wheel scrolling, in pixels
+   * @param flags what else happened at this sample, eg
+   * TouchAggregator.FLAG_DOWN, or 0
+   * @param time
+   * @return false if the ring was full and the motion was carried over to
+   * the next sample instead
+   */
+  public boolean offer(float dx, float dy, float wheel, int flags,
+      long time) {
+    if (mHaveCarry) {
+      dx += mCarryX;
+      dy += mCarryY;
+      wheel += mCarryWheel;
+      flags |= mCarryFlags;
+    }
+    long tail = mTail;
+    if (tail - mHead > mMask) {
+      mCarryX = dx;
+      mCarryY = dy;
+      mCarryWheel = wheel;
+      mCarryFlags = flags;
+      mHaveCarry = true;
+      mCarried++;
+      return false;
+    }
+    int slot = (int) (tail & mMask);
+    mDx[slot] = dx;
+    mDy[slot] = dy;
+    mWheel[slot] = wheel;
+    mFlags[slot] = flags;
+    mTime[slot] = time;
+    mHaveCarry = false;
+    mTail = tail + 1;
+    return true;
+  }
+
+  /**
+   * Try again to get carried over motion into the ring, eg at the end of a
+   * touch event when there may not be another sample for a while. Producer
+   * only.
+   * @param time
+   * @return false if there's still motion carried over
+   */
+  public boolean flushCarry(long time) {
+    if (!mHaveCarry) {
+      return true;
+    }
+    mHaveCarry = false;
+    return offer(mCarryX, mCarryY, mCarryWheel, mCarryFlags, time);
+  }
+
+  /**
+   * Take out every sample there is and add them up. Consumer only.
+   * @param out set to the sum of the samples, if there were any
+   * @param visitor shown each sample, or null
+   * @return false if there were none
+   */
+  public boolean drain(TouchAggregator.Motion out, Visitor visitor) {
+    long head = mHead;
+    long tail = mTail;
+    if (head == tail) {
+      return false;
+    }
+    float dx = 0;
+    float dy = 0;
+    float wheel = 0;
+    out.firstTime = mTime[(int) (head & mMask)];
+    for (long position = head; position < tail; position++) {
+      int slot = (int) (position & mMask);
+      dx += mDx[slot];
+      dy += mDy[slot];
+      wheel += mWheel[slot];
+      if (visitor != null) {
+        visitor.onSample(mDx[slot], mDy[slot], mWheel[slot], mFlags[slot],
+            mTime[slot]);
+      }
+    }
+    out.lastTime = mTime[(int) ((tail - 1) & mMask)];
+    out.dx = dx;
+    out.dy = dy;
+    out.wheel = wheel;
+    mHead = tail;
+    return true;
+  }
+
+  /**
+   * @return true if there are no samples to drain. Safe from either side.
+   */
+  public boolean isEmpty() {
+    return mHead == mTail;
+  }
+
+  /**
+   * @return how many times the ring was full. Producer only.
+   */
+  public long getCarried() {
+    return mCarried;
+  }
+
+}
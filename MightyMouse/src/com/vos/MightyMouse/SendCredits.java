@@ -0,0 +1,99 @@
+package com.vos.MightyMouse;
+
+/**
+ * Keeps track of how many chars of text we are allowed to have in flight to
+ * the dongle. Sending text spends credits, and the dongle grants them back
+ * (with a "G<count>" reply) once it has finished typing a run. This lets a
+ * file go out as fast as Keyboard.print() on the dongle can drain it, rather
+ * than at a fixed worst-case rate, without overrunning its 64 byte Serial1
+ * buffer.
+ * <p>
+ * Dongles that predate flow control never grant anything, so callers should
+ * check {@link hasGranted} when an {@link acquire} times out and fall back to
+ * pacing themselves.
+ */
+public class SendCredits {
+
+  private final int mWindow;
+  private int mCredits;
+  private boolean mHasGranted;
+
+  /**
+   * @param window the number of credits available on a fresh connection
+   */
+  public SendCredits(int window) {
+    this.mWindow = window;
+    reset();
+  }
+
+  /**
+   * Go back to a full window and forget about any grants. Call this on a new
+   * connection.
+   */
+  public synchronized void reset() {
+    mCredits = mWindow;
+    mHasGranted = false;
+    notifyAll();
+  }
+
+  /**
+   * Go back to a full window, but remember whether the dongle has granted
+   * anything. Call this if a grant seems to have been lost.
+   */
+  public synchronized void refill() {
+    mCredits = mWindow;
+    notifyAll();
+  }
+
+  /**
+   * Called when the dongle hands back count credits.
+   * @param count
+   */
+  public synchronized void grant(int count) {
+    mCredits = Math.min(mWindow, mCredits + count);
+    mHasGranted = true;
+    notifyAll();
+  }
+
+  /**
+   * Spend count credits without waiting for them. Used for text that is
+   * typed interactively, which should never block, so that the dongle's
+   * grants for it don't count twice.
+   * @param count
+   */
+  public synchronized void consume(int count) {
+    mCredits -= count;
+  }
+
+  /**
+   * Wait until there are credits available and take up to max of them.
+   * @param max
+   * @param timeoutMillis
+   * @return the number of credits taken, or 0 if none became available in
+   * time.
+   * @throws InterruptedException
+   */
+  public synchronized int acquire(int max, long timeoutMillis)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    while (mCredits <= 0) {
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0) {
+        return 0;
+      }
+      wait(remaining);
+    }
+    int taken = Math.min(max, mCredits);
+    mCredits -= taken;
+    return taken;
+  }
+
+  /**
+   * @return true if the dongle has granted credits since the last reset, ie
+   * it knows how to do flow control.
+   */
+  public synchronized boolean hasGranted() {
+    return mHasGranted;
+  }
+
+}
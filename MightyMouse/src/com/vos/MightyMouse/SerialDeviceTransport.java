@@ -0,0 +1,237 @@
+package com.vos.MightyMouse;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A Transport over a serial device, eg a USB-serial adapter wired straight
+ * to the dongle's Serial1 pins. That takes the radio, and the latency and
+ * jitter it adds, out of the link. Handy for kiosks, where the phone doesn't
+ * move.
+ * <p>
+ * Java can't set a tty's rate or framing, so {@link open} has stty do it.
+ * The device has to be readable and writable by us, and stty has to be on
+ * the path.
+ * <p>
+ * Reads and writes go straight through FileChannels and direct buffers, a
+ * channel each way so that they don't block each other. The tty is set up to
+ * return from a read after {@link POLL_DECISECONDS} even if nothing came, so
+ * that a reader notices a close without relying on the platform to wake it.
+ * <p>
+ * For testing, the device can be one end of a pseudo-terminal pair, eg from
+ * <pre>
+ * socat -d -d pty,raw,echo=0 pty,raw,echo=0
+ * </pre>
+ * with a dongle simulator on the other end.
+ */
+public class SerialDeviceTransport extends BaseTransport
+    implements LinkNegotiator.RateFollower {
+
+  public static final char PARITY_NONE = 'N';
+  public static final char PARITY_EVEN = 'E';
+  public static final char PARITY_ODD = 'O';
+
+  // How long a read waits for the first byte before checking that we're
+  // still open. In tenths of a second, which is what the tty counts in.
+  public static final int POLL_DECISECONDS = 1;
+
+  private static final int BUFFER_BYTES = 1024;
+
+  private final String mPath;
+  private final int mDataBits;
+  private final char mParity;
+  private final int mStopBits;
+  private volatile int mBaudRate;
+
+  private FileChannel mReadChannel;
+  private FileChannel mWriteChannel;
+  private final ByteBuffer mReadBuffer =
+      ByteBuffer.allocateDirect(BUFFER_BYTES);
+  private ByteBuffer mWriteBuffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+
+  /**
+   * A device running at 8N1, which is how the dongle's Serial1 runs.
+   * @param path eg /dev/ttyUSB0
+   * @param baudRate
+   */
+  public SerialDeviceTransport(String path, int baudRate) {
+    this(path, baudRate, 8, PARITY_NONE, 1);
+  }
+
+  /**
+   * @param path eg /dev/ttyUSB0
+   * @param baudRate
+   * @param dataBits 5 to 8
+   * @param parity one of {@link PARITY_NONE}, {@link PARITY_EVEN} or
+   * {@link PARITY_ODD}
+   * @param stopBits 1 or 2
+   */
+  public SerialDeviceTransport(String path, int baudRate, int dataBits,
+      char parity, int stopBits) {
+    if (baudRate <= 0) {
+      throw new IllegalArgumentException("bad baud rate: " + baudRate);
+    }
+    if (dataBits < 5 || dataBits > 8) {
+      throw new IllegalArgumentException("bad data bits: " + dataBits);
+    }
+    if (parity != PARITY_NONE && parity != PARITY_EVEN
+        && parity != PARITY_ODD) {
+      throw new IllegalArgumentException("bad parity: " + parity);
+    }
+    if (stopBits != 1 && stopBits != 2) {
+      throw new IllegalArgumentException("bad stop bits: " + stopBits);
+    }
+    this.mPath = path;
+    this.mBaudRate = baudRate;
+    this.mDataBits = dataBits;
+    this.mParity = parity;
+    this.mStopBits = stopBits;
+  }
+
+  @Override
+  protected void connect() throws IOException {
+    List<String> args = new ArrayList<String>();
+    args.add(Integer.toString(mBaudRate));
+    // raw first, as it changes some of the others
+    args.add("raw");
+    args.add("-echo");
+    args.add("cs" + mDataBits);
+    args.add(mStopBits == 2 ? "cstopb" : "-cstopb");
+    args.add(mParity == PARITY_NONE ? "-parenb" : "parenb");
+    args.add(mParity == PARITY_ODD ? "parodd" : "-parodd");
+    // There's no modem, and nobody to flow control us but the dongle's
+    // buffer
+    args.add("clocal");
+    args.add("-crtscts");
+    args.add("min");
+    args.add("0");
+    args.add("time");
+    args.add(Integer.toString(POLL_DECISECONDS));
+    stty(args);
+    mReadChannel = new FileInputStream(mPath).getChannel();
+    mWriteChannel = new FileOutputStream(mPath).getChannel();
+  }
+
+  @Override
+  protected void disconnect() throws IOException {
+    try {
+      if (mReadChannel != null) {
+        mReadChannel.close();
+      }
+    } finally {
+      if (mWriteChannel != null) {
+        mWriteChannel.close();
+      }
+    }
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length) throws IOException {
+    ByteBuffer in = mReadBuffer;
+    while (true) {
+      in.clear();
+      if (length < in.capacity()) {
+        in.limit(length);
+      }
+      // A read that times out with nothing looks like the end of the file
+      // to FileChannel, so we can only tell a hangup by what's around it.
+      int bytes = mReadChannel.read(in);
+      if (bytes > 0) {
+        in.flip();
+        in.get(buffer, offset, bytes);
+        return bytes;
+      }
+      if (getState() == STATE_CLOSED) {
+        throw new EOFException("closed");
+      }
+      if (!new File(mPath).exists()) {
+        throw new EOFException(mPath + " went away");
+      }
+    }
+  }
+
+  @Override
+  public void write(byte[] buffer, int offset, int length)
+      throws IOException {
+    ByteBuffer out = mWriteBuffer;
+    if (out.capacity() < length) {
+      out = ByteBuffer.allocateDirect(length);
+      mWriteBuffer = out;
+    }
+    out.clear();
+    out.put(buffer, offset, length);
+    out.flip();
+    while (out.hasRemaining()) {
+      mWriteChannel.write(out);
+    }
+  }
+
+  /**
+   * Change the rate to match the dongle's. Anything already written goes
+   * out at the old rate first.
+   * @param baudRate
+   * @throws IOException if stty didn't like it
+   */
+  @Override
+  public void followRate(int baudRate) throws IOException {
+    List<String> args = new ArrayList<String>();
+    args.add(Integer.toString(baudRate));
+    stty(args);
+    mBaudRate = baudRate;
+  }
+
+  public int getBaudRate() {
+    return mBaudRate;
+  }
+
+  @Override
+  public String getAddress() {
+    return mPath;
+  }
+
+  @Override
+  public String getName() {
+    return mPath + " @ " + mBaudRate + " " + mDataBits + mParity + mStopBits;
+  }
+
+  /**
+   * Run stty on the device.
+   * @param settings
+   * @throws IOException if it failed, with what it said
+   */
+  private void stty(List<String> settings) throws IOException {
+    List<String> command = new ArrayList<String>();
+    command.add("stty");
+    command.add("-F");
+    command.add(mPath);
+    command.addAll(settings);
+    Process process = new ProcessBuilder(command).redirectErrorStream(true)
+        .start();
+    StringBuilder output = new StringBuilder();
+    BufferedReader reader = new BufferedReader(
+        new InputStreamReader(process.getInputStream()));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        output.append(line);
+      }
+      if (process.waitFor() != 0) {
+        throw new IOException("stty failed on " + mPath + ": " + output);
+      }
+    } catch (InterruptedException e) {
+      throw new IOException("interrupted configuring " + mPath);
+    } finally {
+      reader.close();
+    }
+  }
+
+}
@@ -0,0 +1,425 @@
+package com.vos.MightyMouse;
+
+/**
+ * A Java copy of the state machine in SerialProtocol.ino, so that what the
+ * app sends can be checked (and benchmarked, and fuzzed) without a dongle.
+ * It should do exactly what the sketch does with every byte, errors and all,
+ * so keep the two in step: the state numbers and error locations here are
+ * the sketch's.
+ * <p>
+ * Instead of moving a mouse and typing, it tells a {@link Listener}. Nothing
+ * is allocated while decoding.
+ */
+public class SerialProtocolModel {
+
+  /**
+   * What the dongle would do. Called on whichever thread feeds the model.
+   */
+  public interface Listener {
+    void onMouseMove(int x, int y, int wheel);
+    /**
+     * @param type the click type byte: 'L' or 'R' to click, 'D' or 'U' to
+     * press or release the left button. Anything else is a left click.
+     */
+    void onMouseClick(int type);
+    /**
+     * Keyboard.print() of a single key or a whole run of text.
+     * @param chars only valid until this returns
+     * @param offset
+     * @param count
+     */
+    void onKeyboardPrint(byte[] chars, int offset, int count);
+    /**
+     * What printError() would send back, ie "E<state,location,value>".
+     */
+    void onError(int state, int location, int value);
+    /**
+     * The hello reply, ie "V<version,features>".
+     * @param version the protocol version agreed on
+     * @param features eg LinkNegotiator.FEATURE_RADIO_RATE
+     */
+    void onHello(int version, int features);
+    /**
+     * Any other reply the dongle sends back, eg "G<9>" is type 'G' and
+     * value 9.
+     */
+    void onReply(char type, int value);
+  }
+
+  // Special bytes
+  public static final int START_BYTE = 255;
+  public static final int END_BYTE = 0;
+  public static final int CLICK_BEGIN = 'C';
+  public static final int KEY_BEGIN = 'K';
+  public static final int MOUSE_BEGIN = 'M';
+  public static final int TEXT_BEGIN = 'T';
+  public static final int HELLO_BEGIN = 'V';
+  public static final int BAUD_BEGIN = 'B';
+  public static final int PROBE_BEGIN = 'P';
+
+  public static final int PROTOCOL_VERSION = 2;
+  public static final int MAX_TEXT_CHARS = 32;
+  private static final int MAX_V2_FRAME = MAX_TEXT_CHARS + 4;
+  public static final long BAUD_VERIFY_MILLIS = 2000;
+
+  // State machine states
+  public static final int WAIT_FOR_START = 0;
+  public static final int STARTED = 1;
+  public static final int CLICK_GET_0 = 10;
+  public static final int KEY_GET_0 = 20;
+  public static final int MOUSE_GET_0 = 30;
+  public static final int MOUSE_GET_1 = 31;
+  public static final int MOUSE_GET_2 = 32;
+  public static final int TEXT_GET_LEN = 40;
+  public static final int TEXT_GET_CHARS = 41;
+  public static final int HELLO_GET_0 = 50;
+  public static final int V2_GET_FRAME = 60;
+  public static final int V2_SKIP_FRAME = 61;
+  public static final int BAUD_GET_0 = 70;
+  public static final int PROBE_GET_0 = 71;
+
+  private final Listener mListener;
+
+  private int mState = WAIT_FOR_START;
+  private int mProtocolVersion = 1;
+
+  private int mMouseX;
+  private int mMouseY;
+
+  private final byte[] mTextBuffer = new byte[MAX_TEXT_CHARS];
+  private int mTextLength;
+  private int mTextIndex;
+
+  private final byte[] mFrameBuffer = new byte[MAX_V2_FRAME];
+  private int mFrameLength;
+
+  private final byte[] mKey = new byte[1];
+
+  private int mBaudIndex;
+  private int mOldBaudIndex;
+  private boolean mBaudPending;
+  private long mBaudSwitchedAt;
+  private boolean mRadioChangesRate;
+  // Set by feed(byte[], ...) so that a rate change can be stamped.
+  private long mNowMillis;
+
+  public SerialProtocolModel(Listener listener) {
+    this.mListener = listener;
+  }
+
+  /**
+   * @param changes true to act as if RADIO_CHANGES_RATE were set in the
+   * sketch, ie configureRadio() has been filled in. Off by default, as it
+   * is in the sketch.
+   */
+  public void setRadioChangesRate(boolean changes) {
+    this.mRadioChangesRate = changes;
+  }
+
+  /**
+   * Give the model a whole buffer, as if it all arrived at nowMillis.
+   * @param buffer
+   * @param offset
+   * @param count
+   * @param nowMillis
+   */
+  public void feed(byte[] buffer, int offset, int count, long nowMillis) {
+    tick(nowMillis);
+    for (int i = offset; i < offset + count; i++) {
+      feed(buffer[i] & 0xff);
+    }
+  }
+
+  /**
+   * The top of loop(): fall back to the old rate if the app's probe never
+   * arrived.
+   * @param nowMillis
+   */
+  public void tick(long nowMillis) {
+    mNowMillis = nowMillis;
+    if (mBaudPending && nowMillis - mBaudSwitchedAt > BAUD_VERIFY_MILLIS) {
+      mBaudPending = false;
+      setSerialRate(mOldBaudIndex);
+      mState = WAIT_FOR_START;
+    }
+  }
+
+  /**
+   * Handle one byte, the rest of loop().
+   * @param intVal 0 to 255
+   */
+  public void feed(int intVal) {
+    // In a version 2 frame every byte but END_BYTE is just data, 255s too
+    if (mState == V2_GET_FRAME) {
+      if (intVal == END_BYTE) {
+        mState = WAIT_FOR_START;
+        handleFrame();
+      } else if (mFrameLength == MAX_V2_FRAME) {
+        printError(20, mFrameLength);
+        mState = V2_SKIP_FRAME;
+      } else {
+        mFrameBuffer[mFrameLength++] = (byte) intVal;
+      }
+      return;
+    }
+    if (mState == V2_SKIP_FRAME) {
+      if (intVal == END_BYTE) {
+        mState = WAIT_FOR_START;
+      }
+      return;
+    }
+
+    if (intVal == START_BYTE) {
+      if (mState == TEXT_GET_CHARS) {
+        grantCredits(mTextLength);
+      }
+      mState = STARTED;
+      return;
+    }
+
+    switch (mState) {
+    case WAIT_FOR_START:
+      if (mProtocolVersion < 2) {
+        printError(0, intVal);
+      } else if (intVal != END_BYTE) {
+        mFrameBuffer[0] = (byte) intVal;
+        mFrameLength = 1;
+        mState = V2_GET_FRAME;
+      }
+      break;
+
+    case STARTED:
+      switch (intVal) {
+      case CLICK_BEGIN:
+        mState = CLICK_GET_0;
+        break;
+      case KEY_BEGIN:
+        mState = KEY_GET_0;
+        break;
+      case MOUSE_BEGIN:
+        mState = MOUSE_GET_0;
+        break;
+      case TEXT_BEGIN:
+        mState = TEXT_GET_LEN;
+        break;
+      case HELLO_BEGIN:
+        mState = HELLO_GET_0;
+        break;
+      case BAUD_BEGIN:
+        mState = BAUD_GET_0;
+        break;
+      case PROBE_BEGIN:
+        mState = PROBE_GET_0;
+        break;
+      default:
+        printError(5, intVal);
+        break;
+      }
+      break;
+
+    case CLICK_GET_0:
+      mListener.onMouseClick(intVal);
+      mState = WAIT_FOR_START;
+      break;
+
+    case KEY_GET_0:
+      mKey[0] = (byte) intVal;
+      mListener.onKeyboardPrint(mKey, 0, 1);
+      mState = WAIT_FOR_START;
+      break;
+
+    case MOUSE_GET_0:
+      mMouseX = (byte) intVal;
+      mState = MOUSE_GET_1;
+      break;
+
+    case MOUSE_GET_1:
+      mMouseY = (byte) intVal;
+      mState = MOUSE_GET_2;
+      break;
+
+    case MOUSE_GET_2:
+      mListener.onMouseMove(mMouseX, mMouseY, (byte) intVal);
+      mMouseX = 0;
+      mMouseY = 0;
+      mState = WAIT_FOR_START;
+      break;
+
+    case TEXT_GET_LEN:
+      if (intVal < 1 || intVal > MAX_TEXT_CHARS) {
+        printError(15, intVal);
+        break;
+      }
+      mTextLength = intVal;
+      mTextIndex = 0;
+      mState = TEXT_GET_CHARS;
+      break;
+
+    case TEXT_GET_CHARS:
+      mTextBuffer[mTextIndex++] = (byte) intVal;
+      if (mTextIndex == mTextLength) {
+        typeText(mTextBuffer, 0, mTextLength);
+        mState = WAIT_FOR_START;
+      }
+      break;
+
+    case HELLO_GET_0:
+      mProtocolVersion = Math.min(intVal, PROTOCOL_VERSION);
+      mListener.onHello(mProtocolVersion,
+          mRadioChangesRate ? LinkNegotiator.FEATURE_RADIO_RATE : 0);
+      mState = WAIT_FOR_START;
+      break;
+
+    case BAUD_GET_0:
+      mState = WAIT_FOR_START;
+      changeBaud(intVal);
+      break;
+
+    case PROBE_GET_0:
+      answerProbe(intVal);
+      mState = WAIT_FOR_START;
+      break;
+
+    default:
+      printError(10, intVal);
+      break;
+    }
+  }
+
+  /**
+   * Decode the version 2 frame in mFrameBuffer and carry it out.
+   */
+  private void handleFrame() {
+    int next = 0;
+    while (next < mFrameLength) {
+      int code = mFrameBuffer[next] & 0xff;
+      if (code == 0 || next + code > mFrameLength) {
+        printError(22, next);
+        return;
+      }
+      if (next != 0) {
+        mFrameBuffer[next] = 0;
+      }
+      next += code;
+    }
+    int length = mFrameLength - 2;
+    if (length < 1) {
+      printError(23, mFrameLength);
+      return;
+    }
+    int type = mFrameBuffer[1] & 0xff;
+    if (FrameEncoder.crc8(mFrameBuffer, 1, length) != mFrameBuffer[1 + length]) {
+      printError(21, type);
+      return;
+    }
+    int payload = 2;
+    int payloadLength = length - 1;
+    switch (type) {
+    case CLICK_BEGIN:
+      mListener.onMouseClick(payloadLength > 0 ? mFrameBuffer[payload] : 0);
+      break;
+
+    case KEY_BEGIN:
+      if (payloadLength != 1) {
+        printError(23, payloadLength);
+        return;
+      }
+      mListener.onKeyboardPrint(mFrameBuffer, payload, 1);
+      break;
+
+    case MOUSE_BEGIN:
+      if (payloadLength != 3) {
+        printError(23, payloadLength);
+        return;
+      }
+      mListener.onMouseMove(mFrameBuffer[payload], mFrameBuffer[payload + 1],
+          mFrameBuffer[payload + 2]);
+      break;
+
+    case TEXT_BEGIN: {
+      int count = mFrameBuffer[payload] & 0xff;
+      if (payloadLength < 2 || count != payloadLength - 1
+          || count > MAX_TEXT_CHARS) {
+        printError(23, payloadLength);
+        return;
+      }
+      typeText(mFrameBuffer, payload + 1, count);
+      break;
+    }
+
+    case BAUD_BEGIN:
+      if (payloadLength != 1) {
+        printError(23, payloadLength);
+        return;
+      }
+      changeBaud(mFrameBuffer[payload] & 0xff);
+      break;
+
+    case PROBE_BEGIN:
+      if (payloadLength != 1) {
+        printError(23, payloadLength);
+        return;
+      }
+      answerProbe(mFrameBuffer[payload] & 0xff);
+      break;
+
+    default:
+      printError(24, type);
+      break;
+    }
+  }
+
+  private void typeText(byte[] chars, int offset, int count) {
+    mListener.onKeyboardPrint(chars, offset, count);
+    grantCredits(count);
+  }
+
+  private void changeBaud(int index) {
+    if (index >= LinkNegotiator.BAUD_RATES.length) {
+      printError(30, index);
+      return;
+    }
+    mListener.onReply((char) BAUD_BEGIN, index);
+    if (!mBaudPending) {
+      mOldBaudIndex = mBaudIndex;
+    }
+    setSerialRate(index);
+    mBaudPending = true;
+    mBaudSwitchedAt = mNowMillis;
+  }
+
+  private void answerProbe(int value) {
+    mBaudPending = false;
+    mListener.onReply((char) PROBE_BEGIN, value);
+  }
+
+  private void setSerialRate(int index) {
+    mBaudIndex = index;
+    mFrameLength = 0;
+  }
+
+  private void printError(int location, int intVal) {
+    mListener.onError(mState, location, intVal);
+    mState = WAIT_FOR_START;
+  }
+
+  private void grantCredits(int count) {
+    mListener.onReply('G', count);
+  }
+
+  public int getState() {
+    return mState;
+  }
+
+  public int getProtocolVersion() {
+    return mProtocolVersion;
+  }
+
+  /**
+   * @return the rate Serial1 would be running at
+   */
+  public int getBaudRate() {
+    return LinkNegotiator.BAUD_RATES[mBaudIndex];
+  }
+
+}
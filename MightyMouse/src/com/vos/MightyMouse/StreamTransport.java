@@ -0,0 +1,45 @@
+package com.vos.MightyMouse;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A Transport over a pair of streams, which is what sockets of every kind
+ * give us. Subclasses only have to {@link connect} and {@link disconnect}.
+ */
+public abstract class StreamTransport extends BaseTransport {
+
+  private InputStream mIn;
+  private OutputStream mOut;
+
+  /**
+   * Make the connection and call {@link setStreams}.
+   * @throws IOException
+   */
+  @Override
+  protected abstract void connect() throws IOException;
+
+  protected void setStreams(InputStream in, OutputStream out) {
+    this.mIn = in;
+    this.mOut = out;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length) throws IOException {
+    int bytes = mIn.read(buffer, offset, length);
+    if (bytes < 0) {
+      throw new EOFException("closed by the other end");
+    }
+    return bytes;
+  }
+
+  @Override
+  public void write(byte[] buffer, int offset, int length)
+      throws IOException {
+    mOut.write(buffer, offset, length);
+    mOut.flush();
+  }
+
+}
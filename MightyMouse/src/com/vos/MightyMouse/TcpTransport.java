@@ -0,0 +1,72 @@
+package com.vos.MightyMouse;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * A Transport over TCP, for talking to a dongle simulator rather than a real
+ * dongle. From the Android emulator the machine running it is 10.0.2.2.
+ */
+public class TcpTransport extends StreamTransport {
+
+  private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+
+  private final String mHost;
+  private final int mPort;
+  private volatile Socket mSocket;
+
+  /**
+   * @param host
+   * @param port
+   */
+  public TcpTransport(String host, int port) {
+    this.mHost = host;
+    this.mPort = port;
+  }
+
+  /**
+   * Wrap a socket that is already connected, eg one a server accepted.
+   * {@link open} still has to be called.
+   * @param socket
+   */
+  public TcpTransport(Socket socket) {
+    this.mHost = socket.getInetAddress().getHostAddress();
+    this.mPort = socket.getPort();
+    this.mSocket = socket;
+  }
+
+  @Override
+  protected void connect() throws IOException {
+    Socket socket = mSocket;
+    if (socket == null) {
+      socket = new Socket();
+      mSocket = socket;
+      socket.connect(new InetSocketAddress(mHost, mPort),
+          CONNECT_TIMEOUT_MILLIS);
+    }
+    // Frames are gathered before they're written, so don't let Nagle hold
+    // them back as well
+    socket.setTcpNoDelay(true);
+    setStreams(socket.getInputStream(), socket.getOutputStream());
+  }
+
+  @Override
+  protected void disconnect() throws IOException {
+    Socket socket = mSocket;
+    if (socket != null) {
+      socket.close();
+    }
+  }
+
+  @Override
+  public String getAddress() {
+    return mHost + ":" + mPort;
+  }
+
+  @Override
+  public String getName() {
+    return getAddress();
+  }
+
+}
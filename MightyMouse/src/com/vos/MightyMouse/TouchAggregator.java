@@ -0,0 +1,194 @@
+package com.vos.MightyMouse;
+
+/**
+ * Adds up the finger's motion on the TrackPad between sends. The UI thread
+ * puts samples in as touch events arrive (historical ones first), and the
+ * MouseSender takes out everything since it last looked. The
+ * {@link Listener} hears about new motion at the end of each touch event's
+ * batch, so that the sender doesn't have to keep looking.
+ * <p>
+ * The samples go through a SampleRing, so the UI thread never waits for the
+ * sender, nothing is allocated per sample, and the sender always gets every
+ * bit of motion exactly once.
+ * <p>
+ * Fingers going down and up go through the ring too, as flags on the
+ * samples, so that whoever drains it sees them in order with the motion,
+ * eg the GestureEngine.
+ * <p>
+ * There's nothing Android in here, so that recorded touches can be replayed
+ * through it off the phone. See TouchTrace.
+ */
+public class TouchAggregator {
+
+  /**
+   * Told when there is new motion to drain. Called on the thread that put
+   * the samples in, so it should be quick.
+   */
+  public interface Listener {
+    void onMotion();
+  }
+
+  /**
+   * The motion taken out by {@link drain}.
+   */
+  public static class Motion {
+    public float dx;
+    public float dy;
+    // Scrolling, in pixels the fingers moved.
+    public float wheel;
+    // The event times of the first and last samples that went into it.
+    public long firstTime;
+    public long lastTime;
+  }
+
+  // Flags on samples.
+  // A finger went down.
+  public static final int FLAG_DOWN = 1;
+  // The last finger went up.
+  public static final int FLAG_UP = 2;
+  // The touch was taken away from us, eg by the system.
+  public static final int FLAG_CANCEL = 4;
+  // Another finger went down, to scroll.
+  public static final int FLAG_SCROLL = 8;
+
+  // About two seconds of samples at 120Hz. The sender takes them out far
+  // more often than that.
+  private static final int RING_SAMPLES = 256;
+
+  private final SampleRing mRing = new SampleRing(RING_SAMPLES);
+  private volatile Listener mListener;
+
+  // Where the finger was at the last sample, so that we know what the next
+  // one moved from. Only the UI thread touches these.
+  private float mLastX;
+  private float mLastY;
+  private long mLastTime;
+  // Where the scrolling fingers were at the last sample.
+  private float mLastScrollY;
+
+  public void setListener(Listener listener) {
+    this.mListener = listener;
+  }
+
+  /**
+   * The finger went down. It hasn't moved anything yet. Also for the finger
+   * left when the others go up, which carries on from where it is. Call
+   * {@link endBatch} after.
+   * @param x
+   * @param y
+   * @param eventTime
+   */
+  public void down(float x, float y, long eventTime) {
+    mRing.offer(0, 0, 0, FLAG_DOWN, eventTime);
+    mLastX = x;
+    mLastY = y;
+    mLastTime = eventTime;
+  }
+
+  /**
+   * The last finger went up, at x, y. Call {@link endBatch} after.
+   * @param x
+   * @param y
+   * @param eventTime
+   */
+  public void up(float x, float y, long eventTime) {
+    mRing.offer(x - mLastX, y - mLastY, 0, FLAG_UP, eventTime);
+    mLastX = x;
+    mLastY = y;
+    mLastTime = eventTime;
+  }
+
+  /**
+   * The touch was cancelled, so it's over without the finger going up.
+   * Call {@link endBatch} after.
+   * @param eventTime
+   */
+  public void cancel(long eventTime) {
+    mRing.offer(0, 0, 0, FLAG_CANCEL, eventTime);
+    mLastTime = eventTime;
+  }
+
+  /**
+   * The finger moved to x, y. Call {@link endBatch} after the last sample in
+   * each touch event.
+   * @param x
+   * @param y
+   * @param eventTime
+   */
+  public void move(float x, float y, long eventTime) {
+    mRing.offer(x - mLastX, y - mLastY, 0, 0, eventTime);
+    mLastX = x;
+    mLastY = y;
+    mLastTime = eventTime;
+  }
+
+  /**
+   * Fingers went down to scroll. They haven't scrolled anything yet, and
+   * they don't move the pointer until the next {@link down}.
+   * @param y where the fingers are, eg the middle of them
+   * @param eventTime
+   */
+  public void startScroll(float y, long eventTime) {
+    mRing.offer(0, 0, 0, FLAG_SCROLL, eventTime);
+    mLastScrollY = y;
+    mLastTime = eventTime;
+  }
+
+  /**
+   * The scrolling fingers moved to y. Call {@link endBatch} after the last
+   * sample in each touch event, as for {@link move}.
+   * @param y
+   * @param eventTime
+   */
+  public void scroll(float y, long eventTime) {
+    mRing.offer(0, 0, y - mLastScrollY, 0, eventTime);
+    mLastScrollY = y;
+    mLastTime = eventTime;
+  }
+
+  /**
+   * That was the last sample in the touch event, so tell the listener if
+   * the finger moved. Keeps a batch of historical samples from going out in
+   * bits.
+   */
+  public void endBatch() {
+    mRing.flushCarry(mLastTime);
+    Listener listener = mListener;
+    if (listener != null && !mRing.isEmpty()) {
+      listener.onMotion();
+    }
+  }
+
+  /**
+   * @return true if the finger may have moved since the last drain
+   */
+  public boolean hasMotion() {
+    return !mRing.isEmpty();
+  }
+
+  /**
+   * Take out the motion since the last drain, and start adding up again.
+   * Only the sender may call this.
+   * @param out set to the motion, if there was any
+   * @return false if the finger hasn't moved since the last drain
+   */
+  public boolean drain(Motion out) {
+    return drain(out, null);
+  }
+
+  /**
+   * {@link drain}, showing each sample to visitor as it goes.
+   * @param out
+   * @param visitor
+   * @return false if the finger hasn't moved since the last drain
+   */
+  public boolean drain(Motion out, SampleRing.Visitor visitor) {
+    if (!mRing.drain(out, visitor)) {
+      return false;
+    }
+    // The same as before there was a ring: motion that comes back to where
+    // it started is nothing to send
+    return out.dx != 0 || out.dy != 0 || out.wheel != 0;
+  }
+
+}
@@ -0,0 +1,225 @@
+package com.vos.MightyMouse;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A compact binary recording of the raw touches on the TrackPad, so that
+ * they can be replayed through the TouchAggregator and MouseSender off the
+ * phone, the same way every time.
+ * <p>
+ * Each touch event is kept as it arrived: its action and its batch of
+ * samples, historical ones first and the event's own last. While two
+ * fingers are scrolling, the samples are of the middle of them. The format
+ * is
+ * <pre>
+ * header: 'M' 'M' 'T' 'R' version
+ * event:  action, sample count, then for each sample the change in time (ms),
+ *         x and y (1/256ths of a pixel) since the sample before it
+ * </pre>
+ * with every number after the header a zigzag varint. A slow drag comes to
+ * about four bytes a sample.
+ */
+public class TouchTrace {
+
+  // Event actions. Only what the TrackPad cares about.
+  public static final int DOWN = 0;
+  public static final int MOVE = 1;
+  public static final int UP = 2;
+  public static final int CANCEL = 3;
+  // Two fingers down, or one of three up, so scrolling starts from here.
+  public static final int SCROLL_START = 4;
+  // The scrolling fingers moved.
+  public static final int SCROLL = 5;
+
+  private static final byte[] MAGIC = { 'M', 'M', 'T', 'R' };
+  private static final int VERSION = 1;
+  private static final float FIXED_SCALE = 256f;
+  // Nobody's finger gets more than this many samples into one event.
+  private static final int MAX_SAMPLES = 4096;
+
+  /**
+   * Told about each event in a trace, in order.
+   */
+  public interface Handler {
+    /**
+     * @param action one of {@link DOWN}, {@link MOVE}, {@link UP},
+     * {@link CANCEL}, {@link SCROLL_START} or {@link SCROLL}
+     * @param x the samples, oldest first. Only valid during the call.
+     * @param y
+     * @param eventTime
+     * @param count the number of samples, at least one
+     */
+    void onEvent(int action, float[] x, float[] y, long[] eventTime,
+        int count);
+  }
+
+  /**
+   * Writes a trace. Not thread safe: the TrackPad records on the UI thread.
+   */
+  public static class Recorder {
+    private final OutputStream mOut;
+    private final byte[] mVarint = new byte[10];
+    private long mLastTime;
+    private int mLastX;
+    private int mLastY;
+    private int mSamplesLeft;
+    private long mEvents;
+
+    /**
+     * Writes the header straight away.
+     * @param out wrap it in a BufferedOutputStream, as this writes a few
+     * bytes at a time
+     * @throws IOException
+     */
+    public Recorder(OutputStream out) throws IOException {
+      this.mOut = out;
+      out.write(MAGIC);
+      out.write(VERSION);
+    }
+
+    /**
+     * Start an event. Follow with exactly sampleCount calls to
+     * {@link sample}.
+     * @param action
+     * @param sampleCount
+     * @throws IOException
+     */
+    public void beginEvent(int action, int sampleCount) throws IOException {
+      if (mSamplesLeft != 0) {
+        throw new IllegalStateException(mSamplesLeft + " samples missing");
+      }
+      if (sampleCount < 1 || sampleCount > MAX_SAMPLES) {
+        throw new IllegalArgumentException("bad sample count: "
+            + sampleCount);
+      }
+      writeVarint(action);
+      writeVarint(sampleCount);
+      mSamplesLeft = sampleCount;
+      mEvents++;
+    }
+
+    /**
+     * @param x
+     * @param y
+     * @param eventTime
+     * @throws IOException
+     */
+    public void sample(float x, float y, long eventTime) throws IOException {
+      if (mSamplesLeft == 0) {
+        throw new IllegalStateException("no event to add a sample to");
+      }
+      int fixedX = Math.round(x * FIXED_SCALE);
+      int fixedY = Math.round(y * FIXED_SCALE);
+      writeVarint(eventTime - mLastTime);
+      writeVarint(fixedX - mLastX);
+      writeVarint(fixedY - mLastY);
+      mLastTime = eventTime;
+      mLastX = fixedX;
+      mLastY = fixedY;
+      mSamplesLeft--;
+    }
+
+    public long getEvents() {
+      return mEvents;
+    }
+
+    /**
+     * Flush and close the stream.
+     * @throws IOException
+     */
+    public void close() throws IOException {
+      mOut.close();
+    }
+
+    private void writeVarint(long value) throws IOException {
+      long zigzag = (value << 1) ^ (value >> 63);
+      int length = 0;
+      while ((zigzag & ~0x7fL) != 0) {
+        mVarint[length++] = (byte) ((zigzag & 0x7f) | 0x80);
+        zigzag >>>= 7;
+      }
+      mVarint[length++] = (byte) zigzag;
+      mOut.write(mVarint, 0, length);
+    }
+  }
+
+  /**
+   * Read a whole trace.
+   * @param in wrap it in a BufferedInputStream, as this reads a byte at a
+   * time
+   * @param handler
+   * @return the number of events
+   * @throws IOException if it isn't a trace, or it's cut short
+   */
+  public static long replay(InputStream in, Handler handler)
+      throws IOException {
+    for (int i = 0; i < MAGIC.length; i++) {
+      if (in.read() != MAGIC[i]) {
+        throw new IOException("not a touch trace");
+      }
+    }
+    int version = in.read();
+    if (version != VERSION) {
+      throw new IOException("unknown touch trace version: " + version);
+    }
+    float[] x = new float[16];
+    float[] y = new float[16];
+    long[] time = new long[16];
+    long lastTime = 0;
+    long lastX = 0;
+    long lastY = 0;
+    long events = 0;
+    while (true) {
+      int first = in.read();
+      if (first < 0) {
+        return events;
+      }
+      int action = (int) readVarint(in, first);
+      int count = (int) readVarint(in, in.read());
+      if (count < 1 || count > MAX_SAMPLES) {
+        throw new IOException("bad sample count: " + count);
+      }
+      if (count > x.length) {
+        x = new float[count];
+        y = new float[count];
+        time = new long[count];
+      }
+      for (int i = 0; i < count; i++) {
+        lastTime += readVarint(in, in.read());
+        lastX += readVarint(in, in.read());
+        lastY += readVarint(in, in.read());
+        time[i] = lastTime;
+        x[i] = lastX / FIXED_SCALE;
+        y[i] = lastY / FIXED_SCALE;
+      }
+      handler.onEvent(action, x, y, time, count);
+      events++;
+    }
+  }
+
+  private static long readVarint(InputStream in, int first)
+      throws IOException {
+    long zigzag = 0;
+    int shift = 0;
+    int b = first;
+    while (true) {
+      if (b < 0) {
+        throw new EOFException("touch trace cut short");
+      }
+      if (shift > 63) {
+        throw new IOException("bad varint");
+      }
+      zigzag |= (long) (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        break;
+      }
+      shift += 7;
+      b = in.read();
+    }
+    return (zigzag >>> 1) ^ -(zigzag & 1);
+  }
+
+}
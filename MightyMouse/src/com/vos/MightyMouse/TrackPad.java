@@ -1,19 +1,26 @@
 package com.vos.MightyMouse;
 
-import java.util.Arrays;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.io.IOException;
+import java.io.OutputStream;
 
 import android.content.Context;
 import android.util.AttributeSet;
 import android.util.Log;
-import android.view.GestureDetector;
 import android.view.InputDevice;
 import android.view.MotionEvent;
 import android.view.View;
+import android.view.ViewConfiguration;
 
 /**
  * The hope is that this will listen for mouse events to serve as a trackpad.
  * 
+ * One finger moves the pointer. Two scroll, by filling in the wheel of the
+ * same mouse moves. Taps click, see GestureEngine.
+ * 
+ * The adding up and sending of the motion is done by a TouchAggregator and a
+ * MouseSender, which don't need Android, so that touches recorded here with
+ * {@link startRecording} can be replayed through them off the phone.
+ * 
  * This has to be static to inflate, but really it should be a non-static 
  * member class, as we only
  * ever want one per view, most likely. Not necessarily a huge deal, though.
@@ -25,29 +32,22 @@ public class TrackPad extends View {
 
   private static final String TAG = "TrackPad";
 
-  // this is what we will scale delta by to try and get better numbers.
-  // but we'll actually be dividing by this.
-  private static final long DELTA_SCALE = (long) 1.0;
+  // Don't send moves more often than a mouse frame takes to cross the link
+  // at the rate the dongle starts out at. Anything faster just merges in
+  // the FrameWriter, after waking it for nothing.
+  private static final long MIN_SEND_INTERVAL_NANOS =
+      FrameEncoder.frameLength(FrameEncoder.PROTOCOL_V1,
+          FrameEncoder.MOUSE_PAYLOAD_BYTES) * 10 * 1000000000L
+      / LinkNegotiator.BASE_RATE;
+
+  // However busy the link is, the rate controller doesn't space moves out
+  // further than this, or the pointer would visibly step.
+  private static final long MAX_SEND_INTERVAL_NANOS =
+      ReportRateController.DEFAULT_MAX_INTERVAL_NANOS;
+
+  // Adds up the touch events between sends.
+  private final TouchAggregator mAggregator = new TouchAggregator();
 
-  // I want to store the old x and old y so that I can measure from them.
-  private float mStartX;
-  private float mStartY;
-  private long lastTime;
-  
-  // These should be the sums of mouse events that are added. Be sure to access
-  // them in a threadsafe manner.
-  private Object mLock;
-  private float mRunningTotalX;
-  private float mRunningTotalY;
-  // this will store the time of the first event to send.
-  private long mTimeOfFirstToSend;
-  private long mTimeOfLastToSend;
-  // These will be the last measured so we know what to diff to and then add
-  // to the running total. (eg if you get a move with x of 7, that is only 
-  // interesting if you know where that 7 came from.
-  private float mLastX;
-  private float mLastY;
-  
   // This will be the minimum movement that can occur--essentially the unit
   // of movement.
   private float mBaseUnitX;
@@ -61,10 +61,6 @@ public class TrackPad extends View {
   private Thread mSenderThread;
   private MouseSender mSenderRunnable;
   
-  // This should be the queue that holds the mouse events. Must be thread 
-  // safe for the runnable thing to use it correctly.
-  private ConcurrentLinkedQueue<MotionEvent> mMouseQueue;
-
   private MouseAndKeyboardActivity mChat;
 
   // the time between events.
@@ -74,13 +70,12 @@ public class TrackPad extends View {
   // view.
   private DispatcherSingleton mDispatcher;
 
-  // Based on the code here it looks like I need this to listen to
-  // gestures?
-  // http://www.anddev.org/gesturedetector_and_gesturedetectorongesturelistener-t3204.html
-  private GestureDetector mGestureScanner;
+  // True while two or more fingers are down, and they're scrolling rather
+  // than moving the pointer.
+  private boolean mScrolling;
 
-  private final byte[] mouseInfoToRelay = 
-      new byte[mDispatcher.numMouseBytes];
+  // Non-null while we're recording touches. Only touched on the UI thread.
+  private TouchTrace.Recorder mRecorder;
 
   public TrackPad(Context context, AttributeSet attributeSet) {
     super(context, attributeSet);
@@ -98,6 +93,9 @@ public class TrackPad extends View {
      * just try to compute it
      * here, as this should be all we need.
      */
+    if (mRecorder != null) {
+      record(event);
+    }
     // Let's get all the Evens in the batch.
     if (event.getAction() == MotionEvent.ACTION_UP
         || event.getAction() == MotionEvent.ACTION_CANCEL) {
@@ -105,15 +103,15 @@ public class TrackPad extends View {
       // In this case we don't scroll, and we invalidate the numbers.
       isValid = false;
     }
+    if (event.getAction() == MotionEvent.ACTION_UP) {
+      mAggregator.up(event.getX(), event.getY(), event.getEventTime());
+    } else if (event.getAction() == MotionEvent.ACTION_CANCEL) {
+      mAggregator.cancel(event.getEventTime());
+    }
     if (event.getAction() == MotionEvent.ACTION_DOWN) {
       Log.d(TAG, "action down");
-      synchronized (mLock) {
-        mStartX = event.getX();
-        mStartY = event.getY();
-        lastTime = event.getEventTime();
-        mLastX = event.getX();
-        mLastY = event.getY();
-      }
+      mScrolling = false;
+      mAggregator.down(event.getX(), event.getY(), event.getEventTime());
       // here we also need to set the base units. We can't do it in the init 
       // steps because until now we don't know what the device id is that will
       // be generating the events.
@@ -122,42 +120,173 @@ public class TrackPad extends View {
       this.mBaseUnitX = device.getMotionRange(MotionEvent.AXIS_X).getFuzz();
       this.mBaseUnitY = device.getMotionRange(MotionEvent.AXIS_Y).getFuzz();
     }
-    if (event.getAction() == MotionEvent.ACTION_MOVE) {
+    if (event.getActionMasked() == MotionEvent.ACTION_POINTER_DOWN) {
+      // Another finger. Scroll with the first two, starting from wherever
+      // they are now, as the new one may have come in between them.
+      mScrolling = true;
+      mAggregator.startScroll(middle(event, true, -1, event.getHistorySize()),
+          event.getEventTime());
+    }
+    if (event.getActionMasked() == MotionEvent.ACTION_POINTER_UP) {
+      int lifted = event.getActionIndex();
+      if (event.getPointerCount() > 2) {
+        mAggregator.startScroll(middle(event, true, lifted,
+            event.getHistorySize()), event.getEventTime());
+      } else {
+        // Down to one finger, which carries on moving the pointer from
+        // where it is.
+        mScrolling = false;
+        int remaining = (lifted == 0) ? 1 : 0;
+        mAggregator.down(event.getX(remaining), event.getY(remaining),
+            event.getEventTime());
+      }
+    }
+    if (event.getAction() == MotionEvent.ACTION_MOVE && mScrolling) {
+      for (int i = 0; i < event.getHistorySize(); ++i) {
+        mAggregator.scroll(middle(event, true, -1, i),
+            event.getHistoricalEventTime(i));
+      }
+      mAggregator.scroll(middle(event, true, -1, event.getHistorySize()),
+          event.getEventTime());
+    } else if (event.getAction() == MotionEvent.ACTION_MOVE) {
       Log.d(TAG, "action move");
-      // Take care of any batched movements.
-      synchronized (mLock) {
-        for (int i = 0; i < event.getHistorySize(); ++i) {
-          // This is assuming we only have one pointer, which I think has
-          // to be 0. (A pointer is like a finger.)
-          
-          // We need to init the time if there are no totals yet.
-          if (mTimeOfFirstToSend == 0) {
-            mTimeOfFirstToSend = event.getHistoricalEventTime(i);
-          }
-          mRunningTotalX += event.getHistoricalX(0, i) - mLastX;
-          mRunningTotalY += event.getHistoricalY(0, i) - mLastY;
-          mLastX = event.getHistoricalX(0, i);
-          mLastY = event.getHistoricalY(0, i);
-          // This was the old action before we did the concurrent queue:
-          //computeAndSend(event.getHistoricalX(0, i), 
-           // event.getHistoricalY(0, i),
-            //  event.getHistoricalEventTime(i));
-        }
-        // do the current movement
-        //computeAndSend(event.getX(), event.getY(), event.getEventTime());
-        if (mTimeOfFirstToSend == 0) {
-          mTimeOfFirstToSend = event.getEventTime();
-        }
-        mTimeOfLastToSend = event.getEventTime();
-        mRunningTotalX += event.getX() - mLastX;
-        mRunningTotalY += event.getY() - mLastY;
-        Log.d(TAG, "last event x: " + event.getX() + "; y: " + event.getY());
-        mLastX = event.getX();
-        mLastY = event.getY();
+      // Take care of any batched movements. This is assuming we only have
+      // one pointer, which I think has to be 0. (A pointer is like a
+      // finger.)
+      for (int i = 0; i < event.getHistorySize(); ++i) {
+        mAggregator.move(event.getHistoricalX(0, i),
+            event.getHistoricalY(0, i), event.getHistoricalEventTime(i));
       }
+      // do the current movement
+      mAggregator.move(event.getX(), event.getY(), event.getEventTime());
+      Log.d(TAG, "last event x: " + event.getX() + "; y: " + event.getY());
     }
+    // Everything in the event is in, so wake the sender for it
+    mAggregator.endBatch();
     return true;
   }
+
+  /**
+   * Where the middle of the first two fingers is.
+   * @param event
+   * @param inY true for y, false for x
+   * @param skip the index of a finger to leave out, eg because it's going
+   * up, or -1
+   * @param pos a position in the event's history, or the history size for
+   * where the fingers are now
+   */
+  private static float middle(MotionEvent event, boolean inY, int skip,
+      int pos) {
+    boolean current = pos == event.getHistorySize();
+    float sum = 0;
+    int found = 0;
+    for (int i = 0; i < event.getPointerCount() && found < 2; i++) {
+      if (i == skip) {
+        continue;
+      }
+      if (current) {
+        sum += inY ? event.getY(i) : event.getX(i);
+      } else {
+        sum += inY ? event.getHistoricalY(i, pos)
+            : event.getHistoricalX(i, pos);
+      }
+      found++;
+    }
+    return sum / found;
+  }
+
+  /**
+   * Record every touch from now on to out, as a TouchTrace. Stops any
+   * recording already going.
+   * @param out closed by {@link stopRecording}
+   * @throws IOException
+   */
+  public void startRecording(OutputStream out) throws IOException {
+    stopRecording();
+    mRecorder = new TouchTrace.Recorder(out);
+  }
+
+  /**
+   * Stop recording, if we were, and close the trace.
+   * @return the number of touch events recorded
+   */
+  public long stopRecording() {
+    TouchTrace.Recorder recorder = mRecorder;
+    if (recorder == null) {
+      return 0;
+    }
+    mRecorder = null;
+    try {
+      recorder.close();
+    } catch (IOException e) {
+      Log.e(TAG, "couldn't finish the touch trace", e);
+    }
+    return recorder.getEvents();
+  }
+
+  public boolean isRecording() {
+    return mRecorder != null;
+  }
+
+  private void record(MotionEvent event) {
+    int action;
+    // The finger the samples are of, or -1 for the middle of the scrolling
+    // ones.
+    int finger = 0;
+    int lifted = -1;
+    switch (event.getActionMasked()) {
+    case MotionEvent.ACTION_DOWN:
+      action = TouchTrace.DOWN;
+      break;
+    case MotionEvent.ACTION_MOVE:
+      action = mScrolling ? TouchTrace.SCROLL : TouchTrace.MOVE;
+      finger = mScrolling ? -1 : 0;
+      break;
+    case MotionEvent.ACTION_UP:
+      action = TouchTrace.UP;
+      break;
+    case MotionEvent.ACTION_CANCEL:
+      action = TouchTrace.CANCEL;
+      break;
+    case MotionEvent.ACTION_POINTER_DOWN:
+      action = TouchTrace.SCROLL_START;
+      finger = -1;
+      break;
+    case MotionEvent.ACTION_POINTER_UP:
+      lifted = event.getActionIndex();
+      if (event.getPointerCount() > 2) {
+        action = TouchTrace.SCROLL_START;
+        finger = -1;
+      } else {
+        // The finger left is a new down, as far as the aggregator goes
+        action = TouchTrace.DOWN;
+        finger = (lifted == 0) ? 1 : 0;
+      }
+      break;
+    default:
+      return;
+    }
+    int history = event.getHistorySize();
+    try {
+      mRecorder.beginEvent(action, history + 1);
+      for (int i = 0; i <= history; i++) {
+        long time = (i < history) ? event.getHistoricalEventTime(i)
+            : event.getEventTime();
+        if (finger < 0) {
+          mRecorder.sample(middle(event, false, lifted, i),
+              middle(event, true, lifted, i), time);
+        } else if (i < history) {
+          mRecorder.sample(event.getHistoricalX(finger, i),
+              event.getHistoricalY(finger, i), time);
+        } else {
+          mRecorder.sample(event.getX(finger), event.getY(finger), time);
+        }
+      }
+    } catch (IOException e) {
+      Log.e(TAG, "couldn't record touches, stopping", e);
+      stopRecording();
+    }
+  }
   
   /**
    * There is a thread sending the mouse actions while this view is up and
@@ -166,7 +295,7 @@ public class TrackPad extends View {
    */
   public void stopSendingThread() {
     Log.d(TAG, "in stopSendingThread()");
-    mSenderRunnable.mKeepRunning = false;
+    mSenderRunnable.setKeepRunning(false);
     
   }
   
@@ -176,84 +305,98 @@ public class TrackPad extends View {
    */
   public void startSendingThread() {
     Log.w(TAG, "in startSendingThread()");
-    mSenderRunnable.mKeepRunning = true;
+    mSenderRunnable.setKeepRunning(true);
     mSenderThread.start();
   }
   
-  public boolean sendingThreadIsAlive() {
-    return mSenderThread.isAlive();
+  /**
+   * @param acceleration how motion is scaled by the finger's speed. Takes
+   * effect from the next send.
+   */
+  public void setAcceleration(AccelerationCurve acceleration) {
+    mSenderRunnable.setAcceleration(acceleration);
   }
 
-  /*
-   * Does what you would need to do for a single motion event. Computes the 
-   * deltas, updates the
-   * member fields storing previous state, and sends the mouse info.
+  /**
+   * @param millis how long a tap's click waits to see if a drag follows. 0
+   * clicks straight away, and turns dragging off.
    */
-  private void computeAndSend(float x, float y, long time) {
-    float xDelta;
-    float yDelta;
-    // Time change
-    long tDelta;
-    // Delta / time change
-    double xVelDbl;
-    double yVelDbl;
-    // values to send
-    int xVel;
-    int yVel;
-    // a somewhat scaled time delta
-    double tFloat;
-    xDelta = x - mStartX;
-    mStartX = x;
-    yDelta = y - mStartY;
-    mStartY = y;
-    tDelta = time - lastTime;
-    // try to scale it.
-    tFloat = tDelta * 1.0;
-    lastTime = time;
-    xVelDbl = xDelta / (tFloat * 1.0);
-    yVelDbl = yDelta / (tFloat * 1.0);
-    xVel = -Math.round(xDelta);
-    yVel = -Math.round(yDelta);
-    if (xVel > 127) {
-      xVel = 127;
-    } else if (xVel < -127) {
-      xVel = -127;
-    }
-    if (yVel > 127) {
-      yVel = 127;
-    } else if (yVel < -127) {
-      yVel = -127;
-    }
-    mouseInfoToRelay[0] = (byte) -xVel;
-    Log.d(TAG, "xVel = " + -xVel);
-    mouseInfoToRelay[1] = (byte) -yVel;
-    Log.d(TAG, "yVel = " + -yVel);
-    mouseInfoToRelay[2] = (byte) 0;
-    mDispatcher.setMouseBytes(mouseInfoToRelay);
-    if (mChat == null) {
-      Log.d(TAG, "mChat is null");
-    } else {
-      Log.d(TAG, "asking to send mouse");
-      mDispatcher.sendMouse();
-    }
+  public void setTapDragMillis(long millis) {
+    mSenderRunnable.getGestures().setDragMillis(millis);
+  }
+
+  /**
+   * @param millis how far ahead of the finger to lead the pointer, to hide
+   * the link's latency. 0 turns prediction off.
+   */
+  public void setPredictionMillis(long millis) {
+    mSenderRunnable.getPredictor().setLeadMillis(millis);
+  }
+
+  public boolean sendingThreadIsAlive() {
+    return mSenderThread.isAlive();
   }
   
   public void setDispatcher(DispatcherSingleton dispatcher) {
     this.mDispatcher = dispatcher;
   }
 
+  /**
+   * Where the MouseSender's moves and clicks go.
+   */
+  private final MouseSender.Output mOutput = new MouseSender.Output() {
+    @Override
+    public void sendMouse(int dx, int dy, int wheel) {
+      if (mChat == null) {
+        Log.d(TAG, "mChat is null");
+      } else {
+        mDispatcher.sendMouse(dx, dy, wheel);
+      }
+    }
+
+    @Override
+    public void sendClick(int type) {
+      if (mChat != null) {
+        mDispatcher.sendClick(type);
+      }
+    }
+  };
+
+  /**
+   * The writer the MouseSender's moves go through, for the rate controller
+   * to watch. It's a new one every connection.
+   */
+  private final ReportRateController.Link mLink =
+      new ReportRateController.Link() {
+    @Override
+    public boolean isMousePending() {
+      FrameWriter writer = getFrameWriter();
+      return (writer != null) && writer.isMousePending();
+    }
+
+    @Override
+    public long getWriteNanos() {
+      FrameWriter writer = getFrameWriter();
+      return (writer == null) ? 0 : writer.getWriteNanos();
+    }
+
+    private FrameWriter getFrameWriter() {
+      DispatcherSingleton dispatcher = mDispatcher;
+      return (dispatcher == null) ? null : dispatcher.getFrameWriter();
+    }
+  };
+
   private void init() {
     if (mContext instanceof MouseAndKeyboardActivity) {
       mChat = (MouseAndKeyboardActivity) mContext;
     }
-    mLock = new Object();
-    synchronized (mLock) {
-      mRunningTotalX = 0;
-      mRunningTotalY = 0;
-      mTimeOfFirstToSend = 0;
-      mTimeOfLastToSend = 0;
-    }
-    this.mSenderRunnable = new MouseSender();
+    this.mSenderRunnable = new MouseSender(mAggregator, mOutput);
+    this.mSenderRunnable.setMinIntervalNanos(MIN_SEND_INTERVAL_NANOS);
+    this.mSenderRunnable.setRateController(new ReportRateController(mLink,
+        MIN_SEND_INTERVAL_NANOS, MAX_SEND_INTERVAL_NANOS));
+    this.mSenderRunnable.setAcceleration(AccelerationCurve.DEFAULT);
+    this.mSenderRunnable.getGestures().setTouchSlop(
+        ViewConfiguration.get(getContext()).getScaledTouchSlop());
     this.mSenderThread = new Thread(this.mSenderRunnable);
     this.mSenderThread.start();
   }
@@ -280,119 +423,5 @@ public class TrackPad extends View {
     // CONSTRUCTOR--IN FACT OFTEN CALLS THE OTHER ONE AND STUFF DOESN'T GET 
     // INITED.
   }
-  
-  /**
-   * The point of this class is to send information via the dispatcher. 
-   * The TrackPad outer class is responsible for aggregating the mouse events,
-   * and then this actually communicates with the dispatcher.
-   * @author sudar.sam@gmail.com
-   *
-   */
-  private class MouseSender implements Runnable {
-    
-    public volatile boolean mKeepRunning;
-        
-    public MouseSender() {
-      super();
-      this.mKeepRunning = true;
-    }
-
-    @Override
-    public void run() {
-      while (mKeepRunning) {
-        Log.e(TAG, "in MouseSender.run()");
-        if (mRunningTotalX != 0 || mRunningTotalY != 0) {
-          Log.d(TAG, "xFuzz: " + mBaseUnitX);
-          Log.d(TAG, "yFuzz: " + mBaseUnitY);
-          float xDelta;
-          float yDelta;
-          // Time change
-          long tDelta;
-          // Delta / time change
-          double xVelDbl;
-          double yVelDbl;
-          // values to send
-          int xVel;
-          int yVel;
-          // a somewhat scaled time delta
-          double tFloat;
-          xDelta = mRunningTotalX - mStartX;
-          //mStartX = x;
-          yDelta = mRunningTotalY - mStartY;
-          //mStartY = y;
-          tDelta = mTimeOfLastToSend - mTimeOfFirstToSend;
-          // try to scale it.
-          tFloat = tDelta * 1.0;
-          //lastTime = time;
-          xVelDbl = xDelta / (tFloat * DELTA_SCALE);
-          yVelDbl = yDelta / (tFloat * DELTA_SCALE);
-          float testScaledValueX;
-          float testScaledValueY;
-          float testVelVector;
-          testVelVector = (float) (Math.sqrt(Math.pow(mRunningTotalX, 2) + 
-            Math.pow(mRunningTotalY, 2)) / tDelta);
-          Log.d(TAG, "testVelVector: " + testVelVector);
-          Log.d(TAG, "mRunningTotalX: " + mRunningTotalX);
-          Log.d(TAG, "mRunningTotalY: " + mRunningTotalY);
-          testScaledValueX = mRunningTotalX * testVelVector;
-          testScaledValueY = mRunningTotalY * testVelVector;
-          if (mRunningTotalX < 1 && mRunningTotalX > 0) {
-            mRunningTotalX = 1;
-          }
-          if (mRunningTotalX > -1 && mRunningTotalX < 0) {
-            mRunningTotalX = -1;
-          }
-          if (mRunningTotalY < 1 && mRunningTotalY > 0) {
-            mRunningTotalY = 1;
-          }
-          if (mRunningTotalY > -1 && mRunningTotalY < 0) {
-            mRunningTotalY = -1;
-          }
-          xVel = -Math.round(mRunningTotalX);
-          yVel = -Math.round(mRunningTotalY);
-          if (xVel > 127) {
-            xVel = 127;
-          } else if (xVel < -127) {
-            xVel = -127;
-          }
-          if (yVel > 127) {
-            yVel = 127;
-          } else if (yVel < -127) {
-            yVel = -127;
-          }
-          mouseInfoToRelay[0] = (byte) -xVel;
-          Log.d(TAG, "xVel = " + -xVel);
-          mouseInfoToRelay[1] = (byte) -yVel;
-          Log.d(TAG, "yVel = " + -yVel);
-          mouseInfoToRelay[2] = (byte) 0;
-          mDispatcher.setMouseBytes(mouseInfoToRelay);
-          if (mChat == null) {
-            Log.d(TAG, "mChat is null");
-          } else {
-            Log.d(TAG, "asking to send mouse");
-            Log.d(TAG, "x: " + -xVel + "; y: " + -yVel);
-            mDispatcher.sendMouse();
-          }
-          synchronized (mLock) {
-            mRunningTotalX = 0;
-            mRunningTotalY = 0;
-            mTimeOfFirstToSend = 0;
-            mTimeOfLastToSend = 0;
-            // This catches if you're moving slowly and haven't yet done a new
-            // down event to reset these variables.
-            mStartX = mLastX;
-            mStartY = mLastY;
-          }
-        }
-        // Then we sleep to let new events build up.
-        try {
-          Thread.sleep(25);
-        } catch (InterruptedException e) {
-          Log.e(TAG, "interrupted exception in the MouseSender's run method");
-          e.printStackTrace();
-        }
-      }
-    }
-  }
 
 }
@@ -0,0 +1,116 @@
+package com.vos.MightyMouse;
+
+/**
+ * Keeps track of how far along a file send is, and how long the rest of it
+ * should take. Rates are smoothed with an exponential moving average so the
+ * estimate doesn't jump around every time the dongle stalls for a moment.
+ * <p>
+ * Updates can come as often as you like. They are only sampled every
+ * {@link MIN_SAMPLE_MILLIS}, and {@link update} says when that happened so
+ * the caller knows it is worth showing the user.
+ */
+public class TransferProgress {
+
+  // Don't sample (or bother the UI) more often than this.
+  public static final long MIN_SAMPLE_MILLIS = 250;
+
+  // How much weight a new sample gets in the moving average.
+  private static final double SMOOTHING = 0.2;
+
+  private final long mTotalBytes;
+  private long mBytesDone;
+  private long mCharsDone;
+
+  private long mLastSampleMillis;
+  private long mLastSampleBytes;
+  private long mLastSampleChars;
+
+  // Negative until we have a sample.
+  private double mBytesPerSecond;
+  private double mCharsPerSecond;
+
+  /**
+   * @param totalBytes the size of the file
+   * @param nowMillis when the send started
+   */
+  public TransferProgress(long totalBytes, long nowMillis) {
+    this.mTotalBytes = totalBytes;
+    this.mLastSampleMillis = nowMillis;
+    this.mBytesPerSecond = -1;
+    this.mCharsPerSecond = -1;
+  }
+
+  /**
+   * Record that bytesDone bytes of the file, making up charsDone chars, have
+   * been sent.
+   * @param bytesDone
+   * @param charsDone
+   * @param nowMillis
+   * @return true if this was taken as a new sample, ie the rates changed
+   */
+  public boolean update(long bytesDone, long charsDone, long nowMillis) {
+    mBytesDone = bytesDone;
+    mCharsDone = charsDone;
+    long elapsed = nowMillis - mLastSampleMillis;
+    if (elapsed < MIN_SAMPLE_MILLIS) {
+      return false;
+    }
+    double bytesPerSecond =
+        (bytesDone - mLastSampleBytes) * 1000.0 / elapsed;
+    double charsPerSecond =
+        (charsDone - mLastSampleChars) * 1000.0 / elapsed;
+    mBytesPerSecond = smooth(mBytesPerSecond, bytesPerSecond);
+    mCharsPerSecond = smooth(mCharsPerSecond, charsPerSecond);
+    mLastSampleMillis = nowMillis;
+    mLastSampleBytes = bytesDone;
+    mLastSampleChars = charsDone;
+    return true;
+  }
+
+  private static double smooth(double average, double sample) {
+    if (average < 0) {
+      return sample;
+    }
+    return average + SMOOTHING * (sample - average);
+  }
+
+  public long getBytesDone() {
+    return mBytesDone;
+  }
+
+  public long getCharsDone() {
+    return mCharsDone;
+  }
+
+  public long getTotalBytes() {
+    return mTotalBytes;
+  }
+
+  /**
+   * @return the smoothed rate, or -1 if there isn't a sample yet
+   */
+  public long getCharsPerSecond() {
+    return Math.round(mCharsPerSecond);
+  }
+
+  /**
+   * @return the estimated seconds left, or -1 if we can't tell yet
+   */
+  public long getEtaSeconds() {
+    if (mBytesPerSecond <= 0) {
+      return -1;
+    }
+    return Math.round((mTotalBytes - mBytesDone) / mBytesPerSecond);
+  }
+
+  /**
+   * @return how much of the file is done, from 0 to 1000
+   */
+  public int getPermille() {
+    if (mTotalBytes <= 0) {
+      return 1000;
+    }
+    return (int) (mBytesDone * 1000 / mTotalBytes);
+  }
+
+}
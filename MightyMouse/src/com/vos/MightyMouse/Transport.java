@@ -0,0 +1,79 @@
+package com.vos.MightyMouse;
+
+import java.io.IOException;
+
+/**
+ * A two-way byte link to a dongle. The ConnectedThread reads from one and
+ * its FrameWriter writes to it, and neither cares what it is underneath: an
+ * RFCOMM socket on a phone, or a TCP socket or an in-memory pipe to a dongle
+ * simulator when there's no phone to hand.
+ * <p>
+ * read() is only called from one thread and write() from another, so they
+ * must not block each other.
+ */
+public interface Transport {
+
+  // The states a transport goes through. It never goes back.
+  public static final int STATE_NONE = 0;       // not opened yet
+  public static final int STATE_CONNECTING = 1; // open() is running
+  public static final int STATE_CONNECTED = 2;  // ready to read and write
+  public static final int STATE_CLOSED = 3;     // closed, or failed to open
+
+  /**
+   * Told whenever the transport changes state, on whichever thread made it
+   * change.
+   */
+  public interface Listener {
+    void onStateChanged(Transport transport, int state);
+  }
+
+  public void setListener(Listener listener);
+
+  /**
+   * Connect. Blocks until the transport is connected or has failed to.
+   * @throws IOException if it couldn't connect, in which case it is closed
+   */
+  public void open() throws IOException;
+
+  /**
+   * Block until there are bytes to read, and read as many as are ready.
+   * @param buffer
+   * @param offset
+   * @param length
+   * @return the number of bytes read, at least one
+   * @throws IOException if the transport is closed, including by the other
+   * end
+   */
+  public int read(byte[] buffer, int offset, int length) throws IOException;
+
+  /**
+   * Write all of the bytes in one go. The FrameWriter gathers as many frames
+   * as it can into each call, so a transport should send them together if
+   * it can.
+   * @param buffer
+   * @param offset
+   * @param length
+   * @throws IOException
+   */
+  public void write(byte[] buffer, int offset, int length) throws IOException;
+
+  /**
+   * Close the transport. Anything blocked in read() or write() gets an
+   * IOException. Closing twice does nothing.
+   */
+  public void close();
+
+  public int getState();
+
+  /**
+   * @return something that identifies the dongle at the other end, eg a
+   * Bluetooth address, to remember things about it by
+   */
+  public String getAddress();
+
+  /**
+   * @return a name to show the user
+   */
+  public String getName();
+
+}
@@ -0,0 +1,140 @@
+package com.vos.MightyMouse;
+
+/**
+ * Works out how fast the finger is going from its most recent samples, by
+ * fitting a straight line to where it was against when it was there over
+ * the last {@link HORIZON_MILLIS}. Each sample is placed by its own event
+ * time, historical ones included, so the answer doesn't depend on how the
+ * samples were batched or how often anyone asks.
+ * <p>
+ * The MouseSender shows it every sample it drains, then calls
+ * {@link estimate}. Nothing is allocated.
+ */
+public class VelocityEstimator implements SampleRing.Visitor {
+
+  // Samples older than this, measured from the newest, aren't used. A gap
+  // this long between samples means a new stroke.
+  public static final long HORIZON_MILLIS = 80;
+  // At 120Hz the horizon holds about ten samples.
+  private static final int MAX_SAMPLES = 16;
+
+  // The finger's positions, relative to where it was when we started
+  // following it, in a circular buffer.
+  private final float[] mX = new float[MAX_SAMPLES];
+  private final float[] mY = new float[MAX_SAMPLES];
+  private final long[] mTime = new long[MAX_SAMPLES];
+  private int mNewest = -1;
+  private int mCount;
+  private float mPositionX;
+  private float mPositionY;
+
+  // In pixels per millisecond.
+  private float mVelocityX;
+  private float mVelocityY;
+
+  @Override
+  public void onSample(float dx, float dy, float wheel, int flags,
+      long time) {
+    if ((flags & TouchAggregator.FLAG_DOWN) != 0) {
+      reset();
+    }
+    if (dx == 0 && dy == 0
+        && (wheel != 0 || (flags & TouchAggregator.FLAG_SCROLL) != 0)) {
+      // Scrolling, which doesn't move the pointer. The gap it leaves
+      // starts a new stroke once the pointer moves again.
+      return;
+    }
+    if (mCount > 0 && time - mTime[mNewest] > HORIZON_MILLIS) {
+      reset();
+    }
+    mPositionX += dx;
+    mPositionY += dy;
+    mNewest = (mNewest + 1) % MAX_SAMPLES;
+    mX[mNewest] = mPositionX;
+    mY[mNewest] = mPositionY;
+    mTime[mNewest] = time;
+    if (mCount < MAX_SAMPLES) {
+      mCount++;
+    }
+  }
+
+  /**
+   * Forget the samples so far, eg because the finger was lifted.
+   */
+  public void reset() {
+    mNewest = -1;
+    mCount = 0;
+    mPositionX = 0;
+    mPositionY = 0;
+    mVelocityX = 0;
+    mVelocityY = 0;
+  }
+
+  /**
+   * Fit the samples within the horizon of the newest one.
+   * @return false if there weren't two samples far enough apart in time to
+   * tell, in which case the velocity is left as it was
+   */
+  public boolean estimate() {
+    if (mCount < 2) {
+      return false;
+    }
+    // Work relative to the newest sample, to keep the sums small
+    long newestTime = mTime[mNewest];
+    float newestX = mX[mNewest];
+    float newestY = mY[mNewest];
+    int used = 0;
+    double sumT = 0;
+    double sumX = 0;
+    double sumY = 0;
+    double sumTT = 0;
+    double sumTX = 0;
+    double sumTY = 0;
+    for (int i = 0; i < mCount; i++) {
+      int index = (mNewest - i + MAX_SAMPLES) % MAX_SAMPLES;
+      long age = newestTime - mTime[index];
+      if (age > HORIZON_MILLIS) {
+        break;
+      }
+      double t = -age;
+      double x = mX[index] - newestX;
+      double y = mY[index] - newestY;
+      sumT += t;
+      sumX += x;
+      sumY += y;
+      sumTT += t * t;
+      sumTX += t * x;
+      sumTY += t * y;
+      used++;
+    }
+    double spread = used * sumTT - sumT * sumT;
+    if (used < 2 || spread <= 0) {
+      return false;
+    }
+    mVelocityX = (float) ((used * sumTX - sumT * sumX) / spread);
+    mVelocityY = (float) ((used * sumTY - sumT * sumY) / spread);
+    return true;
+  }
+
+  /**
+   * @return pixels per millisecond, as of the last {@link estimate}
+   */
+  public float getVelocityX() {
+    return mVelocityX;
+  }
+
+  /**
+   * @return pixels per millisecond, as of the last {@link estimate}
+   */
+  public float getVelocityY() {
+    return mVelocityY;
+  }
+
+  /**
+   * @return the event time of the newest sample, or 0 if there isn't one
+   */
+  public long getNewestTime() {
+    return (mCount == 0) ? 0 : mTime[mNewest];
+  }
+
+}
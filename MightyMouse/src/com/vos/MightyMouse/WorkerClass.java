@@ -17,15 +17,15 @@
 package com.vos.MightyMouse;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothServerSocket;
 import android.bluetooth.BluetoothSocket;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
@@ -62,11 +62,34 @@ public class WorkerClass {
     // Member fields
     private final BluetoothAdapter mAdapter;
     private final Handler mHandler;
+    private final Context mContext;
     private AcceptThread mSecureAcceptThread;
     private AcceptThread mInsecureAcceptThread;
     private ConnectThread mConnectThread;
     private ConnectedThread mConnectedThread;
-    private int mState;
+    // Written under the lock, but read without it.
+    private volatile int mState;
+    // The current connection, or null if there isn't one. Senders read this
+    // without locking.
+    private final AtomicReference<ConnectedSession> mSession =
+        new AtomicReference<ConnectedSession>();
+
+    // How many chars of text we can have in flight to the dongle. Two full
+    // text frames: one being typed and one waiting in its Serial1 buffer.
+    private final SendCredits mSendCredits =
+        new SendCredits(2 * FrameEncoder.MAX_TEXT_CHARS);
+
+    // How long the writer may hold frames back to send them together, and
+    // how many bytes make it send right away. Off by default: the link is
+    // fast enough for most dongles, but a busy radio does better with fewer,
+    // bigger packets.
+    private volatile long mCoalesceMicros = 0;
+    private volatile int mCoalesceThresholdBytes = COALESCE_THRESHOLD_BYTES;
+
+    // What the Coalesce Writes menu item turns coalescing on with. Long
+    // enough to catch a burst, short next to a 9600 baud frame.
+    public static final long COALESCE_MICROS = 2000;
+    public static final int COALESCE_THRESHOLD_BYTES = 64;
 
     // Constants that indicate the current connection state
     public static final int STATE_NONE = 0;       // we're doing nothing
@@ -83,6 +106,7 @@ public class WorkerClass {
         mAdapter = BluetoothAdapter.getDefaultAdapter();
         mState = STATE_NONE;
         mHandler = handler;
+        mContext = context.getApplicationContext();
     }
 
     /**
@@ -99,16 +123,26 @@ public class WorkerClass {
 
     /**
      * Return the current connection state. */
-    public synchronized int getState() {
+    public int getState() {
         return mState;
     }
 
+    /**
+     * The credits for sending text to the connected dongle. They are reset
+     * on every new connection.
+     */
+    public SendCredits getSendCredits() {
+        return mSendCredits;
+    }
+
     /**
      * Start the chat service. Specifically start AcceptThread to begin a
      * session in listening (server) mode. Called by the Activity onResume() */
     public synchronized void start() {
         if (D) Log.d(TAG, "start");
 
+        closeSession();
+
         // Cancel any thread attempting to make a connection
         if (mConnectThread != null) {
           mConnectThread.cancel(); 
@@ -140,7 +174,21 @@ public class WorkerClass {
      * @param secure Socket Security type - Secure (true) , Insecure (false)
      */
     public synchronized void connect(BluetoothDevice device, boolean secure) {
-        if (D) Log.d(TAG, "connect to: " + device);
+        // We always do RFCOMM, whatever secure says
+        connect(new RfcommTransport(device, RFCOMM_UUID),
+                secure ? "Secure" : "Insecure");
+    }
+
+    /**
+     * Start the ConnectThread to connect over any kind of Transport, eg TCP
+     * to a dongle simulator.
+     * @param transport  A Transport that hasn't been opened yet
+     * @param type  What kind of connection this is, for the logs
+     */
+    public synchronized void connect(Transport transport, String type) {
+        if (D) Log.d(TAG, "connect to: " + transport.getName());
+
+        closeSession();
 
         // Cancel any thread attempting to make a connection
         if (mState == STATE_CONNECTING) {
@@ -154,7 +202,7 @@ public class WorkerClass {
         }
 
         // Start the thread to connect with the given device
-        mConnectThread = new ConnectThread(device, secure);
+        mConnectThread = new ConnectThread(transport, type);
         mConnectThread.start();
         setState(STATE_CONNECTING);
     }
@@ -166,8 +214,28 @@ public class WorkerClass {
      */
     public synchronized void connected(BluetoothSocket socket, BluetoothDevice
             device, final String socketType) {
+        RfcommTransport transport = new RfcommTransport(socket);
+        try {
+            // Already connected, so this just gets the streams
+            transport.open();
+        } catch (IOException e) {
+            Log.e(TAG, "accepted socket unusable", e);
+            connectionFailed();
+            return;
+        }
+        connected(transport, socketType);
+    }
+
+    /**
+     * Start the ConnectedThread to begin managing a connection
+     * @param transport  The open Transport to the dongle
+     * @param socketType  What kind of connection this is, for the logs
+     */
+    public synchronized void connected(Transport transport, String socketType) {
         if (D) Log.d(TAG, "connected, Socket Type:" + socketType);
 
+        closeSession();
+
         // Cancel the thread that completed the connection
         if (mConnectThread != null) {mConnectThread.cancel(); mConnectThread = null;}
 
@@ -184,15 +252,19 @@ public class WorkerClass {
             mInsecureAcceptThread = null;
         }
 
+        // A new dongle starts with an empty buffer
+        mSendCredits.reset();
+
         // Start the thread to manage the connection and perform transmissions
-        mConnectedThread = new ConnectedThread(socket, socketType);
+        mConnectedThread = new ConnectedThread(transport, socketType);
+        mSession.set(mConnectedThread.mmSession);
         mConnectedThread.start();
 
         // Send the name of the connected device back to the UI Activity
         Message msg = mHandler.obtainMessage(
           MouseAndKeyboardActivity.MESSAGE_DEVICE_NAME);
         Bundle bundle = new Bundle();
-        bundle.putString(MouseAndKeyboardActivity.DEVICE_NAME, device.getName());
+        bundle.putString(MouseAndKeyboardActivity.DEVICE_NAME, transport.getName());
         msg.setData(bundle);
         mHandler.sendMessage(msg);
 
@@ -205,6 +277,8 @@ public class WorkerClass {
     public synchronized void stop() {
         if (D) Log.d(TAG, "stop");
 
+        closeSession();
+
         if (mConnectThread != null) {
             mConnectThread.cancel();
             mConnectThread = null;
@@ -230,18 +304,78 @@ public class WorkerClass {
     /**
      * Write to the ConnectedThread in an unsynchronized manner
      * @param out The bytes to write
-     * @see ConnectedThread#write(byte[])
      */
     public void write(byte[] out) {
-        // Create temporary object
-        ConnectedThread r;
-        // Synchronize a copy of the ConnectedThread
-        synchronized (this) {
-            if (mState != STATE_CONNECTED) return;
-            r = mConnectedThread;
+        write(out, 0, out.length);
+    }
+
+    /**
+     * Queue part of a buffer to be written by the ConnectedThread's writer.
+     * This never blocks on the socket.
+     * @param out The bytes to write, at most {@link FrameRing#SLOT_BYTES}
+     * @param offset The index of the first byte to write
+     * @param length The number of bytes to write
+     */
+    public void write(byte[] out, int offset, int length) {
+        ConnectedSession session = mSession.get();
+        if (session == null) return;
+        if (!session.write(out, offset, length) && session.isOpen()) {
+            Log.e(TAG, "outbound queue full, dropped " + length
+                    + " bytes, total drops: " + session.getWriter().getDrops());
+        }
+    }
+
+    /**
+     * The current connection. Senders can keep hold of this and write
+     * through it until {@link ConnectedSession#isOpen} says it is over.
+     * @return the session, or null if we aren't connected
+     */
+    public ConnectedSession getSession() {
+        return mSession.get();
+    }
+
+    /**
+     * Close the current session, if there is one, so that nobody writes
+     * through it any more.
+     */
+    private void closeSession() {
+        ConnectedSession session = mSession.getAndSet(null);
+        if (session != null) session.close();
+    }
+
+    /**
+     * Let the writer hold frames back for up to micros so that bursts go out
+     * in fewer, bigger writes. Frames that ask for a flush (clicks, keys)
+     * still go right away. Applies to the current connection and any later
+     * ones.
+     * @param micros  How long to wait for more frames, or 0 to turn it off
+     * @param thresholdBytes  Write as soon as this many bytes are waiting
+     */
+    public void setCoalescing(long micros, int thresholdBytes) {
+        mCoalesceMicros = micros;
+        mCoalesceThresholdBytes = thresholdBytes;
+        FrameWriter writer = getFrameWriter();
+        if (writer != null) {
+            writer.setCoalescing(micros * 1000, thresholdBytes);
         }
-        // Perform the write unsynchronized
-        r.write(out);
+    }
+
+    /**
+     * @return how long the writer may hold frames back, in microseconds, or
+     * 0 if it doesn't
+     */
+    public long getCoalesceMicros() {
+        return mCoalesceMicros;
+    }
+
+    /**
+     * The writer for the current connection, for callers that want to encode
+     * frames straight into its queue.
+     * @return the writer, or null if we aren't connected
+     */
+    public FrameWriter getFrameWriter() {
+        ConnectedSession session = mSession.get();
+        return (session == null) ? null : session.getWriter();
     }
 
     /**
@@ -263,6 +397,8 @@ public class WorkerClass {
      * Indicate that the connection was lost and notify the UI Activity.
      */
     private void connectionLost() {
+        closeSession();
+
         // Send a failure message back to the Activity
         Message msg = mHandler.obtainMessage(MouseAndKeyboardActivity.MESSAGE_TOAST);
         Bundle bundle = new Bundle();
@@ -274,6 +410,51 @@ public class WorkerClass {
         WorkerClass.this.start();
     }
 
+    /**
+     * Handles the replies the dongle sends back to us.
+     */
+    private final DongleReplyParser.Listener mReplyListener =
+        new DongleReplyParser.Listener() {
+        @Override
+        public void onReply(char type, int[] args, int argCount) {
+            switch (type) {
+            case 'G':
+                // The dongle finished typing and wants more text
+                if (argCount > 0) mSendCredits.grant(args[0]);
+                break;
+            case 'E':
+                if (D && argCount == 3) Log.d(TAG, "dongle reported error, state: " + args[0]
+                        + " location: " + args[1] + " value: " + args[2]);
+                break;
+            default:
+                Log.e(TAG, "unrecognized reply from dongle: " + type);
+                break;
+            }
+        }
+    };
+
+    /**
+     * Remembers the last rate that worked for each dongle across runs.
+     */
+    private final LinkNegotiator.RateStore mRateStore = new LinkNegotiator.RateStore() {
+        private static final String PREFS = "link_rates";
+
+        @Override
+        public int getLastGoodRate(String address) {
+            return mContext.getSharedPreferences(PREFS, Context.MODE_PRIVATE)
+                    .getInt(address, 0);
+        }
+
+        @Override
+        public void setLastGoodRate(String address, int rate) {
+            if (D) Log.d(TAG, "serial rate for " + address + ": " + rate);
+            SharedPreferences.Editor editor =
+                mContext.getSharedPreferences(PREFS, Context.MODE_PRIVATE).edit();
+            editor.putInt(address, rate);
+            editor.apply();
+        }
+    };
+
     /**
      * This thread runs while listening for incoming connections. It behaves
      * like a server-side client. It runs until a connection is accepted
@@ -365,31 +546,12 @@ public class WorkerClass {
      * succeeds or fails.
      */
     private class ConnectThread extends Thread {
-        private final BluetoothSocket mmSocket;
-        private final BluetoothDevice mmDevice;
+        private final Transport mmTransport;
         private String mSocketType;
 
-        public ConnectThread(BluetoothDevice device, boolean secure) {
-            mmDevice = device;
-            BluetoothSocket tmp = null;
-            mSocketType = secure ? "Secure" : "Insecure";
-
-            // Get a BluetoothSocket for a connection with the
-            // given BluetoothDevice
-            try {
-              // We want to always do RFCOMM.
-              tmp = device.createRfcommSocketToServiceRecord(RFCOMM_UUID);
-//                if (secure) {
-//                    tmp = device.createRfcommSocketToServiceRecord(
-//                            MY_UUID_SECURE);
-//                } else {
-//                    tmp = device.createInsecureRfcommSocketToServiceRecord(
-//                            MY_UUID_INSECURE);
-//                }
-            } catch (IOException e) {
-                Log.e(TAG, "Socket Type: " + mSocketType + "create() failed", e);
-            }
-            mmSocket = tmp;
+        public ConnectThread(Transport transport, String socketType) {
+            mmTransport = transport;
+            mSocketType = socketType;
         }
 
         public void run() {
@@ -397,21 +559,18 @@ public class WorkerClass {
             setName("ConnectThread" + mSocketType);
 
             // Always cancel discovery because it will slow down a connection
-            mAdapter.cancelDiscovery();
+            if (mmTransport instanceof RfcommTransport) {
+                mAdapter.cancelDiscovery();
+            }
 
-            // Make a connection to the BluetoothSocket
+            // Make a connection to the Transport
             try {
                 // This is a blocking call and will only return on a
-                // successful connection or an exception
-                mmSocket.connect();
+                // successful connection or an exception. The transport
+                // closes itself if it fails.
+                mmTransport.open();
             } catch (IOException e) {
-                // Close the socket
-                try {
-                    mmSocket.close();
-                } catch (IOException e2) {
-                    Log.e(TAG, "unable to close() " + mSocketType +
-                            " socket during connection failure", e2);
-                }
+                Log.e(TAG, "unable to connect " + mSocketType, e);
                 connectionFailed();
                 return;
             }
@@ -422,43 +581,42 @@ public class WorkerClass {
             }
 
             // Start the connected thread
-            connected(mmSocket, mmDevice, mSocketType);
+            connected(mmTransport, mSocketType);
         }
 
         public void cancel() {
-            try {
-                mmSocket.close();
-            } catch (IOException e) {
-                Log.e(TAG, "close() of connect " + mSocketType + " socket failed", e);
-            }
+            mmTransport.close();
         }
     }
 
     /**
      * This thread runs during a connection with a remote device.
-     * It handles all incoming and outgoing transmissions.
+     * It handles all incoming transmissions, and owns the FrameWriter that
+     * handles all outgoing ones.
      */
-    private class ConnectedThread extends Thread {
-        private final BluetoothSocket mmSocket;
-        private final InputStream mmInStream;
-        private final OutputStream mmOutStream;
-
-        public ConnectedThread(BluetoothSocket socket, String socketType) {
+    private class ConnectedThread extends Thread
+            implements FrameWriter.Listener, DongleReplyParser.Listener {
+        private final Transport mmTransport;
+        private final DongleReplyParser mmReplyParser;
+        private final FrameWriter mmWriter;
+        private final LinkNegotiator mmNegotiator;
+        private final ConnectedSession mmSession;
+
+        public ConnectedThread(Transport transport, String socketType) {
             Log.d(TAG, "create ConnectedThread: " + socketType);
-            mmSocket = socket;
-            InputStream tmpIn = null;
-            OutputStream tmpOut = null;
-
-            // Get the BluetoothSocket input and output streams
-            try {
-                tmpIn = socket.getInputStream();
-                tmpOut = socket.getOutputStream();
-            } catch (IOException e) {
-                Log.e(TAG, "temp sockets not created", e);
+            mmTransport = transport;
+            mmReplyParser = new DongleReplyParser(this);
+            mmWriter = new FrameWriter(mmTransport, this);
+            mmWriter.setCoalescing(mCoalesceMicros * 1000, mCoalesceThresholdBytes);
+            mmNegotiator = new LinkNegotiator(mmWriter,
+                    transport.getAddress(), mRateStore);
+            if (transport instanceof LinkNegotiator.RateFollower) {
+                // A wired link, so our end has to change rate too
+                mmNegotiator.setRateFollower(
+                        (LinkNegotiator.RateFollower) transport);
             }
-
-            mmInStream = tmpIn;
-            mmOutStream = tmpOut;
+            mmSession = new ConnectedSession(mmWriter,
+                    transport.getAddress(), transport.getName());
         }
 
         public void run() {
@@ -466,11 +624,20 @@ public class WorkerClass {
             byte[] buffer = new byte[1024];
             int bytes;
 
-            // Keep listening to the InputStream while connected
+            mmWriter.start();
+
+            // Find out if the dongle can do better than protocol version 1
+            // at 9600 baud
+            new Thread(mmNegotiator, "LinkNegotiator").start();
+
+            // Keep listening to the Transport while connected
             while (true) {
                 try {
-                    // Read from the InputStream
-                    bytes = mmInStream.read(buffer);
+                    // Read from the Transport
+                    bytes = mmTransport.read(buffer, 0, buffer.length);
+
+                    // Act on anything the dongle is telling us
+                    mmReplyParser.feed(buffer, 0, bytes);
 
                     // Send the obtained bytes to the UI Activity
                     mHandler.obtainMessage(MouseAndKeyboardActivity.MESSAGE_READ, bytes, -1, buffer)
@@ -485,28 +652,32 @@ public class WorkerClass {
             }
         }
 
-        /**
-         * Write to the connected OutStream.
-         * @param buffer  The bytes to write
-         */
-        public void write(byte[] buffer) {
-            try {
-                mmOutStream.write(buffer);
+        @Override
+        public void onWrite(byte[] buffer, int offset, int length) {
+            // Share the sent message back to the UI Activity. The buffer is
+            // reused by the writer, so only arg1 bytes starting at arg2 are
+            // valid, and only until it writes again.
+            mHandler.obtainMessage(MouseAndKeyboardActivity.MESSAGE_WRITE, length, offset, buffer)
+                    .sendToTarget();
+        }
 
-                // Share the sent message back to the UI Activity
-                mHandler.obtainMessage(MouseAndKeyboardActivity.MESSAGE_WRITE, -1, -1, buffer)
-                        .sendToTarget();
-            } catch (IOException e) {
-                Log.e(TAG, "Exception during write", e);
+        @Override
+        public void onReply(char type, int[] args, int argCount) {
+            if (type == FrameEncoder.HELLO) mmSession.setHelloAnswered();
+            if (!mmNegotiator.onReply(type, args, argCount)) {
+                mReplyListener.onReply(type, args, argCount);
             }
         }
 
+        @Override
+        public void onWriteFailed(IOException e) {
+            Log.e(TAG, "Exception during write", e);
+        }
+
         public void cancel() {
-            try {
-                mmSocket.close();
-            } catch (IOException e) {
-                Log.e(TAG, "close() of connect socket failed", e);
-            }
+            mmNegotiator.cancel();
+            mmWriter.stop();
+            mmTransport.close();
         }
     }
 }
@@ -4,54 +4,163 @@
 */
 
 // Special bytes
-#define  START_BYTE      255
+#define  START_BYTE      255 // Starts a version 1 frame
+#define  END_BYTE          0 // Ends a version 2 frame
 #define  CLICK_BEGIN      67 // 'C'
 #define  KEY_BEGIN        75 // 'K'
 #define  MOUSE_BEGIN      77 // 'M'
+#define  TEXT_BEGIN       84 // 'T'
+#define  HELLO_BEGIN      86 // 'V'
+#define  BAUD_BEGIN       66 // 'B'
+#define  PROBE_BEGIN      80 // 'P'
+
+// The newest protocol we speak. Version 1 frames are {255}{type}{payload}.
+// Version 2 frames are {type}{payload}{CRC-8}, COBS encoded so that they
+// contain no 0s, followed by a 0. Once the app's hello has agreed on
+// version 2 both are accepted: a frame that starts with 255 is version 1,
+// and anything else is version 2 (a COBS code byte is never 255 for frames
+// this short). See FrameEncoder in the app.
+#define  PROTOCOL_VERSION  2
+
+// The most chars a single text frame can carry. Keep in sync with
+// FrameEncoder.MAX_TEXT_CHARS in the app.
+#define  MAX_TEXT_CHARS   32
 
 // State machine states
 #define  WAIT_FOR_START   0  // Expecting a START_BYTE next
 #define  STARTED          1  // We got a START_BYTE, looking for a command type next
-#define  CLICK_GET_0     10  // Expecting a click type (button number)
+#define  CLICK_GET_0     10  // Expecting a click type ('L', 'R', 'D' or 'U')
 #define  KEY_GET_0       20  // Expecting an ASCII code to type
 #define  MOUSE_GET_0     30  // Expecting an x-coordinate -127 to 127
 #define  MOUSE_GET_1     31  // Expecting a y-coordinate -127 to 127
 #define  MOUSE_GET_2     32  // Expecting a scroll amount -127 to 127
+#define  TEXT_GET_LEN    40  // Expecting the number of chars in the run
+#define  TEXT_GET_CHARS  41  // Expecting the next ASCII code in the run
+#define  HELLO_GET_0     50  // Expecting the newest version the app speaks
+#define  V2_GET_FRAME    60  // Collecting a version 2 frame up to its END_BYTE
+#define  V2_SKIP_FRAME   61  // Throwing away a bad frame up to its END_BYTE
+#define  BAUD_GET_0      70  // Expecting the index of a rate to switch to
+#define  PROBE_GET_0     71  // Expecting a value to echo back
+
+// The longest encoded version 2 frame: code byte, type, text length, the
+// text and the CRC.
+#define  MAX_V2_FRAME    (MAX_TEXT_CHARS + 4)
 
 int currentState = WAIT_FOR_START;   // Current state machine state
+int protocolVersion = 1;     // The version agreed on with the app
 
 int mouseX = 0;              // Hold the mouse move-by-x val until command is complete
 int mouseY = 0;              // Hold the mouse move-by-y val until command is complete
 
-void printError(int intVal);
+char textBuffer[MAX_TEXT_CHARS + 1]; // Hold a run of text until it is complete
+int textLength = 0;          // The number of chars expected in the run
+int textIndex = 0;           // The number of chars received so far
+
+byte frameBuffer[MAX_V2_FRAME]; // Hold a version 2 frame until its END_BYTE
+int frameLength = 0;         // The number of bytes in frameBuffer
+
+// The rates the app can ask for, by index. Keep in sync with
+// LinkNegotiator.BAUD_RATES in the app. We start out at the first.
+const long baudRates[] = { 9600, 19200, 38400, 57600, 115200 };
+#define  NUM_BAUD_RATES  5
+// After switching rate, go back to the old one unless a probe gets through
+// within this long
+#define  BAUD_VERIFY_MILLIS  2000
+// Set to 1 once configureRadio() below really switches your radio's rate.
+// Until then the hello reply tells the app not to ask for another rate,
+// since over the radio it could only garble the link while it tries.
+#define  RADIO_CHANGES_RATE  0
+
+// Bits in the second value of the hello reply. Keep in sync with
+// LinkNegotiator.FEATURE_RADIO_RATE in the app.
+#define  FEATURE_RADIO_RATE  1
+
+int baudIndex = 0;           // The rate Serial1 is running at
+int oldBaudIndex = 0;        // The rate to go back to if the new one fails
+boolean baudPending = false; // True until a probe gets through at the new rate
+unsigned long baudSwitchedAt = 0; // When we switched
+
+void printError(int location, int intVal);
+void grantCredits(int count);
+void typeText(char *chars, int count);
+void click(int type);
+void handleFrame();
+byte crc8(byte *data, int count);
+void changeBaud(int index);
+void answerProbe(int value);
+void setSerialRate(int index);
+void configureRadio(long rate);
 
 void setup()
 {
   // start serial ports at 9600 bps:
   Serial.begin(9600);
-  Serial1.begin(9600);
+  Serial1.begin(baudRates[0]);
   Keyboard.begin();
   Mouse.begin();
 }
 
 void loop()
 {
+  // If the app's probe never got through at the new rate, we can't hear it
+  // at all, so go back to the rate we know works
+  if (baudPending && millis() - baudSwitchedAt > BAUD_VERIFY_MILLIS) {
+    baudPending = false;
+    setSerialRate(oldBaudIndex);
+    currentState = WAIT_FOR_START;
+  }
+  
   // if we get a valid byte, read analog ins:
   if (Serial1.available() > 0) {
-    // get incoming byte and convert to int
-    char inChar = Serial1.read();
-    int intVal = (int) inChar;
+    // get incoming byte. read() gives us 0 to 255, which is what we compare
+    // against. Mouse deltas are signed, so they get cast back where they're
+    // used.
+    int intVal = Serial1.read();
+    char inChar = (char) intVal;
+    
+    // In a version 2 frame every byte but END_BYTE is just data, 255s too
+    if (currentState == V2_GET_FRAME) {
+      if (intVal == END_BYTE) {
+        currentState = WAIT_FOR_START;
+        handleFrame();
+      } else if (frameLength == MAX_V2_FRAME) {
+        // Too long to be real. Drop it, and pick up after the next END_BYTE
+        printError(20,frameLength);
+        currentState = V2_SKIP_FRAME;
+      } else {
+        frameBuffer[frameLength++] = intVal;
+      }
+      return;
+    }
+    if (currentState == V2_SKIP_FRAME) {
+      if (intVal == END_BYTE) {
+        currentState = WAIT_FOR_START;
+      }
+      return;
+    }
     
     // Any time we receive START_BYTE, start over
     if (intVal == START_BYTE){
+      if (currentState == TEXT_GET_CHARS) {
+        // The rest of the run is lost, but the app still spent credits on it
+        grantCredits(textLength);
+      }
       currentState = STARTED;
       return;
     }
     
     switch (currentState){
       case WAIT_FOR_START:
-        // If we're here, then we didn't get the START_BYTE, so print an error
-        printError(0,intVal);
+        if (protocolVersion < 2) {
+          // If we're here, then we didn't get the START_BYTE, so print an error
+          printError(0,intVal);
+        } else if (intVal != END_BYTE) {
+          // Not a START_BYTE, so this is the first byte of a version 2
+          // frame. A stray END_BYTE just ends a frame we already dropped.
+          frameBuffer[0] = intVal;
+          frameLength = 1;
+          currentState = V2_GET_FRAME;
+        }
         break;
         
       case STARTED:
@@ -70,6 +179,22 @@ void loop()
             currentState = MOUSE_GET_0;
             break;
             
+          case TEXT_BEGIN:
+            currentState = TEXT_GET_LEN;
+            break;
+            
+          case HELLO_BEGIN:
+            currentState = HELLO_GET_0;
+            break;
+            
+          case BAUD_BEGIN:
+            currentState = BAUD_GET_0;
+            break;
+            
+          case PROBE_BEGIN:
+            currentState = PROBE_GET_0;
+            break;
+            
           default:
             // If we didn't get a correct type byte, print an error
             printError(5,intVal);
@@ -78,8 +203,7 @@ void loop()
         break;
         
       case CLICK_GET_0:
-        // For now, we disregard the type of click information
-        Mouse.click();
+        click(intVal);
         currentState = WAIT_FOR_START;
         break;
         
@@ -89,24 +213,64 @@ void loop()
         break;
         
       case MOUSE_GET_0:
-        mouseX = intVal; // Store the x value for later
+        mouseX = (signed char) intVal; // Store the x value for later
         currentState = MOUSE_GET_1;
         break;
         
       case MOUSE_GET_1:
-        mouseY = intVal; // Store the y value for later      
+        mouseY = (signed char) intVal; // Store the y value for later      
         currentState = MOUSE_GET_2;
         break;
         
       case MOUSE_GET_2:
         // Now we have all we need for the mouse command.
         // Execute the command and reset the global vars
-        Mouse.move(mouseX, mouseY, intVal);
+        Mouse.move(mouseX, mouseY, (signed char) intVal);
         mouseX = 0;
         mouseY = 0;
         currentState = WAIT_FOR_START;
         break;
         
+      case TEXT_GET_LEN:
+        if (intVal < 1 || intVal > MAX_TEXT_CHARS) {
+          printError(15,intVal);
+          break;
+        }
+        textLength = intVal;
+        textIndex = 0;
+        currentState = TEXT_GET_CHARS;
+        break;
+        
+      case TEXT_GET_CHARS:
+        textBuffer[textIndex++] = inChar;
+        if (textIndex == textLength) {
+          typeText(textBuffer, textLength);
+          currentState = WAIT_FOR_START;
+        }
+        break;
+        
+      case HELLO_GET_0:
+        // Tell the app the newest version we both speak, and expect it,
+        // and what else we can do
+        protocolVersion = min(intVal, PROTOCOL_VERSION);
+        Serial1.print("V<");
+        Serial1.print(protocolVersion);
+        Serial1.print(",");
+        Serial1.print(RADIO_CHANGES_RATE ? FEATURE_RADIO_RATE : 0);
+        Serial1.println(">");
+        currentState = WAIT_FOR_START;
+        break;
+        
+      case BAUD_GET_0:
+        currentState = WAIT_FOR_START;
+        changeBaud(intVal);
+        break;
+        
+      case PROBE_GET_0:
+        answerProbe(intVal);
+        currentState = WAIT_FOR_START;
+        break;
+        
       default:
          printError(10,intVal);
          break;
@@ -126,4 +290,179 @@ void printError(int location, int intVal){
   // Reset state to wait
   currentState = WAIT_FOR_START;
 }
-
+
+// Type a whole run of text at once, then let the app send more. chars must
+// have room for a terminating '\0' after count.
+void typeText(char *chars, int count){
+  chars[count] = '\0';
+  Keyboard.print(chars);
+  grantCredits(count);
+}
+
+// 'L' and 'R' click a button. 'D' and 'U' press and release the left one,
+// for dragging with taps on the trackpad. Anything else is a left click, as
+// it always was.
+void click(int type){
+  switch (type) {
+    case 'R':
+      Mouse.click(MOUSE_RIGHT);
+      break;
+    case 'D':
+      Mouse.press(MOUSE_LEFT);
+      break;
+    case 'U':
+      Mouse.release(MOUSE_LEFT);
+      break;
+    default:
+      Mouse.click(MOUSE_LEFT);
+      break;
+  }
+}
+
+// Decode the version 2 frame in frameBuffer and carry it out
+void handleFrame(){
+  // Undo the COBS encoding in place. Each code byte says how far it is to
+  // the next one, and every code byte but the first stood for a 0.
+  int next = 0;
+  while (next < frameLength) {
+    int code = frameBuffer[next];
+    if (code == 0 || next + code > frameLength) {
+      printError(22,next);
+      return;
+    }
+    if (next != 0) {
+      frameBuffer[next] = 0;
+    }
+    next += code;
+  }
+  // What's left after the first code byte is the type, payload and CRC
+  byte *frame = frameBuffer + 1;
+  int length = frameLength - 2;
+  if (length < 1) {
+    printError(23,frameLength);
+    return;
+  }
+  if (crc8(frame, length) != frame[length]) {
+    printError(21,frame[0]);
+    return;
+  }
+  byte *payload = frame + 1;
+  int payloadLength = length - 1;
+  switch (frame[0]) {
+    case CLICK_BEGIN:
+      click(payloadLength > 0 ? payload[0] : 0);
+      break;
+      
+    case KEY_BEGIN:
+      if (payloadLength != 1) {
+        printError(23,payloadLength);
+        return;
+      }
+      Keyboard.print((char) payload[0]);
+      break;
+      
+    case MOUSE_BEGIN:
+      if (payloadLength != 3) {
+        printError(23,payloadLength);
+        return;
+      }
+      Mouse.move((signed char) payload[0], (signed char) payload[1],
+          (signed char) payload[2]);
+      break;
+      
+    case TEXT_BEGIN:
+      if (payloadLength < 2 || payload[0] != payloadLength - 1
+          || payload[0] > MAX_TEXT_CHARS) {
+        printError(23,payloadLength);
+        return;
+      }
+      // The CRC byte after the text is no longer needed, so the run can be
+      // terminated in place
+      typeText((char *) payload + 1, payload[0]);
+      break;
+      
+    case BAUD_BEGIN:
+      if (payloadLength != 1) {
+        printError(23,payloadLength);
+        return;
+      }
+      changeBaud(payload[0]);
+      break;
+      
+    case PROBE_BEGIN:
+      if (payloadLength != 1) {
+        printError(23,payloadLength);
+        return;
+      }
+      answerProbe(payload[0]);
+      break;
+      
+    default:
+      printError(24,frame[0]);
+      break;
+  }
+}
+
+// CRC-8 with polynomial 0x07, the same as FrameEncoder.crc8() in the app
+byte crc8(byte *data, int count){
+  byte crc = 0;
+  for (int i = 0; i < count; i++) {
+    crc ^= data[i];
+    for (int bit = 0; bit < 8; bit++) {
+      crc = (crc & 0x80) ? (crc << 1) ^ 0x07 : crc << 1;
+    }
+  }
+  return crc;
+}
+
+// Switch Serial1 to the rate at index, as the app asked. We say yes at the
+// old rate, then switch and wait for a probe to make sure the new one works.
+void changeBaud(int index){
+  if (index < 0 || index >= NUM_BAUD_RATES) {
+    printError(30,index);
+    return;
+  }
+  Serial1.print("B<");
+  Serial1.print(index);
+  Serial1.println(">");
+  // Make sure the reply is out before the rate changes under it
+  Serial1.flush();
+  if (!baudPending) {
+    oldBaudIndex = baudIndex;
+  }
+  setSerialRate(index);
+  baudPending = true;
+  baudSwitchedAt = millis();
+}
+
+// The app checking that it can hear us. Getting one at all means the new
+// rate works, so keep it.
+void answerProbe(int value){
+  baudPending = false;
+  Serial1.print("P<");
+  Serial1.print(value);
+  Serial1.println(">");
+}
+
+void setSerialRate(int index){
+  baudIndex = index;
+  configureRadio(baudRates[index]);
+  Serial1.end();
+  Serial1.begin(baudRates[index]);
+  frameLength = 0;
+}
+
+// The radio module on the other end of Serial1 has to switch rate along
+// with us, and how that is done depends on the module (an AT command, a
+// command mode escape, ...), so fill this in for yours and set
+// RADIO_CHANGES_RATE to 1. Until then the app only changes rate when it's
+// wired straight to Serial1.
+void configureRadio(long rate){
+}
+
+// Tell the app it may send another count chars of text
+void grantCredits(int count){
+  Serial1.print("G<");
+  Serial1.print(count);
+  Serial1.println(">");
+}
@@ -0,0 +1,72 @@
+package com.vos.MightyMouse.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vos.MightyMouse.FrameEncoder;
+import com.vos.MightyMouse.SerialProtocolModel;
+
+/**
+ * Decoding a stream of frames with SerialProtocolModel, per frame. This is
+ * also a check on the frames: every move has to come out as it went in, 
+ * which version 1 can't manage for moves of -1.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DecodeBenchmark {
+
+  private static final int FRAMES = 256;
+
+  @Param({ "1", "2" })
+  int version;
+
+  private byte[] mStream;
+  private int mLength;
+  private SerialProtocolModel mModel;
+  private final EventCounter mEvents = new EventCounter();
+
+  @Setup
+  public void setUp() {
+    mStream = new byte[FRAMES * FrameEncoder.frameLength(
+        FrameEncoder.PROTOCOL_LATEST, FrameEncoder.MOUSE_PAYLOAD_BYTES)];
+    Random random = new Random(42);
+    byte[] move = new byte[FrameEncoder.MOUSE_PAYLOAD_BYTES];
+    for (int i = 0; i < FRAMES; i++) {
+      // Small moves, like a finger on the TrackPad makes. Without -1s, so
+      // that version 1 decodes them too.
+      move[0] = (byte) (random.nextInt(20) + 1);
+      move[1] = (byte) -(random.nextInt(20) + 2);
+      mLength += FrameEncoder.encode(version, mStream, mLength,
+          FrameEncoder.MOUSE, move, 0, move.length);
+    }
+    mModel = new SerialProtocolModel(mEvents);
+    byte[] hello = { FrameEncoder.DELIMITER, FrameEncoder.HELLO,
+        (byte) version };
+    mModel.feed(hello, 0, hello.length, 0);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(FRAMES)
+  public long decodeMouseFrames() {
+    mModel.feed(mStream, 0, mLength, 0);
+    return mEvents.getMoves();
+  }
+
+}
@@ -0,0 +1,74 @@
+package com.vos.MightyMouse.bench;
+
+import com.vos.MightyMouse.SerialProtocolModel;
+
+/**
+ * A SerialProtocolModel.Listener that just counts, for benchmarks that need
+ * somewhere for the dongle's output to go. Only one thread may count, but
+ * any thread may read the counts.
+ */
+public class EventCounter implements SerialProtocolModel.Listener {
+
+  private volatile long mMoves;
+  private volatile long mMotion;
+  private volatile long mClicks;
+  private volatile long mChars;
+  private volatile long mErrors;
+  private volatile long mReplies;
+
+  @Override
+  public void onMouseMove(int x, int y, int wheel) {
+    mMoves++;
+    mMotion += Math.abs(x) + Math.abs(y);
+  }
+
+  @Override
+  public void onMouseClick(int type) {
+    mClicks++;
+  }
+
+  @Override
+  public void onKeyboardPrint(byte[] chars, int offset, int count) {
+    mChars += count;
+  }
+
+  @Override
+  public void onError(int state, int location, int value) {
+    mErrors++;
+  }
+
+  @Override
+  public void onHello(int version, int features) {
+    mReplies++;
+  }
+
+  @Override
+  public void onReply(char type, int value) {
+    mReplies++;
+  }
+
+  public long getMoves() {
+    return mMoves;
+  }
+
+  public long getMotion() {
+    return mMotion;
+  }
+
+  public long getClicks() {
+    return mClicks;
+  }
+
+  public long getChars() {
+    return mChars;
+  }
+
+  public long getErrors() {
+    return mErrors;
+  }
+
+  public long getReplies() {
+    return mReplies;
+  }
+
+}
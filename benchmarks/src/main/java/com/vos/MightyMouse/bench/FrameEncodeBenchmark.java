@@ -0,0 +1,68 @@
+package com.vos.MightyMouse.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vos.MightyMouse.FrameEncoder;
+
+/**
+ * What it costs to encode each kind of frame, in both protocol versions.
+ * The string benchmarks are per char, so the old way of sending a string (a
+ * key frame per char) can be compared with text frames.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FrameEncodeBenchmark {
+
+  // DispatcherSingleton.KEYBOARD, which can't be used off Android.
+  static final byte KEYBOARD = (byte) 'K';
+  static final String TEXT = "The quick brown fox jumps over t";
+
+  @Param({ "1", "2" })
+  int version;
+
+  private final byte[] mDst = new byte[1024];
+  private final byte[] mMouse = { -1, 3, 0 };
+  private final byte[] mKey = new byte[1];
+
+  @Benchmark
+  public int mouseFrame() {
+    return FrameEncoder.encode(version, mDst, 0, FrameEncoder.MOUSE, mMouse,
+        0, FrameEncoder.MOUSE_PAYLOAD_BYTES);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(FrameEncoder.MAX_TEXT_CHARS)
+  public int stringAsKeyFrames() {
+    int offset = 0;
+    for (int i = 0; i < FrameEncoder.MAX_TEXT_CHARS; i++) {
+      mKey[0] = (byte) TEXT.charAt(i);
+      offset += FrameEncoder.encode(version, mDst, offset, KEYBOARD, mKey, 0,
+          1);
+    }
+    return offset;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(FrameEncoder.MAX_TEXT_CHARS)
+  public int stringAsTextFrame() {
+    return FrameEncoder.encodeText(version, mDst, 0, TEXT, 0,
+        FrameEncoder.MAX_TEXT_CHARS);
+  }
+
+}
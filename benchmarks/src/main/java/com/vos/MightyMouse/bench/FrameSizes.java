@@ -0,0 +1,30 @@
+package com.vos.MightyMouse.bench;
+
+import com.vos.MightyMouse.FrameEncoder;
+
+/**
+ * Prints how many bytes each kind of frame takes on the wire in each
+ * version of the protocol, to go with the timings from the benchmarks.
+ * <p>
+ * java -cp target/benchmarks.jar com.vos.MightyMouse.bench.FrameSizes
+ */
+public class FrameSizes {
+
+  public static void main(String[] args) {
+    System.out.println("frame            v1 bytes  v2 bytes");
+    row("mouse", FrameEncoder.MOUSE_PAYLOAD_BYTES, 1);
+    row("key", 1, 1);
+    row("click", 1, 1);
+    row("text, per char", 1 + FrameEncoder.MAX_TEXT_CHARS,
+        FrameEncoder.MAX_TEXT_CHARS);
+  }
+
+  private static void row(String name, int payloadLength, int per) {
+    System.out.printf("%-16s %8.2f  %8.2f%n", name,
+        (double) FrameEncoder.frameLength(FrameEncoder.PROTOCOL_V1,
+            payloadLength) / per,
+        (double) FrameEncoder.frameLength(FrameEncoder.PROTOCOL_V2,
+            payloadLength) / per);
+  }
+
+}
@@ -0,0 +1,95 @@
+package com.vos.MightyMouse.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.vos.MightyMouse.AccelerationCurve;
+import com.vos.MightyMouse.MouseSender;
+import com.vos.MightyMouse.TouchAggregator;
+import com.vos.MightyMouse.sim.SyntheticTouches;
+import com.vos.MightyMouse.sim.TouchReplay;
+
+/**
+ * The TrackPad's send path, without the View.
+ * <ul>
+ * <li>{@link tick} is one touch event's worth: its batch of samples going
+ * into the TouchAggregator, and the MouseSender sending them. With
+ * accelerate, the TrackPad's default AccelerationCurve is applied too.
+ * <li>{@link replay} is a whole SyntheticTouches trace through
+ * TouchReplay, so the cost of a change to the aggregation can be weighed up
+ * alongside what it does to the numbers TouchReplay reports.
+ * </ul>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MouseSenderBenchmark {
+
+  @Param({ "circle" })
+  String trace;
+
+  @Param({ "false", "true" })
+  boolean accelerate;
+
+  private final TouchAggregator mAggregator = new TouchAggregator();
+  private MouseSender mSender;
+  private byte[] mTrace;
+  private float mX = 100;
+  private float mY = 200;
+  private long mTime = 1000;
+
+  @Setup
+  public void setUp(final Blackhole output) {
+    mSender = new MouseSender(mAggregator, new MouseSender.Output() {
+      @Override
+      public void sendMouse(int dx, int dy, int wheel) {
+        output.consume(dx + dy + wheel);
+      }
+
+      @Override
+      public void sendClick(int type) {
+        output.consume(type);
+      }
+    });
+    if (accelerate) {
+      mSender.setAcceleration(AccelerationCurve.DEFAULT);
+    }
+    mAggregator.down(mX, mY, mTime);
+    mTrace = SyntheticTouches.make(trace);
+  }
+
+  @Benchmark
+  public boolean tick() {
+    for (int i = 0; i < SyntheticTouches.BATCH; i++) {
+      mX += 3.5f;
+      mY -= 2.25f;
+      mTime += SyntheticTouches.SAMPLE_MILLIS;
+      mAggregator.move(mX, mY, mTime);
+    }
+    mAggregator.endBatch();
+    return mSender.tick(mTime * 1000000);
+  }
+
+  @Benchmark
+  public TouchReplay.Report replay() throws IOException {
+    return TouchReplay.replay(mTrace, 0,
+        TouchReplay.TRACKPAD_MIN_INTERVAL_NANOS);
+  }
+
+}
@@ -0,0 +1,57 @@
+package com.vos.MightyMouse.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vos.MightyMouse.TouchAggregator;
+
+/**
+ * The UI thread putting samples into the TouchAggregator while the sender
+ * thread takes them out, both flat out. {@link move} is what onTouchEvent()
+ * pays per sample, which shouldn't go up with the sender draining at the
+ * same time. Run with -prof gc to check that neither side allocates.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class TouchAggregatorBenchmark {
+
+  private final TouchAggregator mAggregator = new TouchAggregator();
+  private final TouchAggregator.Motion mMotion = new TouchAggregator.Motion();
+  // Only the producer touches these.
+  private float mX;
+  private long mTime;
+
+  @Benchmark
+  @Group("spsc")
+  public void move() {
+    mX += 1.5f;
+    if (mX > 1000) {
+      mX = 0;
+    }
+    mAggregator.move(mX, mX, ++mTime);
+    if ((mTime & 1) == 0) {
+      mAggregator.endBatch();
+    }
+  }
+
+  @Benchmark
+  @Group("spsc")
+  public boolean drain() {
+    return mAggregator.drain(mMotion);
+  }
+
+}
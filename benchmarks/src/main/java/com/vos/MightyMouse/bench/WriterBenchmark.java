@@ -0,0 +1,196 @@
+package com.vos.MightyMouse.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vos.MightyMouse.FrameEncoder;
+import com.vos.MightyMouse.FrameWriter;
+import com.vos.MightyMouse.PipeTransport;
+import com.vos.MightyMouse.sim.DongleSimulator;
+
+/**
+ * The send path as DispatcherSingleton drives it, into a FrameWriter whose
+ * thread writes to an in-memory PipeTransport, with a DongleSimulator
+ * decoding at the other end.
+ * <ul>
+ * <li>{@link sendMouse} is what the TrackPad's sender pays per move:
+ * setMouseBytes() and sendMouse() come down to copying three bytes and
+ * posting them to the writer's mailbox.
+ * <li>{@link keyRoundTrip} is the time from queueing a key frame to the
+ * dongle having typed it, which is the latency the app and the protocol
+ * add, without the radio.
+ * <li>{@link textThroughput} is the same for a full text frame, per char.
+ * <li>{@link mouseRoundTrip} is the time from posting a move to the dongle
+ * having moved the mouse. Moves don't ask for a flush, so this is the
+ * latency coalescing adds.
+ * <li>{@link mouseAndText} is a move, a text frame and another move,
+ * queued one after the other as they would be when a string is sent while
+ * the finger is moving, until the dongle has done all three. Coalescing
+ * should get these into fewer writes.
+ * </ul>
+ * Each runs with the writer's coalescing deadline off (0) and on, as
+ * WorkerClass.setCoalescing() would set it. The teardown prints the number
+ * of writes, ie radio packets, per thousand frames and the frames per
+ * write the writer managed, to weigh against the latency.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WriterBenchmark {
+
+  private static final int PIPE_BYTES = 4096;
+  // What WorkerClass starts out with.
+  private static final int COALESCE_THRESHOLD_BYTES = 64;
+
+  @Param({ "1", "2" })
+  int version;
+
+  // How long the writer waits for more frames, or 0 for not at all.
+  @Param({ "0", "500", "2000" })
+  long coalesceMicros;
+
+  private FrameWriter mWriter;
+  private PipeTransport[] mPipe;
+  private final EventCounter mEvents = new EventCounter();
+  private final byte[] mMouseBytes = new byte[3];
+  // -1 goes out as 255, which version 1 can't tell from a start byte, so
+  // expect the dongle to complain about those.
+  private final byte[] mSource = { 5, -1, 0 };
+  private final byte[] mKey = { 'a' };
+
+  @Setup
+  public void setUp() throws IOException {
+    mPipe = PipeTransport.createPair("app", "dongle", PIPE_BYTES);
+    mPipe[0].open();
+    mPipe[1].open();
+    Thread dongle = new Thread(new DongleSimulator(mPipe[1], mEvents, false),
+        "DongleSimulator");
+    dongle.setDaemon(true);
+    dongle.start();
+    mWriter = new FrameWriter(mPipe[0], new FrameWriter.Listener() {
+      @Override
+      public void onWrite(byte[] buffer, int offset, int length) {
+      }
+
+      @Override
+      public void onWriteFailed(IOException e) {
+      }
+    });
+    mWriter.setCoalescing(coalesceMicros * 1000, COALESCE_THRESHOLD_BYTES);
+    mWriter.start();
+    if (version > FrameEncoder.PROTOCOL_V1) {
+      // Say hello first, or the dongle won't take version 2 frames
+      byte[] hello = { (byte) version };
+      mWriter.offer(FrameWriter.LANE_INTERACTIVE, FrameEncoder.HELLO, hello,
+          hello.length);
+      while (mEvents.getReplies() == 0) {
+        Thread.yield();
+      }
+      mWriter.setProtocolVersion(version);
+    }
+    // The app reads the replies, so must we or the pipe fills up
+    Thread drain = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        byte[] buffer = new byte[256];
+        try {
+          while (true) {
+            mPipe[0].read(buffer, 0, buffer.length);
+          }
+        } catch (IOException e) {
+          // Closed
+        }
+      }
+    }, "ReplyDrain");
+    drain.setDaemon(true);
+    drain.start();
+  }
+
+  @TearDown
+  public void tearDown() {
+    mWriter.stop();
+    mPipe[0].close();
+    long frames = Math.max(1, mWriter.getFramesWritten());
+    long writes = Math.max(1, mWriter.getWrites());
+    System.out.printf("%nversion %d, coalescing %d us: %.2f bytes/frame, "
+        + "%.1f writes/1000 frames, %.2f frames/write, %d drops, "
+        + "%d dongle errors%n", version, coalesceMicros,
+        (double) mWriter.getBytesWritten() / frames, 1000.0 * writes / frames,
+        (double) frames / writes, mWriter.getDrops(), mEvents.getErrors());
+  }
+
+  @Benchmark
+  public void sendMouse() {
+    System.arraycopy(mSource, 0, mMouseBytes, 0, mMouseBytes.length);
+    mWriter.postMouse(mMouseBytes[0], mMouseBytes[1], mMouseBytes[2]);
+  }
+
+  @Benchmark
+  public long keyRoundTrip() {
+    long before = mEvents.getChars();
+    mWriter.offer(FrameWriter.LANE_INTERACTIVE, FrameEncodeBenchmark.KEYBOARD,
+        mKey, 1);
+    mWriter.requestFlush();
+    return awaitChars(before + 1);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(FrameEncoder.MAX_TEXT_CHARS)
+  public long textThroughput() {
+    long before = mEvents.getChars();
+    mWriter.offerText(FrameEncodeBenchmark.TEXT, 0,
+        FrameEncoder.MAX_TEXT_CHARS);
+    return awaitChars(before + FrameEncoder.MAX_TEXT_CHARS);
+  }
+
+  @Benchmark
+  public long mouseRoundTrip() {
+    long before = mEvents.getMotion();
+    mWriter.postMouse(1, 0, 0);
+    long motion;
+    while ((motion = mEvents.getMotion()) <= before) {
+      // Spin, as in awaitChars()
+    }
+    return motion;
+  }
+
+  @Benchmark
+  public long mouseAndText() {
+    long chars = mEvents.getChars();
+    long motion = mEvents.getMotion();
+    mWriter.postMouse(1, 0, 0);
+    mWriter.offerText(FrameEncodeBenchmark.TEXT, 0,
+        FrameEncoder.MAX_TEXT_CHARS);
+    mWriter.postMouse(1, 0, 0);
+    while (mEvents.getMotion() < motion + 2) {
+      // Spin, as in awaitChars()
+    }
+    return awaitChars(chars + FrameEncoder.MAX_TEXT_CHARS);
+  }
+
+  private long awaitChars(long target) {
+    long chars;
+    while ((chars = mEvents.getChars()) < target) {
+      // Spin, so we measure the pipeline and not our own wakeup
+    }
+    return chars;
+  }
+
+}
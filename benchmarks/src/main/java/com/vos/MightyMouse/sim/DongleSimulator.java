@@ -0,0 +1,216 @@
+package com.vos.MightyMouse.sim;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import com.vos.MightyMouse.LinkNegotiator;
+import com.vos.MightyMouse.SerialDeviceTransport;
+import com.vos.MightyMouse.SerialProtocolModel;
+import com.vos.MightyMouse.TcpTransport;
+import com.vos.MightyMouse.Transport;
+
+/**
+ * Plays the part of a dongle at the far end of a Transport: decodes what the
+ * app sends with SerialProtocolModel and sends its replies back, just like
+ * SerialProtocol.ino does over Serial1.
+ * <p>
+ * It can also pace itself to the rate Serial1 is running at (10 bits a
+ * byte), so that the app sees the same back pressure a real dongle gives it.
+ * <p>
+ * Run on its own it listens for the app on a TCP port and prints what the
+ * dongle would do:
+ * <pre>
+ * java -cp target/benchmarks.jar com.vos.MightyMouse.sim.DongleSimulator \
+ *     [port | device]
+ * </pre>
+ * and the app can connect to it with a TcpTransport. Given a device path
+ * instead of a port, it sits on that serial device, for a
+ * SerialDeviceTransport to talk to.
+ */
+public class DongleSimulator implements Runnable {
+
+  public static final int DEFAULT_PORT = 5555;
+
+  private final Transport mTransport;
+  private final SerialProtocolModel.Listener mEvents;
+  private final SerialProtocolModel mModel;
+  private final boolean mPaced;
+  private final byte[] mReadBuffer = new byte[256];
+  private final StringBuilder mReply = new StringBuilder();
+  private byte[] mReplyBytes = new byte[32];
+
+  /**
+   * @param transport an open transport to the app
+   * @param events told what the dongle does. Called on the simulator's
+   * thread.
+   * @param paced true to take bytes no faster than the simulated Serial1
+   * would
+   */
+  public DongleSimulator(Transport transport,
+      SerialProtocolModel.Listener events, boolean paced) {
+    this.mTransport = transport;
+    this.mEvents = events;
+    this.mPaced = paced;
+    this.mModel = new SerialProtocolModel(mReplies);
+  }
+
+  /**
+   * Pretend configureRadio() has been filled in, so the app may change
+   * rate over the radio. Call before {@link run}.
+   * @param changes
+   */
+  public void setRadioChangesRate(boolean changes) {
+    mModel.setRadioChangesRate(changes);
+  }
+
+  @Override
+  public void run() {
+    long busyUntilNanos = System.nanoTime();
+    try {
+      while (true) {
+        int bytes = mTransport.read(mReadBuffer, 0, mReadBuffer.length);
+        if (mPaced) {
+          // Each byte takes 10 bits of Serial1's time
+          long now = System.nanoTime();
+          busyUntilNanos = Math.max(busyUntilNanos, now)
+              + bytes * 10L * 1000000000L / mModel.getBaudRate();
+          long wait = busyUntilNanos - now;
+          if (wait > 0) {
+            Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+          }
+        }
+        mModel.feed(mReadBuffer, 0, bytes, System.nanoTime() / 1000000);
+      }
+    } catch (IOException e) {
+      // The app went away
+    } catch (InterruptedException e) {
+      // Told to stop
+    } finally {
+      mTransport.close();
+    }
+  }
+
+  /**
+   * Passes the model's events on, and sends its replies to the app the way
+   * Serial1.println() would.
+   */
+  private final SerialProtocolModel.Listener mReplies =
+      new SerialProtocolModel.Listener() {
+    @Override
+    public void onMouseMove(int x, int y, int wheel) {
+      mEvents.onMouseMove(x, y, wheel);
+    }
+
+    @Override
+    public void onMouseClick(int type) {
+      mEvents.onMouseClick(type);
+    }
+
+    @Override
+    public void onKeyboardPrint(byte[] chars, int offset, int count) {
+      mEvents.onKeyboardPrint(chars, offset, count);
+    }
+
+    @Override
+    public void onError(int state, int location, int value) {
+      mEvents.onError(state, location, value);
+      mReply.setLength(0);
+      mReply.append("E<").append(state).append(',').append(location)
+          .append(',').append(value).append(">\r\n");
+      send();
+    }
+
+    @Override
+    public void onHello(int version, int features) {
+      mEvents.onHello(version, features);
+      mReply.setLength(0);
+      mReply.append("V<").append(version).append(',').append(features)
+          .append(">\r\n");
+      send();
+    }
+
+    @Override
+    public void onReply(char type, int value) {
+      mEvents.onReply(type, value);
+      mReply.setLength(0);
+      mReply.append(type).append('<').append(value).append(">\r\n");
+      send();
+    }
+  };
+
+  private void send() {
+    int length = mReply.length();
+    if (mReplyBytes.length < length) {
+      mReplyBytes = new byte[length];
+    }
+    for (int i = 0; i < length; i++) {
+      mReplyBytes[i] = (byte) mReply.charAt(i);
+    }
+    try {
+      mTransport.write(mReplyBytes, 0, length);
+    } catch (IOException e) {
+      // The read side will find out too, and stop
+    }
+  }
+
+  /**
+   * Prints everything the dongle does.
+   */
+  static class Printer implements SerialProtocolModel.Listener {
+    @Override
+    public void onMouseMove(int x, int y, int wheel) {
+      System.out.println("move " + x + " " + y + " " + wheel);
+    }
+
+    @Override
+    public void onMouseClick(int type) {
+      System.out.println("click " + (char) type);
+    }
+
+    @Override
+    public void onKeyboardPrint(byte[] chars, int offset, int count) {
+      System.out.println("type \"" + new String(chars, offset, count) + "\"");
+    }
+
+    @Override
+    public void onError(int state, int location, int value) {
+      System.out.println("error E<" + state + "," + location + "," + value
+          + ">");
+    }
+
+    @Override
+    public void onHello(int version, int features) {
+      System.out.println("hello V<" + version + "," + features + ">");
+    }
+
+    @Override
+    public void onReply(char type, int value) {
+      System.out.println("reply " + type + "<" + value + ">");
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length > 0 && args[0].startsWith("/")) {
+      SerialDeviceTransport transport =
+          new SerialDeviceTransport(args[0], LinkNegotiator.BASE_RATE);
+      transport.open();
+      System.out.println("dongle simulator on " + transport.getName());
+      new DongleSimulator(transport, new Printer(), true).run();
+      return;
+    }
+    int port = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+    ServerSocket server = new ServerSocket(port);
+    System.out.println("dongle simulator listening on port " + port);
+    while (true) {
+      Socket socket = server.accept();
+      TcpTransport transport = new TcpTransport(socket);
+      transport.open();
+      System.out.println("connected: " + transport.getName());
+      // One app at a time, like the real thing
+      new DongleSimulator(transport, new Printer(), true).run();
+      System.out.println("disconnected");
+    }
+  }
+
+}
@@ -0,0 +1,119 @@
+package com.vos.MightyMouse.sim;
+
+import java.io.IOException;
+
+import com.vos.MightyMouse.DongleReplyParser;
+import com.vos.MightyMouse.FrameWriter;
+import com.vos.MightyMouse.LinkNegotiator;
+import com.vos.MightyMouse.PipeTransport;
+import com.vos.MightyMouse.bench.EventCounter;
+
+/**
+ * Connects to a DongleSimulator over the radio, ie with nothing to follow
+ * the dongle's rate on our end, the way the app connects over Bluetooth.
+ * A dongle whose configureRadio() is still empty mustn't be asked to change
+ * rate, as its radio would be left behind at 9600 and the link garbled until
+ * it gave up. One that says it can should end up at the fastest rate.
+ * <pre>
+ * java -cp target/benchmarks.jar com.vos.MightyMouse.sim.RadioHello
+ * </pre>
+ * It exits with 1 if either goes wrong.
+ */
+public class RadioHello {
+
+  private static final int PIPE_BYTES = 4096;
+
+  /**
+   * Negotiate with a fresh dongle, with nothing remembered about it.
+   * @return the rate it ended up at, or -1 if that was remembered as the
+   * best the dongle can do, which is what stops the app trying again
+   */
+  private static int negotiate(boolean radioChangesRate)
+      throws IOException {
+    PipeTransport[] pipe = PipeTransport.createPair("app", "dongle",
+        PIPE_BYTES);
+    final PipeTransport app = pipe[0];
+    app.open();
+    pipe[1].open();
+    DongleSimulator simulator =
+        new DongleSimulator(pipe[1], new EventCounter(), false);
+    simulator.setRadioChangesRate(radioChangesRate);
+    Thread dongle = new Thread(simulator, "DongleSimulator");
+    dongle.setDaemon(true);
+    dongle.start();
+
+    FrameWriter writer = new FrameWriter(app, new FrameWriter.Listener() {
+      @Override
+      public void onWrite(byte[] buffer, int offset, int length) {
+      }
+
+      @Override
+      public void onWriteFailed(IOException e) {
+      }
+    });
+    final int[] stored = { 0 };
+    final LinkNegotiator negotiator = new LinkNegotiator(writer,
+        app.getAddress(), new LinkNegotiator.RateStore() {
+      @Override
+      public int getLastGoodRate(String address) {
+        return stored[0];
+      }
+
+      @Override
+      public void setLastGoodRate(String address, int rate) {
+        stored[0] = rate;
+      }
+    });
+    writer.start();
+    final DongleReplyParser replies = new DongleReplyParser(
+        new DongleReplyParser.Listener() {
+      @Override
+      public void onReply(char type, int[] values, int count) {
+        negotiator.onReply(type, values, count);
+      }
+    });
+    Thread reader = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        byte[] buffer = new byte[256];
+        try {
+          while (true) {
+            int bytes = app.read(buffer, 0, buffer.length);
+            replies.feed(buffer, 0, bytes);
+          }
+        } catch (IOException e) {
+          // Closed
+        }
+      }
+    }, "ReplyReader");
+    reader.setDaemon(true);
+    reader.start();
+
+    long start = System.currentTimeMillis();
+    negotiator.run();
+    System.out.printf("radio %s rate: protocol %d at %d baud in %d ms%n",
+        radioChangesRate ? "changes" : "can't change",
+        writer.getProtocolVersion(), negotiator.getBaudRate(),
+        System.currentTimeMillis() - start);
+    writer.stop();
+    app.close();
+    return (stored[0] == LinkNegotiator.BASE_RATE) ? -1
+        : negotiator.getBaudRate();
+  }
+
+  public static void main(String[] args) throws Exception {
+    boolean ok = true;
+    if (negotiate(false) != LinkNegotiator.BASE_RATE) {
+      System.out.println("  asked a dongle that can't to change rate");
+      ok = false;
+    }
+    int fastest =
+        LinkNegotiator.BAUD_RATES[LinkNegotiator.BAUD_RATES.length - 1];
+    if (negotiate(true) != fastest) {
+      System.out.println("  didn't get to " + fastest + " baud");
+      ok = false;
+    }
+    System.exit(ok ? 0 : 1);
+  }
+
+}
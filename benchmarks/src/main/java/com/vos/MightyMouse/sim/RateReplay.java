@@ -0,0 +1,234 @@
+package com.vos.MightyMouse.sim;
+
+import java.io.IOException;
+
+import com.vos.MightyMouse.DongleReplyParser;
+import com.vos.MightyMouse.FrameWriter;
+import com.vos.MightyMouse.LinkNegotiator;
+import com.vos.MightyMouse.MouseSender;
+import com.vos.MightyMouse.PipeTransport;
+import com.vos.MightyMouse.ReportRateController;
+import com.vos.MightyMouse.SendCredits;
+import com.vos.MightyMouse.TouchAggregator;
+import com.vos.MightyMouse.bench.EventCounter;
+
+/**
+ * Drags a finger across the TrackPad in real time, with the sender spaced
+ * out by a ReportRateController the way the TrackPad does it, over a link
+ * that is really as slow as the radio. The link is a pipe with about as
+ * much room as the radio's buffer, into a DongleSimulator taking bytes no
+ * faster than its Serial1 would, so writes block once the link is full.
+ * <p>
+ * The drag is done at 9600 and at 115200 baud, each with and without a file
+ * being typed at the same time. The file goes out the way SendFileTask
+ * sends it, as fast as the dongle grants credits. For each it prints how
+ * often the sender ended up sending and how many times it backed off, how
+ * much of the time the writer was blocked, how fast the file was typed, and
+ * how long the dongle took to catch up with the pointer once the finger
+ * stopped, which is what you'd see as lag.
+ * <pre>
+ * java -cp target/benchmarks.jar com.vos.MightyMouse.sim.RateReplay
+ * </pre>
+ */
+public class RateReplay {
+
+  // About what a Bluetooth serial module buffers.
+  private static final int RADIO_BUFFER_BYTES = 64;
+  private static final long DRAG_MILLIS = 3000;
+  // Touch events come once a display frame.
+  private static final long EVENT_MILLIS = 16;
+  private static final float EVENT_PIXELS = 8f;
+  private static final long CATCH_UP_MILLIS = 5000;
+  private static final String TEXT =
+      "the quick brown fox jumps over the lazy dog ";
+
+  /**
+   * Types TEXT over and over, taking credits the way SendFileTask does.
+   */
+  private static class Typist implements Runnable {
+    private final FrameWriter mWriter;
+    private final SendCredits mCredits;
+    private volatile boolean mKeepRunning = true;
+
+    Typist(FrameWriter writer, SendCredits credits) {
+      this.mWriter = writer;
+      this.mCredits = credits;
+    }
+
+    @Override
+    public void run() {
+      int start = 0;
+      try {
+        while (mKeepRunning) {
+          int count = mCredits.acquire(
+              Math.min(TEXT.length() - start, 32), 1000);
+          if (count > 0) {
+            mWriter.putText(TEXT, start, count);
+            start = (start + count) % TEXT.length();
+          }
+        }
+      } catch (InterruptedException e) {
+        // Done
+      }
+    }
+  }
+
+  private static void drag(boolean fast, boolean typing) throws Exception {
+    PipeTransport[] pipe = PipeTransport.createPair("app", "dongle",
+        RADIO_BUFFER_BYTES);
+    final PipeTransport app = pipe[0];
+    app.open();
+    pipe[1].open();
+    final EventCounter events = new EventCounter();
+    DongleSimulator simulator = new DongleSimulator(pipe[1], events, true);
+    simulator.setRadioChangesRate(fast);
+    Thread dongle = new Thread(simulator, "DongleSimulator");
+    dongle.setDaemon(true);
+    dongle.start();
+
+    final FrameWriter writer = new FrameWriter(app,
+        new FrameWriter.Listener() {
+      @Override
+      public void onWrite(byte[] buffer, int offset, int length) {
+      }
+
+      @Override
+      public void onWriteFailed(IOException e) {
+      }
+    });
+    final SendCredits credits = new SendCredits(64);
+    final LinkNegotiator negotiator = new LinkNegotiator(writer,
+        app.getAddress(), new LinkNegotiator.RateStore() {
+      @Override
+      public int getLastGoodRate(String address) {
+        return 0;
+      }
+
+      @Override
+      public void setLastGoodRate(String address, int rate) {
+      }
+    });
+    final DongleReplyParser replies = new DongleReplyParser(
+        new DongleReplyParser.Listener() {
+      @Override
+      public void onReply(char type, int[] values, int count) {
+        if (!negotiator.onReply(type, values, count) && type == 'G'
+            && count > 0) {
+          credits.grant(values[0]);
+        }
+      }
+    });
+    Thread reader = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        byte[] buffer = new byte[256];
+        try {
+          while (true) {
+            int bytes = app.read(buffer, 0, buffer.length);
+            replies.feed(buffer, 0, bytes);
+          }
+        } catch (IOException e) {
+          // Closed
+        }
+      }
+    }, "ReplyReader");
+    reader.setDaemon(true);
+    reader.start();
+    writer.start();
+    negotiator.run();
+
+    TouchAggregator aggregator = new TouchAggregator();
+    final long[] sent = new long[2];
+    MouseSender sender = new MouseSender(aggregator, new MouseSender.Output() {
+      @Override
+      public void sendMouse(int dx, int dy, int wheel) {
+        synchronized (sent) {
+          sent[0]++;
+          sent[1] += Math.abs(dx) + Math.abs(dy);
+        }
+        writer.postMouse(dx, dy, wheel);
+      }
+
+      @Override
+      public void sendClick(int type) {
+      }
+    });
+    ReportRateController controller = new ReportRateController(
+        new ReportRateController.Link() {
+      @Override
+      public boolean isMousePending() {
+        return writer.isMousePending();
+      }
+
+      @Override
+      public long getWriteNanos() {
+        return writer.getWriteNanos();
+      }
+    }, TouchReplay.TRACKPAD_MIN_INTERVAL_NANOS,
+        ReportRateController.DEFAULT_MAX_INTERVAL_NANOS);
+    sender.setMinIntervalNanos(TouchReplay.TRACKPAD_MIN_INTERVAL_NANOS);
+    sender.setRateController(controller);
+    Thread sending = new Thread(sender, "MouseSender");
+    sending.start();
+
+    Typist typist = new Typist(writer, credits);
+    Thread typistThread = new Thread(typist, "Typist");
+    if (typing) {
+      typistThread.start();
+    }
+
+    long start = System.nanoTime();
+    long startChars = events.getChars();
+    long startWriteNanos = writer.getWriteNanos();
+    float x = 0;
+    aggregator.down(x, 0, start / 1000000);
+    aggregator.endBatch();
+    while (System.nanoTime() - start < DRAG_MILLIS * 1000000) {
+      Thread.sleep(EVENT_MILLIS);
+      x += EVENT_PIXELS;
+      aggregator.move(x, 0, System.nanoTime() / 1000000);
+      aggregator.endBatch();
+    }
+    long stopped = System.nanoTime();
+    double seconds = (stopped - start) / 1e9;
+    long chars = events.getChars() - startChars;
+    double blocked = (writer.getWriteNanos() - startWriteNanos)
+        / (double) (stopped - start);
+    long sends;
+    long motion;
+    synchronized (sent) {
+      sends = sent[0];
+      motion = sent[1];
+    }
+    // The rest of the drag is still on its way, behind whatever else was
+    // queued.
+    long deadline = System.currentTimeMillis() + CATCH_UP_MILLIS;
+    while (events.getMotion() < motion
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(1);
+    }
+    long lagMillis = (System.nanoTime() - stopped) / 1000000;
+
+    System.out.printf("%6d baud%-8s %5.0f sends/s  interval %4.1f ms  "
+        + "%2d back-offs  blocked %3.0f%%  %4.0f chars/s  lag %4d ms%n",
+        negotiator.getBaudRate(), typing ? " +file" : "", sends / seconds,
+        controller.getIntervalNanos() / 1e6, controller.getBackOffs(),
+        100 * blocked, chars / seconds, lagMillis);
+
+    typist.mKeepRunning = false;
+    typistThread.interrupt();
+    sender.setKeepRunning(false);
+    sending.interrupt();
+    writer.stop();
+    app.close();
+  }
+
+  public static void main(String[] args) throws Exception {
+    for (boolean fast : new boolean[] { false, true }) {
+      drag(fast, false);
+      drag(fast, true);
+    }
+    System.exit(0);
+  }
+
+}
@@ -0,0 +1,191 @@
+package com.vos.MightyMouse.sim;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.vos.MightyMouse.DongleReplyParser;
+import com.vos.MightyMouse.FrameEncoder;
+import com.vos.MightyMouse.FrameWriter;
+import com.vos.MightyMouse.LinkNegotiator;
+import com.vos.MightyMouse.SerialDeviceTransport;
+import com.vos.MightyMouse.bench.EventCounter;
+
+/**
+ * Runs the app's send path over a SerialDeviceTransport, with a
+ * DongleSimulator on another, and checks that what went in one end came out
+ * the other. Point it at the two ends of a pseudo-terminal pair:
+ * <pre>
+ * socat -d -d pty,raw,echo=0 pty,raw,echo=0
+ * java -cp target/benchmarks.jar com.vos.MightyMouse.sim.SerialLoopback \
+ *     /dev/pts/3 /dev/pts/4
+ * </pre>
+ * It negotiates a protocol version and rate like the app does, then sends
+ * mouse motion, keys and text, and prints how long keys took to get typed.
+ * A pty doesn't really run at any rate, so the simulator paces itself to the
+ * one it negotiated instead.
+ */
+public class SerialLoopback {
+
+  private static final int KEYS = 200;
+  private static final int MOVES = 500;
+  private static final int TEXT_FRAMES = 20;
+  private static final long TIMEOUT_MILLIS = 10000;
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 2) {
+      System.err.println("usage: SerialLoopback <app device> "
+          + "<dongle device> [baud]");
+      System.exit(2);
+    }
+    int baud = (args.length > 2) ? Integer.parseInt(args[2])
+        : LinkNegotiator.BASE_RATE;
+
+    final EventCounter events = new EventCounter();
+    SerialDeviceTransport dongle = new SerialDeviceTransport(args[1], baud);
+    dongle.open();
+    Thread simulator = new Thread(new DongleSimulator(dongle, events, true),
+        "DongleSimulator");
+    simulator.setDaemon(true);
+    simulator.start();
+
+    final SerialDeviceTransport app =
+        new SerialDeviceTransport(args[0], baud);
+    app.open();
+    System.out.println("app on " + app.getName());
+    FrameWriter.Listener quiet = new FrameWriter.Listener() {
+      @Override
+      public void onWrite(byte[] buffer, int offset, int length) {
+      }
+
+      @Override
+      public void onWriteFailed(IOException e) {
+        System.err.println("write failed: " + e);
+      }
+    };
+    final FrameWriter writer = new FrameWriter(app, quiet);
+    final Map<String, Integer> rates = new HashMap<String, Integer>();
+    final LinkNegotiator negotiator = new LinkNegotiator(writer,
+        app.getAddress(), new LinkNegotiator.RateStore() {
+      @Override
+      public int getLastGoodRate(String address) {
+        Integer rate = rates.get(address);
+        return (rate == null) ? 0 : rate;
+      }
+
+      @Override
+      public void setLastGoodRate(String address, int rate) {
+        rates.put(address, rate);
+      }
+    });
+    negotiator.setRateFollower(app);
+    writer.start();
+
+    final DongleReplyParser replies = new DongleReplyParser(
+        new DongleReplyParser.Listener() {
+      @Override
+      public void onReply(char type, int[] values, int count) {
+        if (!negotiator.onReply(type, values, count) && type == 'E') {
+          System.err.println("dongle error: E" + Arrays.toString(
+              Arrays.copyOf(values, count)));
+        }
+      }
+    });
+    Thread reader = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        byte[] buffer = new byte[256];
+        try {
+          while (true) {
+            int bytes = app.read(buffer, 0, buffer.length);
+            replies.feed(buffer, 0, bytes);
+          }
+        } catch (IOException e) {
+          // Closed
+        }
+      }
+    }, "ReplyReader");
+    reader.setDaemon(true);
+    reader.start();
+
+    long start = System.currentTimeMillis();
+    negotiator.run();
+    System.out.println("negotiated protocol version "
+        + writer.getProtocolVersion() + " at " + negotiator.getBaudRate()
+        + " baud in " + (System.currentTimeMillis() - start) + " ms");
+
+    boolean ok = true;
+
+    for (int i = 0; i < MOVES; i++) {
+      writer.postMouse(1, -1, 0);
+    }
+    ok &= await("mouse motion", 2L * MOVES, new Count() {
+      @Override
+      public long get() {
+        return events.getMotion();
+      }
+    });
+
+    long[] latencies = new long[KEYS];
+    byte[] key = { 'k' };
+    for (int i = 0; i < KEYS; i++) {
+      long before = events.getChars();
+      long sent = System.nanoTime();
+      writer.offer(FrameWriter.LANE_INTERACTIVE, (byte) 'K', key, 1);
+      writer.requestFlush();
+      long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+      while (events.getChars() == before
+          && System.currentTimeMillis() < deadline) {
+        Thread.yield();
+      }
+      latencies[i] = System.nanoTime() - sent;
+    }
+    Arrays.sort(latencies);
+    System.out.printf("key round trip: median %.0f us, 99th %.0f us%n",
+        latencies[KEYS / 2] / 1000.0, latencies[KEYS * 99 / 100] / 1000.0);
+
+    String text = "the quick brown fox jumps over t";
+    final long textStart = events.getChars();
+    long sentAt = System.nanoTime();
+    for (int i = 0; i < TEXT_FRAMES; i++) {
+      writer.putText(text, 0, FrameEncoder.MAX_TEXT_CHARS);
+    }
+    ok &= await("text", (long) TEXT_FRAMES
+        * FrameEncoder.MAX_TEXT_CHARS, new Count() {
+      @Override
+      public long get() {
+        return events.getChars() - textStart;
+      }
+    });
+    double seconds = (System.nanoTime() - sentAt) / 1e9;
+    System.out.printf("text: %.0f chars/s%n",
+        TEXT_FRAMES * FrameEncoder.MAX_TEXT_CHARS / seconds);
+
+    if (events.getErrors() > 0) {
+      System.out.println(events.getErrors() + " dongle errors");
+      ok = false;
+    }
+    writer.stop();
+    app.close();
+    dongle.close();
+    System.out.println(ok ? "ok" : "FAILED");
+    System.exit(ok ? 0 : 1);
+  }
+
+  private interface Count {
+    long get();
+  }
+
+  private static boolean await(String what, long expected, Count count)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    while (count.get() < expected && System.currentTimeMillis() < deadline) {
+      Thread.sleep(1);
+    }
+    long got = count.get();
+    System.out.println(what + ": expected " + expected + ", got " + got);
+    return got == expected;
+  }
+
+}
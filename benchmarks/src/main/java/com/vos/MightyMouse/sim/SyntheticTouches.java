@@ -0,0 +1,240 @@
+package com.vos.MightyMouse.sim;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import com.vos.MightyMouse.TouchTrace;
+
+/**
+ * Made-up touch traces, for replaying when there are no recorded ones to
+ * hand. Samples come every {@link SAMPLE_MILLIS} and are delivered in
+ * batches of {@link BATCH}, like a phone with a 120Hz touch panel and a 60Hz
+ * display.
+ */
+public class SyntheticTouches {
+
+  public static final long SAMPLE_MILLIS = 8;
+  public static final int BATCH = 2;
+
+  // The names of the traces this knows how to make.
+  public static final String[] NAMES = { "slow-drag", "flick", "fast-flick",
+      "circle", "jitter", "scroll", "taps" };
+
+  /**
+   * @param name one of {@link NAMES}
+   * @return the trace, as TouchTrace.Recorder would have written it
+   */
+  public static byte[] make(String name) {
+    try {
+      if (name.equals("slow-drag")) {
+        // A third of a pixel a sample, which is all under a pixel a tick
+        return line(0.33f, -0.12f, 300);
+      } else if (name.equals("flick")) {
+        // Fast enough that 25ms worth doesn't fit in one report
+        return line(45f, 20f, 12);
+      } else if (name.equals("fast-flick")) {
+        // More than a report can carry in every sample
+        return line(150f, -70f, 10);
+      } else if (name.equals("circle")) {
+        return circle(120f, 2000);
+      } else if (name.equals("jitter")) {
+        return jitter(600);
+      } else if (name.equals("scroll")) {
+        return scroll();
+      } else if (name.equals("taps")) {
+        return taps();
+      }
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+    throw new IllegalArgumentException("no such trace: " + name);
+  }
+
+  private static byte[] line(float dx, float dy, int samples)
+      throws IOException {
+    Builder builder = new Builder();
+    for (int i = 0; i < samples; i++) {
+      builder.sample(dx * i, dy * i);
+    }
+    return builder.finish();
+  }
+
+  private static byte[] circle(float radius, long millis) throws IOException {
+    Builder builder = new Builder();
+    int samples = (int) (millis / SAMPLE_MILLIS);
+    for (int i = 0; i < samples; i++) {
+      double angle = 2 * Math.PI * i / samples;
+      builder.sample((float) (radius * Math.cos(angle)),
+          (float) (radius * Math.sin(angle)));
+    }
+    return builder.finish();
+  }
+
+  /**
+   * A finger held still, wobbling by a fraction of a pixel. Anything sent
+   * here is the cursor creeping when it shouldn't.
+   */
+  private static byte[] jitter(int samples) throws IOException {
+    Builder builder = new Builder();
+    // Fixed seed: replays have to come out the same every time
+    Random random = new Random(16);
+    for (int i = 0; i < samples; i++) {
+      builder.sample((float) (random.nextGaussian() * 0.3),
+          (float) (random.nextGaussian() * 0.3));
+    }
+    return builder.finish();
+  }
+
+  /**
+   * The pointer moved a little, then two fingers scrolling 450 px down the
+   * page and 165 back up, then the one finger left moving the pointer again.
+   */
+  private static byte[] scroll() throws IOException {
+    Builder builder = new Builder();
+    for (int i = 0; i < 10; i++) {
+      builder.sample(2f * i, 0);
+    }
+    builder.startScroll(30, 0);
+    for (int i = 1; i <= 100; i++) {
+      builder.sample(30, 4.5f * i);
+    }
+    for (int i = 1; i <= 50; i++) {
+      builder.sample(30, 450 - 3.3f * i);
+    }
+    builder.stopScroll(20, 0);
+    for (int i = 1; i <= 10; i++) {
+      builder.sample(20 + 2f * i, 0);
+    }
+    return builder.finish();
+  }
+
+  /**
+   * One of each of the GestureEngine's gestures, with time in between: a
+   * tap, two taps, a tap and drag, and a tap with two fingers. That should
+   * come out as 2D 2L 1R 2U.
+   */
+  private static byte[] taps() throws IOException {
+    Builder builder = new Builder();
+    builder.sample(0, 0);
+    builder.sample(1, 0);
+    builder.lift();
+    builder.pause(600);
+    builder.sample(50, 0);
+    builder.lift();
+    builder.pause(100);
+    builder.sample(51, 1);
+    builder.lift();
+    builder.pause(600);
+    builder.sample(100, 0);
+    builder.lift();
+    builder.pause(80);
+    builder.sample(100, 0);
+    for (int i = 1; i <= 40; i++) {
+      builder.sample(100 + 5f * i, 0);
+    }
+    builder.lift();
+    builder.pause(600);
+    builder.sample(0, 50);
+    builder.startScroll(10, 50);
+    builder.stopScroll(0, 50);
+    builder.lift();
+    return builder.finish();
+  }
+
+  /**
+   * Turns a list of finger positions into a down, batched moves and an up.
+   * Between {@link startScroll} and {@link stopScroll} they're the middle of
+   * two scrolling fingers instead. After {@link lift} the next position
+   * goes down again.
+   */
+  private static class Builder {
+    private final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+    private final TouchTrace.Recorder mRecorder;
+    private final float[] mX = new float[BATCH];
+    private final float[] mY = new float[BATCH];
+    private final long[] mTime = new long[BATCH];
+    private int mBatched;
+    private int mBatchAction = TouchTrace.MOVE;
+    private boolean mDown;
+    private long mNow = 1000;
+    private float mLastX;
+    private float mLastY;
+
+    Builder() throws IOException {
+      mRecorder = new TouchTrace.Recorder(mBytes);
+    }
+
+    void sample(float x, float y) throws IOException {
+      // Start somewhere in the middle of the screen
+      x += 400;
+      y += 600;
+      mNow += SAMPLE_MILLIS;
+      if (!mDown) {
+        mRecorder.beginEvent(TouchTrace.DOWN, 1);
+        mRecorder.sample(x, y, mNow);
+        mDown = true;
+      } else {
+        mX[mBatched] = x;
+        mY[mBatched] = y;
+        mTime[mBatched] = mNow;
+        if (++mBatched == BATCH) {
+          flush();
+        }
+      }
+      mLastX = x;
+      mLastY = y;
+    }
+
+    void startScroll(float x, float y) throws IOException {
+      single(TouchTrace.SCROLL_START, x, y);
+      mBatchAction = TouchTrace.SCROLL;
+    }
+
+    /**
+     * One of the fingers went up, leaving the other at x, y.
+     */
+    void stopScroll(float x, float y) throws IOException {
+      single(TouchTrace.DOWN, x, y);
+      mBatchAction = TouchTrace.MOVE;
+    }
+
+    void lift() throws IOException {
+      single(TouchTrace.UP, mLastX - 400, mLastY - 600);
+      mDown = false;
+    }
+
+    void pause(long millis) {
+      mNow += millis;
+    }
+
+    private void single(int action, float x, float y) throws IOException {
+      flush();
+      mNow += SAMPLE_MILLIS;
+      mRecorder.beginEvent(action, 1);
+      mRecorder.sample(x + 400, y + 600, mNow);
+      mLastX = x + 400;
+      mLastY = y + 600;
+    }
+
+    private void flush() throws IOException {
+      if (mBatched == 0) {
+        return;
+      }
+      mRecorder.beginEvent(mBatchAction, mBatched);
+      for (int i = 0; i < mBatched; i++) {
+        mRecorder.sample(mX[i], mY[i], mTime[i]);
+      }
+      mBatched = 0;
+    }
+
+    byte[] finish() throws IOException {
+      if (mDown) {
+        lift();
+      }
+      mRecorder.close();
+      return mBytes.toByteArray();
+    }
+  }
+
+}
@@ -0,0 +1,515 @@
+package com.vos.MightyMouse.sim;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import com.vos.MightyMouse.FrameEncoder;
+import com.vos.MightyMouse.LinkNegotiator;
+import com.vos.MightyMouse.MotionPredictor;
+import com.vos.MightyMouse.MouseSender;
+import com.vos.MightyMouse.TouchAggregator;
+import com.vos.MightyMouse.TouchTrace;
+
+/**
+ * Replays a TouchTrace through the TrackPad's TouchAggregator and
+ * MouseSender on a virtual clock, and reports how well the moves sent
+ * followed the finger:
+ * <ul>
+ * <li>frames: how many mouse moves were sent, and how many counts each
+ * carried on its busier axis, out of the 127 it could have
+ * <li>latency: for each move, how long ago the oldest sample in it was
+ * taken. This counts the time a sample spent waiting to be delivered in a
+ * batch, but not the time before the phone saw it.
+ * <li>error: how far the pointer was from where the finger says it should
+ * be, every {@link OBSERVE_MILLIS} and at the end. Motion that is rounded
+ * off or doesn't fit in a report shows up here.
+ * <li>seen: how far the pointer was, every {@link OBSERVE_MILLIS}, from
+ * where the finger was {@link LINK_MILLIS} later, when the host would show
+ * it. This is the lag that motion prediction is there to hide, so with
+ * prediction on it should go down even though the error goes up.
+ * <li>wheel: the wheel counts sent for two-finger scrolling, and how many
+ * counts short of the fingers' travel they were at the end.
+ * <li>clicks: the clicks the GestureEngine sent for taps, by type, and how
+ * long after the touch event that decided each one it went out.
+ * </ul>
+ * Each event is delivered at the time of its last sample, and the sender
+ * wakes up for it the way it does on the phone, so a trace replays the same
+ * way every time. For comparison it can also poll the sender on a fixed
+ * period instead, the way the TrackPad used to.
+ * <p>
+ * Give it traces recorded on the phone (Record Touches, in the menu), or
+ * nothing for the made-up ones in SyntheticTouches:
+ * <pre>
+ * java -cp target/benchmarks.jar com.vos.MightyMouse.sim.TouchReplay \
+ *     [touches.trace ...]
+ * </pre>
+ */
+public class TouchReplay implements TouchTrace.Handler, MouseSender.Output,
+    TouchAggregator.Listener {
+
+  // How often the pointer is checked against the finger.
+  public static final long OBSERVE_MILLIS = 25;
+  // How long a move takes to get from the sender to the host's screen, for
+  // the seen error.
+  public static final long LINK_MILLIS = 30;
+  // How often the TrackPad's sender used to look for motion.
+  public static final long OLD_POLL_MILLIS = 25;
+  // What the TrackPad holds sends to: a v1 mouse frame at the base rate.
+  public static final long TRACKPAD_MIN_INTERVAL_NANOS =
+      FrameEncoder.frameLength(FrameEncoder.PROTOCOL_V1,
+          FrameEncoder.MOUSE_PAYLOAD_BYTES) * 10 * 1000000000L
+      / LinkNegotiator.BASE_RATE;
+
+  private static final long NANOS_PER_MILLI = 1000000;
+  private static final long NEVER = Long.MAX_VALUE;
+
+  /**
+   * What happened in one replay.
+   */
+  public static class Report {
+    public long events;
+    public long samples;
+    public long frames;
+    public double countsPerFrame;
+    public long durationMillis;
+    public double meanLatencyMillis;
+    public double medianLatencyMillis;
+    public double p99LatencyMillis;
+    public double maxLatencyMillis;
+    public double meanErrorPixels;
+    public double maxErrorPixels;
+    public double finalErrorPixels;
+    public double meanSeenPixels;
+    public double maxSeenPixels;
+    public long wheelCounts;
+    public double finalWheelError;
+    // Eg "2L 1D 1U"
+    public String clicks = "-";
+    public double meanClickLatencyMillis;
+    public double maxClickLatencyMillis;
+
+    public static String header() {
+      return String.format("%-28s %6s %7s %6s %6s   %-25s   %-23s   %-13s"
+          + "   %-11s   %s", "trace", "events", "samples", "frames",
+          "counts", "latency ms mean/50/99/max", "error px mean/max/final",
+          "seen px mean/max", "wheel/error", "clicks, ms mean/max");
+    }
+
+    public String toRow(String name) {
+      return String.format("%-28s %6d %7d %6d %6.1f   %5.1f %5.1f %5.1f %5.1f"
+          + "   %6.2f %6.2f %6.2f   %6.2f %6.2f   %4d %6.2f   %-12s %5.1f"
+          + " %5.1f", name, events, samples, frames, countsPerFrame,
+          meanLatencyMillis, medianLatencyMillis, p99LatencyMillis,
+          maxLatencyMillis, meanErrorPixels, maxErrorPixels,
+          finalErrorPixels, meanSeenPixels, maxSeenPixels, wheelCounts,
+          finalWheelError, clicks, meanClickLatencyMillis,
+          maxClickLatencyMillis);
+    }
+  }
+
+  private final TouchAggregator mAggregator = new TouchAggregator();
+  private final MouseSender mSender = new MouseSender(mAggregator, this);
+  private final long mPollNanos;
+  // Also gets every move and click, or null.
+  private final MouseSender.Output mTap;
+
+  // All times are virtual, in nanoseconds.
+  private long mStart = -1;
+  private long mNow;
+  private long mNextPoll = NEVER;
+  private long mWakeAt = NEVER;
+  private long mNextObserve = NEVER;
+  private long mTimerAt = NEVER;
+  // When the last touch event that went down or up was delivered.
+  private long mLastTouchAt;
+
+  // Where the finger has been, and where the pointer has been sent, both
+  // relative to where the finger first went down.
+  private float mLastX;
+  private float mLastY;
+  private double mFingerX;
+  private double mFingerY;
+  private long mSentX;
+  private long mSentY;
+  // The same for scrolling.
+  private float mLastScrollY;
+  private double mFingerWheel;
+  private long mSentWheel;
+
+  // The time of the oldest sample not sent yet, or -1.
+  private long mOldestUnsent = -1;
+  // The time of the oldest sample in the send going on now. Big motion is
+  // sent as several frames, which all carry samples that old.
+  private long mSendOldest;
+  private long mCounts;
+  private long[] mLatencies = new long[256];
+
+  private double mErrorSum;
+  private long mErrorCount;
+
+  // Where the finger went, by event time in ms, and where the pointer was
+  // at each observation, for the seen error.
+  private long[] mPathTime = new long[256];
+  private double[] mPathX = new double[256];
+  private double[] mPathY = new double[256];
+  private int mPathLength;
+  private long[] mObservedTime = new long[64];
+  private long[] mObservedX = new long[64];
+  private long[] mObservedY = new long[64];
+  private int mObservedLength;
+
+  // Counts of each click type sent, by type
+  private final int[] mClicks = new int[128];
+  private long mClickLatencySum;
+  private long mClickLatencyMax;
+  private long mClickCount;
+
+  private final Report mReport = new Report();
+
+  private TouchReplay(long pollMillis, long minIntervalNanos,
+      long leadMillis, MouseSender.Output tap) {
+    this.mPollNanos = pollMillis * NANOS_PER_MILLI;
+    this.mTap = tap;
+    mSender.setMinIntervalNanos(minIntervalNanos);
+    mSender.getPredictor().setLeadMillis(leadMillis);
+    // We play the part of the sender's thread
+    mAggregator.setListener(this);
+  }
+
+  /**
+   * @param trace as written by TouchTrace.Recorder
+   * @param pollMillis 0 to have the sender woken by motion, as it is on the
+   * phone, or how often to poll it instead
+   * @param minIntervalNanos see MouseSender.setMinIntervalNanos()
+   * @param leadMillis see MotionPredictor.setLeadMillis()
+   * @param tap also gets every move and click as it's sent, eg to send them
+   * on through a FrameWriter, or null
+   * @return what happened
+   * @throws IOException if the trace is bad
+   */
+  public static Report replay(InputStream trace, long pollMillis,
+      long minIntervalNanos, long leadMillis, MouseSender.Output tap)
+      throws IOException {
+    TouchReplay replay = new TouchReplay(pollMillis, minIntervalNanos,
+        leadMillis, tap);
+    replay.mReport.events = TouchTrace.replay(trace, replay);
+    return replay.finish();
+  }
+
+  public static Report replay(byte[] trace, long pollMillis,
+      long minIntervalNanos, long leadMillis, MouseSender.Output tap)
+      throws IOException {
+    return replay(new ByteArrayInputStream(trace), pollMillis,
+        minIntervalNanos, leadMillis, tap);
+  }
+
+  public static Report replay(byte[] trace, long pollMillis,
+      long minIntervalNanos, long leadMillis) throws IOException {
+    return replay(trace, pollMillis, minIntervalNanos, leadMillis, null);
+  }
+
+  public static Report replay(byte[] trace, long pollMillis,
+      long minIntervalNanos) throws IOException {
+    return replay(trace, pollMillis, minIntervalNanos, 0);
+  }
+
+  @Override
+  public void onEvent(int action, float[] x, float[] y, long[] eventTime,
+      int count) {
+    long deliveredAt = eventTime[count - 1] * NANOS_PER_MILLI;
+    if (mStart < 0) {
+      mStart = deliveredAt;
+      mNextObserve = deliveredAt + OBSERVE_MILLIS * NANOS_PER_MILLI;
+      if (mPollNanos > 0) {
+        mNextPoll = deliveredAt;
+      }
+    }
+    advanceTo(deliveredAt);
+    mNow = deliveredAt;
+    mReport.samples += count;
+    // The same as TrackPad.onTouchEvent()
+    switch (action) {
+    case TouchTrace.DOWN:
+      mAggregator.down(x[count - 1], y[count - 1], eventTime[count - 1]);
+      mLastX = x[count - 1];
+      mLastY = y[count - 1];
+      mLastTouchAt = deliveredAt;
+      break;
+    case TouchTrace.UP:
+      mAggregator.up(x[count - 1], y[count - 1], eventTime[count - 1]);
+      mFingerX += x[count - 1] - mLastX;
+      mFingerY += y[count - 1] - mLastY;
+      mLastX = x[count - 1];
+      mLastY = y[count - 1];
+      mLastTouchAt = deliveredAt;
+      followFinger(eventTime[count - 1]);
+      break;
+    case TouchTrace.CANCEL:
+      mAggregator.cancel(eventTime[count - 1]);
+      mLastTouchAt = deliveredAt;
+      break;
+    case TouchTrace.MOVE:
+      for (int i = 0; i < count; i++) {
+        mAggregator.move(x[i], y[i], eventTime[i]);
+        mFingerX += x[i] - mLastX;
+        mFingerY += y[i] - mLastY;
+        mLastX = x[i];
+        mLastY = y[i];
+        followFinger(eventTime[i]);
+        if (mOldestUnsent < 0) {
+          mOldestUnsent = eventTime[i] * NANOS_PER_MILLI;
+        }
+      }
+      break;
+    case TouchTrace.SCROLL_START:
+      mAggregator.startScroll(y[count - 1], eventTime[count - 1]);
+      mLastScrollY = y[count - 1];
+      break;
+    case TouchTrace.SCROLL:
+      for (int i = 0; i < count; i++) {
+        mAggregator.scroll(y[i], eventTime[i]);
+        mFingerWheel += y[i] - mLastScrollY;
+        mLastScrollY = y[i];
+        if (mOldestUnsent < 0) {
+          mOldestUnsent = eventTime[i] * NANOS_PER_MILLI;
+        }
+      }
+      break;
+    default:
+      break;
+    }
+    mAggregator.endBatch();
+    scheduleTimer();
+  }
+
+  /**
+   * Wake the sender when it next has something to do without motion, eg a
+   * tap's click, as it would on the phone.
+   */
+  private void scheduleTimer() {
+    long delay = mSender.wakeDelayNanos(mNow);
+    mTimerAt = (delay == Long.MAX_VALUE) ? NEVER : mNow + delay;
+  }
+
+  private void followFinger(long eventTime) {
+    if (mPathLength == mPathTime.length) {
+      int length = mPathLength * 2;
+      mPathTime = Arrays.copyOf(mPathTime, length);
+      mPathX = Arrays.copyOf(mPathX, length);
+      mPathY = Arrays.copyOf(mPathY, length);
+    }
+    mPathTime[mPathLength] = eventTime;
+    mPathX[mPathLength] = mFingerX;
+    mPathY[mPathLength] = mFingerY;
+    mPathLength++;
+  }
+
+  /**
+   * The aggregator telling the sender there's motion, as it does on the
+   * phone. What the sender thread would do next, done on the virtual clock.
+   */
+  @Override
+  public void onMotion() {
+    if (mPollNanos > 0 || mWakeAt != NEVER) {
+      return;
+    }
+    long delay = mSender.delayNanos(mNow);
+    if (delay == 0) {
+      mSender.tick(mNow);
+    } else {
+      mWakeAt = mNow + delay;
+    }
+  }
+
+  @Override
+  public void sendMouse(int dx, int dy, int wheel) {
+    mSentX += dx;
+    mSentY += dy;
+    mSentWheel += wheel;
+    mCounts += Math.max(Math.abs(dx), Math.abs(dy));
+    long frame = mReport.frames++;
+    if (frame == mLatencies.length) {
+      mLatencies = Arrays.copyOf(mLatencies, mLatencies.length * 2);
+    }
+    if (mOldestUnsent >= 0) {
+      mSendOldest = mOldestUnsent;
+      mOldestUnsent = -1;
+    }
+    mLatencies[(int) frame] = mNow - mSendOldest;
+    if (mTap != null) {
+      mTap.sendMouse(dx, dy, wheel);
+    }
+  }
+
+  @Override
+  public void sendClick(int type) {
+    mClicks[type & 0x7f]++;
+    long latency = mNow - mLastTouchAt;
+    mClickLatencySum += latency;
+    mClickLatencyMax = Math.max(mClickLatencyMax, latency);
+    mClickCount++;
+    if (mTap != null) {
+      mTap.sendClick(type);
+    }
+  }
+
+  /**
+   * Run everything due before time, in order.
+   */
+  private void advanceTo(long time) {
+    while (true) {
+      long send = Math.min(Math.min(mNextPoll, mWakeAt), mTimerAt);
+      long next = Math.min(send, mNextObserve);
+      if (next >= time) {
+        return;
+      }
+      mNow = next;
+      if (next == send) {
+        if (next == mNextPoll) {
+          mNextPoll += mPollNanos;
+        } else if (next == mWakeAt) {
+          mWakeAt = NEVER;
+        }
+        mSender.tick(mNow);
+        scheduleTimer();
+      }
+      if (next == mNextObserve) {
+        double error = error();
+        mErrorSum += error;
+        mErrorCount++;
+        mReport.maxErrorPixels = Math.max(mReport.maxErrorPixels, error);
+        observe();
+        mNextObserve += OBSERVE_MILLIS * NANOS_PER_MILLI;
+      }
+    }
+  }
+
+  private void observe() {
+    if (mObservedLength == mObservedTime.length) {
+      int length = mObservedLength * 2;
+      mObservedTime = Arrays.copyOf(mObservedTime, length);
+      mObservedX = Arrays.copyOf(mObservedX, length);
+      mObservedY = Arrays.copyOf(mObservedY, length);
+    }
+    mObservedTime[mObservedLength] = mNow;
+    mObservedX[mObservedLength] = mSentX;
+    mObservedY[mObservedLength] = mSentY;
+    mObservedLength++;
+  }
+
+  /**
+   * Work out the seen error from the observations and the finger's path.
+   */
+  private void seen(Report report) {
+    double sum = 0;
+    int count = 0;
+    int path = -1;
+    for (int i = 0; i < mObservedLength; i++) {
+      long shown = mObservedTime[i] / NANOS_PER_MILLI + LINK_MILLIS;
+      while (path + 1 < mPathLength && mPathTime[path + 1] <= shown) {
+        path++;
+      }
+      double fingerX = (path < 0) ? 0 : mPathX[path];
+      double fingerY = (path < 0) ? 0 : mPathY[path];
+      double error = Math.hypot(fingerX - mObservedX[i],
+          fingerY - mObservedY[i]);
+      sum += error;
+      count++;
+      report.maxSeenPixels = Math.max(report.maxSeenPixels, error);
+    }
+    report.meanSeenPixels = (count == 0) ? 0 : sum / count;
+  }
+
+  private double error() {
+    return Math.hypot(mFingerX - mSentX, mFingerY - mSentY);
+  }
+
+  private Report finish() {
+    // Give the sender a couple of periods to send the last of it
+    advanceTo(mNow + 3 * OBSERVE_MILLIS * NANOS_PER_MILLI);
+    Report report = mReport;
+    report.durationMillis = (mNow - Math.max(mStart, 0)) / NANOS_PER_MILLI;
+    report.finalErrorPixels = error();
+    seen(report);
+    report.wheelCounts = mSentWheel;
+    report.finalWheelError = Math.abs(mFingerWheel
+        / MouseSender.DEFAULT_SCROLL_PIXELS_PER_COUNT - mSentWheel);
+    if (mClickCount > 0) {
+      StringBuilder clicks = new StringBuilder();
+      for (int type = 0; type < mClicks.length; type++) {
+        if (mClicks[type] > 0) {
+          if (clicks.length() > 0) {
+            clicks.append(' ');
+          }
+          clicks.append(mClicks[type]).append((char) type);
+        }
+      }
+      report.clicks = clicks.toString();
+      double millis = NANOS_PER_MILLI;
+      report.meanClickLatencyMillis = mClickLatencySum / millis / mClickCount;
+      report.maxClickLatencyMillis = mClickLatencyMax / millis;
+    }
+    report.meanErrorPixels = (mErrorCount == 0) ? 0 : mErrorSum / mErrorCount;
+    int frames = (int) report.frames;
+    if (frames > 0) {
+      report.countsPerFrame = (double) mCounts / frames;
+      long[] latencies = Arrays.copyOf(mLatencies, frames);
+      Arrays.sort(latencies);
+      long sum = 0;
+      for (long latency : latencies) {
+        sum += latency;
+      }
+      double millis = NANOS_PER_MILLI;
+      report.meanLatencyMillis = sum / millis / frames;
+      report.medianLatencyMillis = latencies[frames / 2] / millis;
+      report.p99LatencyMillis = latencies[frames * 99 / 100] / millis;
+      report.maxLatencyMillis = latencies[frames - 1] / millis;
+    }
+    return report;
+  }
+
+  /**
+   * Replay a trace the old way, the way the TrackPad does it now, and
+   * woken by every event.
+   */
+  private static void compare(String name, byte[] trace) throws IOException {
+    System.out.println(replay(trace, OLD_POLL_MILLIS, 0)
+        .toRow(name + " (poll)"));
+    System.out.println(replay(trace, 0, TRACKPAD_MIN_INTERVAL_NANOS)
+        .toRow(name));
+    System.out.println(replay(trace, 0, 0).toRow(name + " (every event)"));
+    System.out.println(replay(trace, 0, TRACKPAD_MIN_INTERVAL_NANOS,
+        MotionPredictor.DEFAULT_LEAD_MILLIS).toRow(name + " (predicted)"));
+  }
+
+  public static void main(String[] args) throws IOException {
+    System.out.println(Report.header());
+    if (args.length == 0) {
+      for (String name : SyntheticTouches.NAMES) {
+        compare(name, SyntheticTouches.make(name));
+      }
+      return;
+    }
+    for (String path : args) {
+      InputStream in = new BufferedInputStream(new FileInputStream(path));
+      try {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+          bytes.write(buffer, 0, read);
+        }
+        compare(new File(path).getName(), bytes.toByteArray());
+      } finally {
+        in.close();
+      }
+    }
+  }
+
+}
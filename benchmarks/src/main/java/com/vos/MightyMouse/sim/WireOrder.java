@@ -0,0 +1,392 @@
+package com.vos.MightyMouse.sim;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+
+import com.vos.MightyMouse.BaseTransport;
+import com.vos.MightyMouse.FrameEncoder;
+import com.vos.MightyMouse.FrameWriter;
+import com.vos.MightyMouse.MotionPredictor;
+import com.vos.MightyMouse.MouseSender;
+import com.vos.MightyMouse.PipeTransport;
+import com.vos.MightyMouse.SerialProtocolModel;
+import com.vos.MightyMouse.Transport;
+
+/**
+ * Checks that moves and clicks reach the dongle in the order they were
+ * sent, through a real FrameWriter, however much motion it merges while the
+ * link is behind. A drag is a press, moves and a release, and if a move
+ * overtakes the press the dongle sees a move and then a click instead.
+ * <p>
+ * First it stalls a write on purpose while a press, a move and a release
+ * queue up behind it, which is what a slow radio does. Then it replays
+ * each of the SyntheticTouches the way TouchReplay does, with the
+ * GestureEngine's clicks and the sender's moves going out the way
+ * DispatcherSingleton sends them. The link is stalled for the whole replay,
+ * so everything queues up and merges the same way every run, and then let
+ * go to a DongleSimulator taking bytes no faster than Serial1 at 9600 baud.
+ * For each it compares what the dongle did with what was sent: the motion
+ * between each pair of clicks has to add up the same.
+ * <pre>
+ * java -cp target/benchmarks.jar com.vos.MightyMouse.sim.WireOrder
+ * </pre>
+ * It exits with 1 if anything came out in the wrong order.
+ */
+public class WireOrder {
+
+  private static final byte CLICK = (byte) 'C';
+  private static final int PIPE_BYTES = 4096;
+  // How long to let the dongle catch up before giving up on it.
+  private static final long DRAIN_MILLIS = 20000;
+
+  /**
+   * Writes down moves and clicks as a string, eg "M3,-4,0 D M10,0,0 U",
+   * with the motion between clicks added up, so that the app's side and
+   * the dongle's can be compared however the motion was split into frames.
+   * Either side may write and any thread may read.
+   */
+  static class Sequence implements MouseSender.Output,
+      SerialProtocolModel.Listener {
+    private final StringBuilder mEvents = new StringBuilder();
+    private long mX;
+    private long mY;
+    private long mWheel;
+    private int mErrors;
+    private int mReplies;
+
+    @Override
+    public synchronized void sendMouse(int dx, int dy, int wheel) {
+      mX += dx;
+      mY += dy;
+      mWheel += wheel;
+    }
+
+    @Override
+    public synchronized void sendClick(int type) {
+      appendMotion(mEvents);
+      mEvents.append((char) type).append(' ');
+    }
+
+    @Override
+    public void onMouseMove(int x, int y, int wheel) {
+      sendMouse(x, y, wheel);
+    }
+
+    @Override
+    public void onMouseClick(int type) {
+      sendClick(type);
+    }
+
+    @Override
+    public void onKeyboardPrint(byte[] chars, int offset, int count) {
+    }
+
+    @Override
+    public synchronized void onError(int state, int location, int value) {
+      mErrors++;
+    }
+
+    @Override
+    public synchronized void onHello(int version, int features) {
+      mReplies++;
+    }
+
+    @Override
+    public synchronized void onReply(char type, int value) {
+      mReplies++;
+    }
+
+    public synchronized int getErrors() {
+      return mErrors;
+    }
+
+    public synchronized int getReplies() {
+      return mReplies;
+    }
+
+    private void appendMotion(StringBuilder out) {
+      if (mX != 0 || mY != 0 || mWheel != 0) {
+        out.append('M').append(mX).append(',').append(mY).append(',')
+            .append(mWheel).append(' ');
+        mX = 0;
+        mY = 0;
+        mWheel = 0;
+      }
+    }
+
+    @Override
+    public synchronized String toString() {
+      StringBuilder out = new StringBuilder(mEvents);
+      if (mX != 0 || mY != 0 || mWheel != 0) {
+        out.append('M').append(mX).append(',').append(mY).append(',')
+            .append(mWheel).append(' ');
+      }
+      return out.toString().trim();
+    }
+  }
+
+  /**
+   * A Transport in front of another whose writes can be held up, to stand
+   * in for a radio that has stopped taking bytes for a while.
+   */
+  static class StallingTransport extends BaseTransport {
+    private final Transport mLink;
+    private CountDownLatch mStalled = new CountDownLatch(0);
+    private CountDownLatch mWriting = new CountDownLatch(0);
+
+    StallingTransport(Transport link) {
+      this.mLink = link;
+    }
+
+    /**
+     * Hold up the next write until {@link release}.
+     */
+    synchronized void stall() {
+      mStalled = new CountDownLatch(1);
+      mWriting = new CountDownLatch(1);
+    }
+
+    synchronized void release() {
+      mStalled.countDown();
+    }
+
+    /**
+     * Wait until a write is being held up.
+     */
+    void awaitStalledWrite() throws InterruptedException {
+      CountDownLatch writing;
+      synchronized (this) {
+        writing = mWriting;
+      }
+      writing.await();
+    }
+
+    @Override
+    protected void connect() throws IOException {
+      mLink.open();
+    }
+
+    @Override
+    protected void disconnect() {
+      mLink.close();
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length)
+        throws IOException {
+      return mLink.read(buffer, offset, length);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length)
+        throws IOException {
+      CountDownLatch stalled;
+      synchronized (this) {
+        stalled = mStalled;
+        mWriting.countDown();
+      }
+      try {
+        stalled.await();
+      } catch (InterruptedException e) {
+        throw new IOException("interrupted");
+      }
+      mLink.write(buffer, offset, length);
+    }
+
+    @Override
+    public String getAddress() {
+      return mLink.getAddress();
+    }
+
+    @Override
+    public String getName() {
+      return mLink.getName();
+    }
+  }
+
+  /**
+   * A FrameWriter with a dongle at the other end of it, speaking version 2
+   * so that any motion can be sent.
+   */
+  static class Link implements MouseSender.Output {
+    final StallingTransport mApp;
+    final FrameWriter mWriter;
+    final Sequence mDongle = new Sequence();
+    private final byte[] mClick = new byte[1];
+    private volatile boolean mClosed;
+
+    Link(boolean paced) throws IOException, InterruptedException {
+      PipeTransport[] pipe = PipeTransport.createPair("app", "dongle",
+          PIPE_BYTES);
+      mApp = new StallingTransport(pipe[0]);
+      mApp.open();
+      pipe[1].open();
+      Thread dongle = new Thread(new DongleSimulator(pipe[1], mDongle,
+          paced), "DongleSimulator");
+      dongle.setDaemon(true);
+      dongle.start();
+      mWriter = new FrameWriter(mApp, new FrameWriter.Listener() {
+        @Override
+        public void onWrite(byte[] buffer, int offset, int length) {
+        }
+
+        @Override
+        public void onWriteFailed(IOException e) {
+          if (!mClosed) {
+            System.err.println("write failed: " + e);
+          }
+        }
+      });
+      mWriter.start();
+      Thread drain = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          byte[] buffer = new byte[256];
+          try {
+            while (true) {
+              mApp.read(buffer, 0, buffer.length);
+            }
+          } catch (IOException e) {
+            // Closed
+          }
+        }
+      }, "ReplyDrain");
+      drain.setDaemon(true);
+      drain.start();
+      byte[] hello = { (byte) FrameEncoder.PROTOCOL_V2 };
+      mWriter.offer(FrameWriter.LANE_INTERACTIVE, FrameEncoder.HELLO, hello,
+          hello.length);
+      mWriter.requestFlush();
+      while (mDongle.getReplies() == 0) {
+        Thread.sleep(1);
+      }
+      mWriter.setProtocolVersion(FrameEncoder.PROTOCOL_V2);
+    }
+
+    /**
+     * The same as DispatcherSingleton.sendMouse().
+     */
+    @Override
+    public void sendMouse(int dx, int dy, int wheel) {
+      mWriter.postMouse(dx, dy, wheel);
+    }
+
+    /**
+     * The same as DispatcherSingleton.sendClick().
+     */
+    @Override
+    public void sendClick(int type) {
+      mClick[0] = (byte) type;
+      mWriter.offer(FrameWriter.LANE_INTERACTIVE, CLICK, mClick, 1);
+      mWriter.requestFlush();
+    }
+
+    /**
+     * Wait for the dongle to have done what was sent.
+     * @return what it did
+     */
+    String await(String sent) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + DRAIN_MILLIS;
+      String done = mDongle.toString();
+      while (!done.equals(sent) && System.currentTimeMillis() < deadline) {
+        Thread.sleep(5);
+        done = mDongle.toString();
+      }
+      return done;
+    }
+
+    void close() {
+      mClosed = true;
+      mWriter.stop();
+      mApp.close();
+    }
+  }
+
+  /**
+   * A press, a move and a release, queued while the write of a move before
+   * them is stuck.
+   */
+  private static boolean stalledDrag() throws Exception {
+    Link link = new Link(false);
+    Sequence sent = new Sequence();
+    try {
+      link.mApp.stall();
+      send(sent, link, 1, 0);
+      link.mApp.awaitStalledWrite();
+      click(sent, link, 'D');
+      send(sent, link, 10, 0);
+      click(sent, link, 'U');
+      link.mApp.release();
+      return check("stalled drag", sent.toString(),
+          link.await(sent.toString()), link.mDongle.getErrors());
+    } finally {
+      link.close();
+    }
+  }
+
+  private static void send(Sequence sent, Link link, int dx, int dy) {
+    sent.sendMouse(dx, dy, 0);
+    link.sendMouse(dx, dy, 0);
+  }
+
+  private static void click(Sequence sent, Link link, int type) {
+    sent.sendClick(type);
+    link.sendClick(type);
+  }
+
+  /**
+   * Replay a trace with the moves and clicks going through a FrameWriter
+   * that can't write until the replay is over, to a dongle at 9600 baud.
+   */
+  private static boolean replay(String name, byte[] trace, long leadMillis)
+      throws Exception {
+    final Link link = new Link(true);
+    final Sequence sent = new Sequence();
+    try {
+      link.mApp.stall();
+      TouchReplay.replay(trace, 0, TouchReplay.TRACKPAD_MIN_INTERVAL_NANOS,
+          leadMillis, new MouseSender.Output() {
+        @Override
+        public void sendMouse(int dx, int dy, int wheel) {
+          sent.sendMouse(dx, dy, wheel);
+          link.sendMouse(dx, dy, wheel);
+        }
+
+        @Override
+        public void sendClick(int type) {
+          sent.sendClick(type);
+          link.sendClick(type);
+        }
+      });
+      link.mApp.release();
+      return check(name, sent.toString(), link.await(sent.toString()),
+          link.mDongle.getErrors());
+    } finally {
+      link.close();
+    }
+  }
+
+  private static boolean check(String name, String sent, String done,
+      int errors) {
+    boolean ok = sent.equals(done) && errors == 0;
+    System.out.printf("%-28s %s%n", name, ok ? "ok" : "OUT OF ORDER");
+    if (!ok) {
+      System.out.println("  sent:  " + sent);
+      System.out.println("  wire:  " + done);
+      System.out.println("  dongle errors: " + errors);
+    }
+    return ok;
+  }
+
+  public static void main(String[] args) throws Exception {
+    boolean ok = stalledDrag();
+    for (String name : SyntheticTouches.NAMES) {
+      byte[] trace = SyntheticTouches.make(name);
+      ok &= replay(name, trace, 0);
+      ok &= replay(name + " (predicted)", trace,
+          MotionPredictor.DEFAULT_LEAD_MILLIS);
+    }
+    System.exit(ok ? 0 : 1);
+  }
+
+}